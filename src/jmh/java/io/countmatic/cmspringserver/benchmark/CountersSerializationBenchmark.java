@@ -0,0 +1,82 @@
+package io.countmatic.cmspringserver.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+
+/**
+ * Serialization of the readings in the formats served by content
+ * negotiation, no redis needed. The payload sizes are printed by the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountersSerializationBenchmark {
+
+	@Param({ "1", "10", "100", "1000" })
+	private int entries;
+
+	@Param({ "json", "cbor", "smile" })
+	private String format;
+
+	private ObjectMapper objectMapper;
+	private Counters counters;
+	private byte[] payload;
+
+	@Setup
+	public void setup() throws JsonProcessingException {
+		objectMapper = new ObjectMapper(factory(format));
+		counters = new Counters();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < entries; i++) {
+			counters.add(new Counter().name("counter-" + i).count((long) i * 1000).modified(now));
+		}
+		payload = objectMapper.writeValueAsBytes(counters);
+		System.out.println("Payload of " + entries + " counters as " + format + ": " + payload.length + " bytes");
+	}
+
+	private static JsonFactory factory(String format) {
+		switch (format) {
+		case "cbor":
+			return new CBORFactory();
+		case "smile":
+			return new SmileFactory();
+		default:
+			return new JsonFactory();
+		}
+	}
+
+	@Benchmark
+	public byte[] serialize() throws JsonProcessingException {
+		return objectMapper.writeValueAsBytes(counters);
+	}
+
+	@Benchmark
+	public Counters deserialize() throws IOException {
+		return objectMapper.readValue(payload, Counters.class);
+	}
+
+}
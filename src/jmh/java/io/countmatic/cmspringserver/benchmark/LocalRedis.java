@@ -0,0 +1,100 @@
+package io.countmatic.cmspringserver.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.countmatic.cmspringserver.CmspringserverApplication;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * A throwaway redis for the benchmarks, started from the redis-server binary on
+ * a free port without persistence, so the suite runs offline and doesn't touch
+ * the redis of the tests. Set -Dbenchmark.redisServer to the binary if it's not
+ * on the PATH.
+ */
+public final class LocalRedis implements AutoCloseable {
+
+	private static final long STARTUP_MILLIS = 10000;
+
+	private final Process process;
+	private final int port;
+
+	private LocalRedis(Process process, int port) {
+		this.process = process;
+		this.port = port;
+	}
+
+	/**
+	 * Start a redis and wait until it answers
+	 *
+	 * @return the running redis
+	 * @throws IOException
+	 *             if it doesn't come up
+	 */
+	public static LocalRedis start() throws IOException {
+		int port;
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		Process process = new ProcessBuilder(System.getProperty("benchmark.redisServer", "redis-server"), "--port",
+				String.valueOf(port), "--bind", "127.0.0.1", "--save", "", "--appendonly", "no")
+						.redirectErrorStream(true).redirectOutput(new File(System.getProperty("java.io.tmpdir"),
+								"cm-benchmark-redis-" + port + ".log"))
+						.start();
+		LocalRedis redis = new LocalRedis(process, port);
+		long deadline = System.currentTimeMillis() + STARTUP_MILLIS;
+		while (true) {
+			try (Jedis j = new Jedis("127.0.0.1", port)) {
+				j.ping();
+				return redis;
+			} catch (JedisConnectionException e) {
+				if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+					redis.close();
+					throw new IOException("redis-server didn't start on port " + port, e);
+				}
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					redis.close();
+					throw new IOException("Interrupted starting redis-server", ie);
+				}
+			}
+		}
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Start the server against this redis, for both tiers
+	 *
+	 * @param properties
+	 *            additional properties as name=value
+	 * @return the application context
+	 */
+	public ConfigurableApplicationContext startServer(String... properties) {
+		String server = "127.0.0.1:" + port;
+		return new SpringApplicationBuilder(CmspringserverApplication.class)
+				.properties("server.port=0", "countmatic.persistentServer=" + server,
+						"countmatic.volatileServer=" + server, "logging.level.io.countmatic=WARN")
+				.properties(properties).run();
+	}
+
+	@Override
+	public void close() {
+		process.destroy();
+		try {
+			process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package io.countmatic.cmspringserver.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.countmatic.cmspringserver.redis.Tier;
+import io.countmatic.cmspringserver.token.Base62TokenGenerator;
+import io.countmatic.cmspringserver.token.TokenGenerator;
+import io.countmatic.cmspringserver.token.UuidTokenGenerator;
+
+/**
+ * Token generation throughput, alone and with all cores creating tokens at
+ * once. See TokenMemoryReport for the memory the tokens take in redis.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenGeneratorBenchmark {
+
+	@Param({ "uuid", "base62" })
+	private String generator;
+
+	private TokenGenerator tokens;
+
+	@Setup
+	public void setup() {
+		tokens = generator.equals("uuid") ? new UuidTokenGenerator() : new Base62TokenGenerator();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String alone() {
+		return tokens.newToken(Tier.PERSISTENT, false);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String contended() {
+		return tokens.newToken(Tier.PERSISTENT, false);
+	}
+
+}
@@ -0,0 +1,60 @@
+package io.countmatic.cmspringserver.benchmark;
+
+import java.io.IOException;
+
+import io.countmatic.cmspringserver.redis.Tier;
+import io.countmatic.cmspringserver.token.Base62TokenGenerator;
+import io.countmatic.cmspringserver.token.TokenGenerator;
+import io.countmatic.cmspringserver.token.UuidTokenGenerator;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Memory taken by the tokens of each generator in a local redis, see
+ * {@link LocalRedis}. Stores single counter tokens with a ro token each and
+ * prints the growth of used_memory per token pair. Run with the benchmark
+ * classpath, the number of token pairs as optional argument.
+ */
+public class TokenMemoryReport {
+
+	public static void main(String[] args) throws IOException {
+		int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		try (LocalRedis redis = LocalRedis.start(); Jedis j = new Jedis("127.0.0.1", redis.getPort())) {
+			for (TokenGenerator tokens : new TokenGenerator[] { new UuidTokenGenerator(),
+					new Base62TokenGenerator() }) {
+				j.flushAll();
+				long before = usedMemory(j);
+				Pipeline p = j.pipelined();
+				for (int i = 0; i < pairs; i++) {
+					String token = tokens.newToken(Tier.PERSISTENT, false);
+					String roToken = tokens.newToken(Tier.PERSISTENT, true);
+					p.hset(token, "__access", "rw");
+					p.hset(token, "counter", "1");
+					p.hset(token, "__t_counter", "1514764800000");
+					p.expire(token, 604800);
+					p.hset(roToken, "__access", "ro");
+					p.hset(roToken, "__token", token);
+					p.expire(roToken, 604800);
+					if (i % 1000 == 999) {
+						p.sync();
+						p = j.pipelined();
+					}
+				}
+				p.sync();
+				System.out.println(String.format("%-22s %6d token length %8.1f bytes per token pair",
+						tokens.getClass().getSimpleName(), tokens.newToken(Tier.PERSISTENT, false).length(),
+						(usedMemory(j) - before) / (double) pairs));
+			}
+		}
+	}
+
+	private static long usedMemory(Jedis j) {
+		for (String line : j.info("memory").split("\r\n")) {
+			if (line.startsWith("used_memory:")) {
+				return Long.parseLong(line.substring("used_memory:".length()));
+			}
+		}
+		throw new IllegalStateException("No used_memory in INFO");
+	}
+
+}
@@ -0,0 +1,117 @@
+package io.countmatic.cmspringserver.controller;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.ResponseEntity;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.cmspringserver.benchmark.LocalRedis;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import io.countmatic.cmspringserver.store.RedisCounterStore;
+import redis.clients.jedis.Jedis;
+
+/**
+ * The controller and its redis access against a local redis, see
+ * {@link LocalRedis}. Each path is measured with the scripts and with the
+ * legacy commands. Token creation is measured by TokenGeneratorBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterControllerBenchmark {
+
+	/**
+	 * A redis and a server using it
+	 */
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		@Param({ "true", "false" })
+		public boolean scripting;
+
+		LocalRedis redis;
+		ConfigurableApplicationContext context;
+		CounterController cc;
+		RedisCounterStore store;
+		RedisPoolProvider redisPoolProvider;
+		String single;
+
+		@Setup
+		public void setup() throws IOException {
+			redis = LocalRedis.start();
+			context = redis.startServer("countmatic.scripting=" + scripting);
+			cc = context.getBean(CounterController.class);
+			store = context.getBean(RedisCounterStore.class);
+			redisPoolProvider = context.getBean(RedisPoolProvider.class);
+			single = cc.getNewCounter("single", 0l).getBody().getToken();
+		}
+
+		@TearDown
+		public void tearDown() {
+			if (null != context) {
+				context.close();
+			}
+			redis.close();
+		}
+	}
+
+	/**
+	 * A token with a number of counters
+	 */
+	@State(Scope.Benchmark)
+	public static class Hash {
+
+		@Param({ "1", "10", "100", "1000" })
+		public int size;
+
+		String token;
+		Jedis jedis;
+
+		@Setup
+		public void setup(Server server) {
+			token = server.cc.getNewCounter("counter-0", 0l).getBody().getToken();
+			for (int i = 1; i < size; i++) {
+				server.cc.addCounter(token, "counter-" + i, (long) i);
+			}
+			jedis = server.redisPoolProvider.getResource(token);
+		}
+
+		@TearDown
+		public void tearDown(Server server) {
+			server.redisPoolProvider.returnResource(jedis);
+		}
+	}
+
+	@Benchmark
+	public Counter getTheOnlyOne(Server server, Hash hash) {
+		return server.store.getTheOnlyOne(hash.jedis, hash.token);
+	}
+
+	@Benchmark
+	public ResponseEntity<Counter> nextNumber(Server server) {
+		return server.cc.nextNumber(server.single, null, null);
+	}
+
+	@Benchmark
+	public ResponseEntity<Counters> getCurrentReading(Server server, Hash hash) {
+		return server.cc.getCurrentReading(hash.token, null);
+	}
+
+}
@@ -0,0 +1,280 @@
+package io.countmatic.cmspringserver.controller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.countmatic.cmspringserver.model.ImportResult;
+import io.countmatic.cmspringserver.redis.AccessCache;
+import io.countmatic.cmspringserver.redis.InstrumentedJedisPool;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import io.countmatic.cmspringserver.redis.Tier;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Bulk export and import of all tokens, for backups, moving tokens between
+ * servers and seeding. The format is NDJSON, one hash per line:
+ * {"key":"...","ttl":millis,"fields":{...}}, ttl -1 for keys without TTL.
+ * Tokens, ro tokens and the history hashes are exported alike, so links and
+ * access fields survive.
+ * <p>
+ * Only there with countmatic.admin.enabled and the redis store, each request
+ * needs the countmatic.admin.key in the X-Countmatic-Admin-Key header.
+ */
+@Controller
+@ConditionalOnExpression("${countmatic.admin.enabled:false} and '${countmatic.store:redis}' == 'redis'")
+public class AdminController {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdminController.class);
+
+	private static final String KEY_HEADER = "X-Countmatic-Admin-Key";
+
+	@Autowired
+	RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	AccessCache accessCache;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@Value("${countmatic.admin.key:}")
+	private String adminKey;
+
+	@Value("${countmatic.admin.batchSize:1000}")
+	private int batchSize;
+
+	@PostConstruct
+	public void postConstruct() {
+		if (adminKey.isEmpty()) {
+			throw new RuntimeException("countmatic.admin.enabled needs a countmatic.admin.key");
+		}
+	}
+
+	private boolean isAdmin(String key) {
+		return null != key && MessageDigest.isEqual(adminKey.getBytes(StandardCharsets.UTF_8),
+				key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Stream all hashes of a tier, or of both, as NDJSON. Walks the servers with
+	 * SCAN and fetches each page in one pipeline.
+	 * 
+	 * @param key
+	 * @param tier
+	 *            persistent or volatile, both if not given
+	 * @return the hashes
+	 */
+	@RequestMapping(value = "/admin/export", method = RequestMethod.GET, produces = "application/x-ndjson")
+	public ResponseEntity<StreamingResponseBody> export(@RequestHeader(value = KEY_HEADER, required = false) String key,
+			@RequestParam(value = "tier", required = false) String tier) {
+		if (!isAdmin(key)) {
+			return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+		}
+		List<InstrumentedJedisPool> pools = new ArrayList<>();
+		for (Tier t : Tier.values()) {
+			if (null == tier || t.name().equalsIgnoreCase(tier)) {
+				pools.addAll(redisPoolProvider.getRing(t).getPools());
+			}
+		}
+		// unknown tier
+		if (pools.isEmpty()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		StreamingResponseBody body = out -> {
+			JsonGenerator gen = objectMapper.getFactory().createGenerator(out);
+			gen.setRootValueSeparator(null);
+			long exported = 0;
+			for (InstrumentedJedisPool pool : pools) {
+				exported += this.export(pool, gen);
+			}
+			gen.close();
+			LOGGER.info("Exported {} keys", exported);
+		};
+		return new ResponseEntity<>(body, HttpStatus.OK);
+	}
+
+	private long export(InstrumentedJedisPool pool, JsonGenerator gen) throws IOException {
+		long exported = 0;
+		ScanParams params = new ScanParams().count(batchSize);
+		try (Jedis j = pool.getResource()) {
+			String cursor = ScanParams.SCAN_POINTER_START;
+			do {
+				ScanResult<String> page = j.scan(cursor, params);
+				List<String> keys = page.getResult();
+				List<Response<Map<String, String>>> hashes = new ArrayList<>(keys.size());
+				List<Response<Long>> ttls = new ArrayList<>(keys.size());
+				Pipeline p = j.pipelined();
+				for (String k : keys) {
+					hashes.add(p.hgetAll(k));
+					ttls.add(p.pttl(k));
+				}
+				p.sync();
+				for (int i = 0; i < keys.size(); i++) {
+					Map<String, String> fields;
+					try {
+						fields = hashes.get(i).get();
+					} catch (JedisDataException e) {
+						// not a hash
+						continue;
+					}
+					if (fields.isEmpty()) {
+						// expired meanwhile
+						continue;
+					}
+					gen.writeStartObject();
+					gen.writeStringField("key", keys.get(i));
+					gen.writeNumberField("ttl", ttls.get(i).get());
+					gen.writeObjectField("fields", fields);
+					gen.writeEndObject();
+					gen.writeRaw('\n');
+					exported++;
+				}
+				gen.flush();
+				cursor = page.getStringCursor();
+			} while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+		}
+		return exported;
+	}
+
+	/**
+	 * Import hashes written by the export. Each hash replaces the key on the
+	 * server it belongs to and keeps its remaining TTL, keys expired meanwhile
+	 * are skipped. Lines are written in pipelines of batchSize, so memory stays
+	 * bounded whatever the size of the import.
+	 * <p>
+	 * An invalid line stops the import with BAD_REQUEST and its line number.
+	 * The keys of the lines before it are imported already and stay, as the
+	 * input is streamed and not held to be validated as a whole. Each line
+	 * replaces its key, so the corrected input can simply be imported again.
+	 * 
+	 * @param key
+	 * @param in
+	 *            the NDJSON
+	 * @return the number of imported keys, and where and why it stopped
+	 * @throws IOException
+	 */
+	@RequestMapping(value = "/admin/import", method = RequestMethod.POST)
+	public ResponseEntity<ImportResult> importAll(@RequestHeader(value = KEY_HEADER, required = false) String key,
+			InputStream in) throws IOException {
+		if (!isAdmin(key)) {
+			return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+		}
+		long imported = 0;
+		long lineNo = 0;
+		Map<InstrumentedJedisPool, List<JsonNode>> batch = new HashMap<>();
+		int buffered = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while (null != (line = reader.readLine())) {
+			lineNo++;
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			JsonNode hash;
+			try {
+				hash = objectMapper.readTree(line);
+			} catch (IOException e) {
+				LOGGER.warn("Import stopped at line {}: {}", lineNo, e.getMessage());
+				return this.stopped(imported + this.write(batch), lineNo, "not JSON: " + e.getMessage());
+			}
+			if (!hash.hasNonNull("key") || !hash.path("fields").isObject() || hash.path("fields").size() == 0) {
+				LOGGER.warn("Import stopped at line {}: not a hash", lineNo);
+				return this.stopped(imported + this.write(batch), lineNo, "not a hash");
+			}
+			String k = hash.get("key").asText();
+			batch.computeIfAbsent(redisPoolProvider.getRing(tierOf(k)).get(k), pool -> new ArrayList<>()).add(hash);
+			if (++buffered >= batchSize) {
+				imported += this.write(batch);
+				batch.clear();
+				buffered = 0;
+			}
+		}
+		imported += this.write(batch);
+		LOGGER.info("Imported {} keys", imported);
+		return new ResponseEntity<>(new ImportResult().imported(imported), HttpStatus.OK);
+	}
+
+	private ResponseEntity<ImportResult> stopped(long imported, long line, String error) {
+		return new ResponseEntity<>(new ImportResult().imported(imported).line(line).error(error),
+				HttpStatus.BAD_REQUEST);
+	}
+
+	private long write(Map<InstrumentedJedisPool, List<JsonNode>> batch) {
+		long written = 0;
+		// cached access of replaced tokens is dropped with one message
+		List<String> tokens = new ArrayList<>();
+		for (Map.Entry<InstrumentedJedisPool, List<JsonNode>> e : batch.entrySet()) {
+			try (Jedis j = e.getKey().getResource()) {
+				Pipeline p = j.pipelined();
+				for (JsonNode hash : e.getValue()) {
+					long ttl = hash.path("ttl").asLong(-1);
+					if (ttl == 0 || ttl < -1) {
+						continue;
+					}
+					String k = hash.get("key").asText();
+					Map<String, String> fields = new HashMap<>();
+					for (Iterator<Map.Entry<String, JsonNode>> i = hash.get("fields").fields(); i.hasNext();) {
+						Map.Entry<String, JsonNode> field = i.next();
+						fields.put(field.getKey(), field.getValue().asText());
+					}
+					p.del(k);
+					p.hmset(k, fields);
+					if (ttl > 0) {
+						p.pexpire(k, ttl);
+					}
+					if (k.indexOf(':') < 0) {
+						tokens.add(k);
+					}
+					written++;
+				}
+				p.sync();
+			}
+		}
+		accessCache.invalidateAll(tokens);
+		return written;
+	}
+
+	/**
+	 * @param key
+	 * @return the tier of a token or of the token an auxiliary key belongs to
+	 */
+	private static Tier tierOf(String key) {
+		int colon = key.indexOf(':');
+		return Tier.of(colon > 0 ? key.substring(0, colon) : key);
+	}
+
+}
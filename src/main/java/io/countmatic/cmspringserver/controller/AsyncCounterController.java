@@ -0,0 +1,176 @@
+package io.countmatic.cmspringserver.controller;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
+import io.countmatic.cmspringserver.redis.Tier;
+import io.countmatic.cmspringserver.store.AsyncCounterStore;
+import io.countmatic.cmspringserver.store.TokenVersion;
+
+/**
+ * Variant of the counter API under /async that doesn't hold a thread while
+ * redis works. Handlers return at once and the {@link AsyncCounterStore}
+ * completes the response when redis answers. With redis that is non-blocking
+ * I/O by lettuce, with the embedded store, or redis without scripts or with the
+ * write-behind buffer, the blocking store runs on an executor instead, whose
+ * overflow is answered with SERVICE_UNAVAILABLE. Both variants serve the same
+ * counters, so they can be compared under the same load.
+ */
+@Controller
+@RequestMapping("/async")
+public class AsyncCounterController {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncCounterController.class);
+
+	@Autowired
+	AsyncCounterStore asyncCounterStore;
+
+	@Autowired
+	CounterController counterController;
+
+	private static <T> CompletableFuture<ResponseEntity<T>> answer(HttpStatus status) {
+		return CompletableFuture.completedFuture(new ResponseEntity<T>(status));
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/new", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Token>> getNewCounter(
+			@RequestParam(value = "name", required = true) String name,
+			@RequestParam(value = "initialvalue", required = false) Long initialvalue) {
+		return this.createCounter(Tier.PERSISTENT, name, initialvalue);
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/new/ephemeral", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Token>> getNewEphemeralCounter(
+			@RequestParam(value = "name", required = true) String name,
+			@RequestParam(value = "initialvalue", required = false) Long initialvalue) {
+		return this.createCounter(Tier.VOLATILE, name, initialvalue);
+	}
+
+	private CompletableFuture<ResponseEntity<Token>> createCounter(Tier tier, String name, Long initialvalue) {
+		LOGGER.debug("creating new {} Counter for: {}", tier, name);
+		if (name.startsWith("__")) {
+			return answer(HttpStatus.CONFLICT);
+		}
+		return asyncCounterStore.create(counterController.createToken(tier, false), name,
+				initialvalue == null ? 0 : initialvalue);
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/add", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Counter>> addCounter(
+			@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "name", required = true) String name,
+			@RequestParam(value = "initialvalue", required = false) Long initialvalue) {
+		LOGGER.debug("adding Counter {} to {}", name, token);
+		if ((null == name) || name.startsWith("__")) {
+			return answer(HttpStatus.CONFLICT);
+		}
+		return asyncCounterStore.add(token, name, null == initialvalue ? 0l : initialvalue);
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/delete", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Counter>> deleteCounter(
+			@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "name", required = false) String name) {
+		LOGGER.debug("deleting Counter {} in {}", name, token);
+		return asyncCounterStore.delete(token, name);
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/current", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Counters>> getCurrentReading(
+			@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "name", required = false) String name,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+		LOGGER.debug("getCurrentReading Counter {} in {}", name, token);
+		return asyncCounterStore.read(token, name, TokenVersion.parse(ifNoneMatch));
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/current/page", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<CounterPage>> getCurrentReadingPage(
+			@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "cursor", required = false, defaultValue = "0") String cursor,
+			@RequestParam(value = "count", required = false, defaultValue = "100") int count) {
+		LOGGER.debug("getCurrentReadingPage {} of {}", cursor, token);
+		if (count < 1 || count > CounterController.MAX_PAGE_SIZE) {
+			return answer(HttpStatus.BAD_REQUEST);
+		}
+		return asyncCounterStore.readPage(token, cursor, count);
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/readonlytoken", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Token>> getReadOnlyToken(
+			@RequestParam(value = "token", required = true) String token) {
+		LOGGER.debug("creating ro token for {}", token);
+		return asyncCounterStore.createReadOnly(token, counterController.createToken(Tier.of(token), true));
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/next", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Counter>> nextNumber(
+			@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "name", required = false) String name,
+			@RequestParam(value = "increment", required = false) Long increment) {
+		LOGGER.debug("next-ing Counter {} in {}", name, token);
+		return asyncCounterStore.increment(token, name, null == increment ? 1l : increment);
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/previous", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Counter>> previousNumber(
+			@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "name", required = false) String name,
+			@RequestParam(value = "decrement", required = false) Long decrement) {
+		LOGGER.debug("previous-ing Counter {} in {}", name, token);
+		return asyncCounterStore.increment(token, name, null == decrement ? -1l : -decrement);
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/reset", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<Counter>> resetCounter(
+			@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "name", required = false) String name,
+			@RequestParam(value = "initialvalue", required = false) Long initialvalue) {
+		LOGGER.debug("reset-ing Counter {} in {}", name, token);
+		return asyncCounterStore.reset(token, name, null == initialvalue ? 1l : initialvalue);
+	}
+
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/batch", method = RequestMethod.POST)
+	public CompletableFuture<ResponseEntity<Counters>> nextNumbers(
+			@RequestParam(value = "token", required = false) String token,
+			@RequestBody List<CounterIncrement> increments) {
+		LOGGER.debug("batch-ing {} increments in {}", null == increments ? 0 : increments.size(), token);
+		Map<String, List<Integer>> byToken = CounterController.byToken(token, increments);
+		if (null == byToken) {
+			return answer(HttpStatus.BAD_REQUEST);
+		}
+		return asyncCounterStore.incrementAll(byToken, increments);
+	}
+
+}
@@ -0,0 +1,93 @@
+package io.countmatic.cmspringserver.controller;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Serves and reads CBOR and Smile next to JSON, chosen by the Accept and
+ * Content-Type headers. Both are binary forms of the same JSON model, so
+ * clients need no schema. The converters come after the JSON one, which stays
+ * the default. The mappings offering them are marked by
+ * {@link NegotiatedMapping}, their responses carry Vary: Accept for caches.
+ */
+@Configuration
+public class BinaryFormatConfiguration extends WebMvcConfigurerAdapter {
+
+	public static final String CBOR_VALUE = "application/cbor";
+	public static final String SMILE_VALUE = "application/x-jackson-smile";
+
+	@Autowired
+	private Jackson2ObjectMapperBuilder objectMapperBuilder;
+
+	/**
+	 * @param factory
+	 * @return a mapper for the format, configured like the JSON one
+	 */
+	private ObjectMapper objectMapper(JsonFactory factory) {
+		ObjectMapper mapper = new ObjectMapper(factory);
+		objectMapperBuilder.configure(mapper);
+		return mapper;
+	}
+
+	@Override
+	public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+		converters.add(new BinaryHttpMessageConverter(this.objectMapper(new CBORFactory()), CBOR_VALUE));
+		converters.add(new BinaryHttpMessageConverter(this.objectMapper(new SmileFactory()), SMILE_VALUE));
+	}
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(new VaryInterceptor());
+	}
+
+	/**
+	 * The jackson converter for another data format, spring brings those from
+	 * version 5 on only
+	 */
+	static final class BinaryHttpMessageConverter extends AbstractJackson2HttpMessageConverter {
+
+		BinaryHttpMessageConverter(ObjectMapper objectMapper, String mediaType) {
+			super(objectMapper, MediaType.parseMediaType(mediaType));
+		}
+
+	}
+
+	/**
+	 * Adds Vary: Accept to the responses of negotiated mappings before the
+	 * handler runs, so errors and NOT_MODIFIED carry it too
+	 */
+	static final class VaryInterceptor extends HandlerInterceptorAdapter {
+
+		@Override
+		public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+			// called again when an async request is dispatched back
+			if (handler instanceof HandlerMethod
+					&& ((HandlerMethod) handler).hasMethodAnnotation(NegotiatedMapping.class)
+					&& !response.getHeaders(HttpHeaders.VARY).contains(HttpHeaders.ACCEPT)) {
+				response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+			}
+			return true;
+		}
+
+	}
+
+}
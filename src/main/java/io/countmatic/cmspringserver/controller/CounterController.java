@@ -1,139 +1,118 @@
 package io.countmatic.cmspringserver.controller;
 
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
 import javax.validation.constraints.NotNull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.countmatic.api_v2.spring.model.Counter;
 import io.countmatic.api_v2.spring.model.Counters;
 import io.countmatic.api_v2.spring.model.Token;
 import io.countmatic.api_v2.spring.server.CounterApi;
-import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
+import io.countmatic.cmspringserver.redis.Tier;
+import io.countmatic.cmspringserver.store.CounterStore;
+import io.countmatic.cmspringserver.store.TokenVersion;
+import io.countmatic.cmspringserver.token.TokenGenerator;
 import io.swagger.annotations.ApiParam;
-import redis.clients.jedis.Jedis;
 
+/**
+ * The counter api. Its mappings are repeated here as {@link NegotiatedMapping},
+ * the generated ones produce JSON only.
+ */
 @Controller
 public class CounterController implements CounterApi {
 
 	@Autowired
-	RedisPoolProvider redisPoolProvider;
+	CounterStore counterStore;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@Autowired
+	TokenGenerator tokenGenerator;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(CounterController.class);
-	// One week default TTL
-	private static final int DEFAULT_TTL = 3600 * 24 * 7;
+	// max fields scanned per page
+	static final int MAX_PAGE_SIZE = 1000;
 
 	/**
 	 * Create a unique token
 	 * 
+	 * @param tier
 	 * @param readonly
 	 * @return
 	 */
-	private String createToken(boolean readonly) {
-		UUID uuid = UUID.randomUUID();
-		// String token = Long.toString(System.currentTimeMillis(), 16);
-		// Long rand = ThreadLocalRandom.current().nextLong();
-		String postfix = readonly ? "-ro" : "-rw";
-
-		return uuid + postfix;
+	String createToken(Tier tier, boolean readonly) {
+		return tokenGenerator.newToken(tier, readonly);
 	}
 
 	@Override
 	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/new", method = RequestMethod.GET)
 	public ResponseEntity<Token> getNewCounter(
 			@NotNull @ApiParam(value = "The name of the counter", required = true) @RequestParam(value = "name", required = true) String name,
 			@ApiParam(value = "Initial value for the counter, default is 0") @RequestParam(value = "initialvalue", required = false) Long initialvalue) {
-		LOGGER.debug("creating new Counter for: " + name);
-		// create token
-		Token token = new Token().token(this.createToken(false));
-		// add hash to redis
-		Jedis jedis = null;
-		if (name.startsWith("__")) {
-			return new ResponseEntity<>(HttpStatus.CONFLICT);
-		}
-		try {
-			jedis = redisPoolProvider.getPersistentResource();
-			Map<String, String> hash = new HashMap<String, String>();
-			hash.put(name, initialvalue == null ? "0" : initialvalue.toString());
-			hash.put("__access", "rw");
-			hash.put("__t_" + name, String.valueOf(new Date().getTime()));
-			jedis.hmset(token.getToken(), hash);
-			jedis.expire(token.getToken(), DEFAULT_TTL);
-			LOGGER.info("created new counter " + token.getToken());
-		} finally {
-			if (null != jedis) {
-				redisPoolProvider.returnResource(jedis);
-			}
-		}
-		ResponseEntity<Token> response = new ResponseEntity<>(token, HttpStatus.OK);
-		return response;
+		return this.createCounter(Tier.PERSISTENT, name, initialvalue);
 	}
 
 	/**
-	 * Check token for existence and rw access
+	 * Create an ephemeral counter. It lives in the volatile redis without
+	 * persistence and is lost when that server restarts, fine for high-churn
+	 * counters like rate meters or presence counts.
 	 * 
-	 * @param j
-	 * @param token
-	 * @return OK or NOT_FOUND or FORBIDDEN
+	 * @param name
+	 * @param initialvalue
+	 * @return the token
 	 */
-	private HttpStatus checkIfExistsAndRw(Jedis j, String token) {
-		HttpStatus rc = HttpStatus.OK;
-		String access = j.hget(token, "__access");
-		if (null == access) {
-			LOGGER.debug("Token unknown");
-			rc = HttpStatus.NOT_FOUND;
-		} else if (!"rw".equals(access)) {
-			LOGGER.debug("Token not a rw token");
-			rc = HttpStatus.FORBIDDEN;
-		}
-
-		return rc;
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/new/ephemeral", method = RequestMethod.GET)
+	public ResponseEntity<Token> getNewEphemeralCounter(
+			@NotNull @ApiParam(value = "The name of the counter", required = true) @RequestParam(value = "name", required = true) String name,
+			@ApiParam(value = "Initial value for the counter, default is 0") @RequestParam(value = "initialvalue", required = false) Long initialvalue) {
+		return this.createCounter(Tier.VOLATILE, name, initialvalue);
 	}
 
-	/**
-	 * Get the single counter within token. If there are more counters, returns null
-	 * 
-	 * @param j
-	 * @param token
-	 * @return
-	 */
-	private Counter getTheOnlyOne(Jedis j, String token) {
-		Counter rc = null;
-		Map<String, String> map = j.hgetAll(token);
-		for (String key : map.keySet()) {
-			if (!key.startsWith("__")) {
-				if (null == rc) {
-					rc = new Counter().count(Long.valueOf(map.get(key))).name(key);
-				} else {
-					rc = null;
-					break;
-				}
-			}
+	private ResponseEntity<Token> createCounter(Tier tier, String name, Long initialvalue) {
+		LOGGER.debug("creating new {} Counter for: {}", tier, name);
+		if (name.startsWith("__")) {
+			return new ResponseEntity<>(HttpStatus.CONFLICT);
 		}
-		return rc;
+		return counterStore.create(this.createToken(tier, false), name, initialvalue == null ? 0 : initialvalue);
 	}
 
 	@Override
 	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/add", method = RequestMethod.GET)
 	public ResponseEntity<Counter> addCounter(
 			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token,
 			@NotNull @ApiParam(value = "The name of the counter", required = true) @RequestParam(value = "name", required = true) String name,
 			@ApiParam(value = "Initial value for the counter, default is 0") @RequestParam(value = "initialvalue", required = false) Long initialvalue) {
 
-		LOGGER.debug("adding Counter " + name + " to " + token);
-		Jedis j = null;
-		ResponseEntity<Counter> response = null;
+		LOGGER.debug("adding Counter {} to {}", name, token);
 		if (null == initialvalue) {
 			initialvalue = 0l;
 		}
@@ -141,344 +120,222 @@ public class CounterController implements CounterApi {
 		if ((null == name) || name.startsWith("__")) {
 			return new ResponseEntity<>(HttpStatus.CONFLICT);
 		}
-		// check token
-		try {
-			j = redisPoolProvider.getPersistentResource();
-			HttpStatus s = this.checkIfExistsAndRw(j, token);
-			if (s != HttpStatus.OK) {
-				response = new ResponseEntity<>(s);
-			} else {
-				LOGGER.debug("OK, adding counter");
-				long modified = new Date().getTime();
-				j.hset(token, name, initialvalue.toString());
-				j.hset(token, "__t_" + name, String.valueOf(modified));
-				j.expire(token, DEFAULT_TTL);
-				Counter c = new Counter().count(initialvalue).name(name).modified(modified);
-				response = new ResponseEntity<>(c, HttpStatus.OK);
-			}
-		} finally {
-			if (null != j) {
-				redisPoolProvider.returnResource(j);
-			}
-		}
-
-		return response;
+		return counterStore.add(token, name, initialvalue);
 	}
 
 	@Override
 	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/delete", method = RequestMethod.GET)
 	public ResponseEntity<Counter> deleteCounter(
 			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token,
 			@ApiParam(value = "Optionally the name of the requested counter, mandatory for grouptokens") @RequestParam(value = "name", required = false) String name) {
-		LOGGER.debug("deleting Counter " + name + " in " + token);
-		Jedis j = null;
-		ResponseEntity<Counter> response = null;
-		// check token
-		try {
-			// FIXME: check that name doesnt start like "__"
-			j = redisPoolProvider.getPersistentResource();
-			HttpStatus s = this.checkIfExistsAndRw(j, token);
-			if (s != HttpStatus.OK) {
-				response = new ResponseEntity<>(s);
-			} else {
-				if (null != name) {
-					String val = j.hget(token, name);
-					if (null == val) {
-						LOGGER.debug("Name unknown");
-						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
-					} else {
-						LOGGER.debug("OK, deleting field in groupcounter");
-						String ts = j.hget(token, "__t_" + name);
-						if (null == ts) {
-							ts = "0";
-						}
-						Counter c = new Counter().count(Long.valueOf(val)).name(name).modified(Long.valueOf(ts));
-						j.hdel(token, name);
-						j.expire(token, DEFAULT_TTL);
-						response = new ResponseEntity<>(c, HttpStatus.OK);
-					}
-				} else {
-					LOGGER.debug("OK, deleting groupcounter");
-					j.del(token);
-					Counter c = new Counter().count(0l).name(name).modified(0l);
-					response = new ResponseEntity<>(c, HttpStatus.OK);
-				}
-			}
-		} finally {
-			if (null != j) {
-				redisPoolProvider.returnResource(j);
-			}
-		}
-
-		return response;
+		LOGGER.debug("deleting Counter {} in {}", name, token);
+		return counterStore.delete(token, name);
 	}
 
 	@Override
 	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/current", method = RequestMethod.GET)
 	public ResponseEntity<Counters> getCurrentReading(
 			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token,
 			@ApiParam(value = "Optionally the name of the requested counter") @RequestParam(value = "name", required = false) String name) {
-		LOGGER.debug("getCurrentReading Counter " + name + " in " + token);
-		Jedis j = null;
-		ResponseEntity<Counters> response = null;
-		// check token
-		try {
-			// FIXME: check that name doesnt start like "__"
-			j = redisPoolProvider.getPersistentResource();
-			String access = j.hget(token, "__access");
-			if (null == access) {
-				LOGGER.debug("Token unknown");
-				response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
-			} else if (!"rw".equals(access)) {
-				LOGGER.debug("Forwarding to rw Token");
-				String rwToken = j.hget(token, "__token");
-				j.expire(token, DEFAULT_TTL);
-				return getCurrentReading(rwToken, name);
-			} else {
-				Counters counters = new Counters();
-				if (null != name) {
-					String val = j.hget(token, name);
-					if (null == val) {
-						LOGGER.debug("Name unknown");
-						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
-					} else {
-						LOGGER.debug("OK, have field in counter");
-						String ts = j.hget(token, "__t_" + name);
-						if (null == ts) {
-							ts = "0";
-						}
-						Counter c = new Counter().count(Long.valueOf(val)).name(name).modified(Long.valueOf(ts));
-						j.expire(token, DEFAULT_TTL);
-						counters.add(c);
-						response = new ResponseEntity<>(counters, HttpStatus.OK);
-					}
-				} else {
-					LOGGER.debug("OK, fetching all groupcounters");
-					Map<String, String> map = j.hgetAll(token);
-					for (String key : map.keySet()) {
-						if (!key.startsWith("__")) {
-							String ts = map.get("__t_" + key);
-							if (null == ts) {
-								ts = "0";
-							}
-							Counter c = new Counter().count(Long.valueOf(map.get(key))).name(key)
-									.modified(Long.valueOf(ts));
-							counters.add(c);
-						}
-					}
-					j.expire(token, DEFAULT_TTL);
-					response = new ResponseEntity<>(counters, HttpStatus.OK);
-				}
-			}
-		} finally {
-			if (null != j) {
-				redisPoolProvider.returnResource(j);
-			}
+		return this.getCurrentReading(token, name, ifNoneMatch());
+	}
+
+	/**
+	 * Read counters unless the client's version is still current, for callers
+	 * off the request thread
+	 * 
+	 * @param token
+	 * @param name
+	 * @param ifNoneMatch
+	 *            the If-None-Match header, may be null
+	 * @return the counters, NOT_MODIFIED without counters if the ETag in the
+	 *         header is still current
+	 */
+	public ResponseEntity<Counters> getCurrentReading(String token, String name, String ifNoneMatch) {
+		LOGGER.debug("getCurrentReading Counter {} in {}", name, token);
+		return counterStore.read(token, name, TokenVersion.parse(ifNoneMatch));
+	}
+
+	/**
+	 * The generated api fixes the parameters of getCurrentReading, so the
+	 * header is taken from the current request. That's bound to the request
+	 * thread, callers elsewhere pass the header themselves.
+	 * 
+	 * @return the If-None-Match header, null if none
+	 */
+	private static String ifNoneMatch() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		if (!(attributes instanceof ServletRequestAttributes)) {
+			return null;
 		}
+		return ((ServletRequestAttributes) attributes).getRequest().getHeader(HttpHeaders.IF_NONE_MATCH);
+	}
 
-		return response;
+	/**
+	 * Read the counters of a token page by page, for tokens too large to read at
+	 * once. Start with cursor 0 and pass the returned cursor until it is 0
+	 * again. As with HSCAN, a counter may show up on two pages.
+	 * 
+	 * @param token
+	 * @param cursor
+	 * @param count
+	 *            number of hash fields to scan per page, a hint only
+	 * @return the page
+	 */
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/current/page", method = RequestMethod.GET)
+	public ResponseEntity<CounterPage> getCurrentReadingPage(
+			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token,
+			@ApiParam(value = "Cursor returned with the previous page, 0 for the first page") @RequestParam(value = "cursor", required = false, defaultValue = "0") String cursor,
+			@ApiParam(value = "Number of fields to scan, default is 100") @RequestParam(value = "count", required = false, defaultValue = "100") int count) {
+		LOGGER.debug("getCurrentReadingPage {} of {}", cursor, token);
+		if (count < 1 || count > MAX_PAGE_SIZE) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		return counterStore.readPage(token, cursor, count);
 	}
 
-	@Override
+	/**
+	 * Read all counters of a token as a streamed JSON array, fetched from the
+	 * store page by page while writing the response.
+	 * 
+	 * @param token
+	 * @return the counters
+	 */
 	@CrossOrigin
-	public ResponseEntity<Token> getReadOnlyToken(
+	@RequestMapping(value = "/counter/current/stream", method = RequestMethod.GET, produces = "application/json")
+	public ResponseEntity<StreamingResponseBody> streamCurrentReading(
 			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token) {
-		LOGGER.debug("creating ro token for " + token);
-		Jedis j = null;
-		ResponseEntity<Token> response = null;
-		// check token
-		try {
-			j = redisPoolProvider.getPersistentResource();
-			HttpStatus s = this.checkIfExistsAndRw(j, token);
-			if (s != HttpStatus.OK) {
-				response = new ResponseEntity<>(s);
-			} else {
-				LOGGER.debug("OK, creating ro token");
-				Map<String, String> hash = new HashMap<String, String>();
-				hash.put("__token", token);
-				hash.put("__access", "ro");
-				String roToken = this.createToken(true);
-				j.hmset(roToken, hash);
-				j.expire(roToken, DEFAULT_TTL);
-				j.expire(token, DEFAULT_TTL);
-				response = new ResponseEntity<>(new Token().token(roToken), HttpStatus.OK);
-				LOGGER.info("Created new readonly token : " + roToken);
-			}
-		} finally {
-			if (null != j) {
-				redisPoolProvider.returnResource(j);
-			}
+		LOGGER.debug("streamCurrentReading of {}", token);
+		// the first page decides the status, before anything is written
+		final ResponseEntity<CounterPage> first = counterStore.readPage(token, "0", MAX_PAGE_SIZE);
+		if (first.getStatusCode() != HttpStatus.OK) {
+			return new ResponseEntity<>(first.getStatusCode());
 		}
+		StreamingResponseBody body = out -> {
+			JsonGenerator gen = objectMapper.getFactory().createGenerator(out);
+			gen.writeStartArray();
+			CounterPage page = first.getBody();
+			for (;;) {
+				for (Counter c : page.getCounters()) {
+					gen.writeObject(c);
+				}
+				gen.flush();
+				if ("0".equals(page.getCursor())) {
+					break;
+				}
+				ResponseEntity<CounterPage> next = counterStore.readPage(token, page.getCursor(), MAX_PAGE_SIZE);
+				if (next.getStatusCode() != HttpStatus.OK) {
+					// deleted while streaming
+					break;
+				}
+				page = next.getBody();
+			}
+			gen.writeEndArray();
+			gen.close();
+		};
+		return new ResponseEntity<>(body, HttpStatus.OK);
+	}
 
-		return response;
+	@Override
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/readonlytoken", method = RequestMethod.GET)
+	public ResponseEntity<Token> getReadOnlyToken(
+			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token) {
+		LOGGER.debug("creating ro token for {}", token);
+		return counterStore.createReadOnly(token, this.createToken(Tier.of(token), true));
 	}
 
 	@Override
 	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/next", method = RequestMethod.GET)
 	public ResponseEntity<Counter> nextNumber(
 			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token,
 			@ApiParam(value = "Optionally the name of the requested counter, mandatory for grouptokens") @RequestParam(value = "name", required = false) String name,
 			@ApiParam(value = "Value to add to the current counter's value, default is 1") @RequestParam(value = "increment", required = false) Long increment) {
-		LOGGER.debug("next-ing Counter " + name + " in " + token);
-		Jedis j = null;
-		ResponseEntity<Counter> response = null;
+		LOGGER.debug("next-ing Counter {} in {}", name, token);
 		if (null == increment) {
 			increment = 1l;
 		}
-		// check token
-		try {
-			j = redisPoolProvider.getPersistentResource();
-			HttpStatus s = this.checkIfExistsAndRw(j, token);
-			if (s != HttpStatus.OK) {
-				response = new ResponseEntity<>(s);
-			} else {
-				LOGGER.debug("OK, make next");
-				if (null != name) {
-					String val = j.hget(token, name);
-					if (null == val) {
-						LOGGER.debug("Name unknown");
-						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
-					} else {
-						LOGGER.debug("OK, nexting field in counter");
-						Long newVal = j.hincrBy(token, name, increment);
-						Counter c = new Counter().count(newVal).name(name).modified(0l);
-						j.expire(token, DEFAULT_TTL);
-						j.hset(token, "__t_" + name, String.valueOf(new Date().getTime()));
-						response = new ResponseEntity<>(c, HttpStatus.OK);
-					}
-				} else {
-					LOGGER.debug("OK, nexting singlecounter");
-					Counter c = this.getTheOnlyOne(j, token);
-					if (null == c) {
-						response = new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-					} else {
-						Long newVal = j.hincrBy(token, c.getName(), increment);
-						j.hset(token, "__t_" + c.getName(), String.valueOf(new Date().getTime()));
-						j.expire(token, DEFAULT_TTL);
-						response = new ResponseEntity<>(new Counter().count(newVal).name(c.getName()).modified(0l),
-								HttpStatus.OK);
-					}
-				}
-			}
-		} finally {
-			if (null != j) {
-				redisPoolProvider.returnResource(j);
-			}
+		return counterStore.increment(token, name, increment);
+	}
+
+	/**
+	 * Increment many counters of one or several tokens with one request. The
+	 * batch is applied all or none, a failed batch can be retried safely. With
+	 * several redis servers the tokens of a batch have to live on the same
+	 * server, other batches are refused with BAD_REQUEST.
+	 * 
+	 * @param token
+	 * @param increments
+	 * @return the new values in the order of the increments
+	 */
+	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/batch", method = RequestMethod.POST)
+	public ResponseEntity<Counters> nextNumbers(
+			@ApiParam(value = "Access token for all increments not naming their own token") @RequestParam(value = "token", required = false) String token,
+			@ApiParam(value = "The increments", required = true) @RequestBody List<CounterIncrement> increments) {
+		LOGGER.debug("batch-ing {} increments in {}", null == increments ? 0 : increments.size(), token);
+		Map<String, List<Integer>> byToken = byToken(token, increments);
+		if (null == byToken) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
 		}
+		return counterStore.incrementAll(byToken, increments);
+	}
 
-		return response;
+	/**
+	 * Group the increments of a batch by token, keeping their positions within
+	 * the batch
+	 * 
+	 * @param token
+	 *            for the increments not naming their own token
+	 * @param increments
+	 * @return the positions by token, null if the batch is empty or an
+	 *         increment lacks token or name
+	 */
+	static Map<String, List<Integer>> byToken(String token, List<CounterIncrement> increments) {
+		if (null == increments || increments.isEmpty()) {
+			return null;
+		}
+		Map<String, List<Integer>> byToken = new LinkedHashMap<>();
+		for (int i = 0; i < increments.size(); i++) {
+			CounterIncrement inc = increments.get(i);
+			String t = null == inc.getToken() ? token : inc.getToken();
+			if (null == t || null == inc.getName() || inc.getName().startsWith("__")) {
+				return null;
+			}
+			byToken.computeIfAbsent(t, k -> new ArrayList<>()).add(i);
+		}
+		return byToken;
 	}
 
 	@Override
 	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/previous", method = RequestMethod.GET)
 	public ResponseEntity<Counter> previousNumber(
 			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token,
 			@ApiParam(value = "Optionally the name of the requested counter, mandatory for grouptokens") @RequestParam(value = "name", required = false) String name,
 			@ApiParam(value = "Value to substract from the counter's current value, default is 1") @RequestParam(value = "decrement", required = false) Long decrement) {
-		LOGGER.debug("previous-ing Counter " + name + " in " + token);
-		Jedis j = null;
-		ResponseEntity<Counter> response = null;
+		LOGGER.debug("previous-ing Counter {} in {}", name, token);
 		if (null == decrement) {
 			decrement = 1l;
 		}
-		decrement = -decrement;
-		// check token
-		try {
-			j = redisPoolProvider.getPersistentResource();
-			HttpStatus s = this.checkIfExistsAndRw(j, token);
-			if (s != HttpStatus.OK) {
-				response = new ResponseEntity<>(s);
-			} else {
-				LOGGER.debug("OK, make previousing");
-				if (null != name) {
-					String val = j.hget(token, name);
-					if (null == val) {
-						LOGGER.debug("Name unknown");
-						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
-					} else {
-						LOGGER.debug("OK, previousing field in counter");
-						Long newVal = j.hincrBy(token, name, decrement);
-						Counter c = new Counter().count(newVal).name(name).modified(0l);
-						j.hset(token, "__t_" + name, String.valueOf(new Date().getTime()));
-						j.expire(token, DEFAULT_TTL);
-						response = new ResponseEntity<>(c, HttpStatus.OK);
-					}
-				} else {
-					LOGGER.debug("OK, previousing singlecounter");
-					Counter c = this.getTheOnlyOne(j, token);
-					if (null == c) {
-						response = new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-					} else {
-						Long newVal = j.hincrBy(token, c.getName(), decrement);
-						j.hset(token, "__t_" + c.getName(), String.valueOf(new Date().getTime()));
-						j.expire(token, DEFAULT_TTL);
-						response = new ResponseEntity<>(new Counter().count(newVal).name(c.getName()).modified(0l),
-								HttpStatus.OK);
-					}
-				}
-			}
-		} finally {
-			if (null != j) {
-				redisPoolProvider.returnResource(j);
-			}
-		}
-
-		return response;
+		return counterStore.increment(token, name, -decrement);
 	}
 
 	@Override
 	@CrossOrigin
+	@NegotiatedMapping(value = "/counter/reset", method = RequestMethod.GET)
 	public ResponseEntity<Counter> resetCounter(
 			@NotNull @ApiParam(value = "Your access token", required = true) @RequestParam(value = "token", required = true) String token,
 			@ApiParam(value = "Optionally the name of the requested counter, mandatory for grouptokens") @RequestParam(value = "name", required = false) String name,
 			@ApiParam(value = "New value for the counter, default is 1") @RequestParam(value = "initialvalue", required = false) Long initialvalue) {
-		LOGGER.debug("reset-ing Counter " + name + " in " + token);
-		Jedis j = null;
-		ResponseEntity<Counter> response = null;
+		LOGGER.debug("reset-ing Counter {} in {}", name, token);
 		if (initialvalue == null) {
 			initialvalue = 1l;
 		}
-		// check token
-		try {
-			j = redisPoolProvider.getPersistentResource();
-			HttpStatus s = this.checkIfExistsAndRw(j, token);
-			if (s != HttpStatus.OK) {
-				response = new ResponseEntity<>(s);
-			} else {
-				LOGGER.debug("OK, make reset");
-				if (null != name) {
-					String val = j.hget(token, name);
-					if (null == val) {
-						LOGGER.debug("Name unknown");
-						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
-					} else {
-						LOGGER.debug("OK, reset field in counter");
-						j.hset(token, name, initialvalue.toString());
-						j.hset(token, "__t_" + name, String.valueOf(new Date().getTime()));
-						j.expire(token, DEFAULT_TTL);
-						response = new ResponseEntity<>(new Counter().count(initialvalue).name(name).modified(0l),
-								HttpStatus.OK);
-					}
-				} else {
-					LOGGER.debug("OK, previousing singlecounter");
-					Counter c = this.getTheOnlyOne(j, token);
-					if (null == c) {
-						response = new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-					} else {
-						j.hset(token, c.getName(), initialvalue.toString());
-						j.hset(token, "__t_" + c.getName(), String.valueOf(new Date().getTime()));
-						j.expire(token, DEFAULT_TTL);
-						response = new ResponseEntity<>(
-								new Counter().count(initialvalue).name(c.getName()).modified(0l), HttpStatus.OK);
-					}
-				}
-			}
-		} finally {
-			if (null != j) {
-				redisPoolProvider.returnResource(j);
-			}
-		}
-
-		return response;
+		return counterStore.reset(token, name, initialvalue);
 	}
 }
@@ -0,0 +1,165 @@
+package io.countmatic.cmspringserver.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import io.countmatic.cmspringserver.model.HistoryPoint;
+import io.countmatic.cmspringserver.redis.AccessCache;
+import io.countmatic.cmspringserver.redis.AccessCache.Access;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import io.countmatic.cmspringserver.redis.RedisScripts;
+import redis.clients.jedis.Jedis;
+
+/**
+ * History of the increments of counters. Once enabled for a token, the
+ * increment scripts add each increment to buckets per minute, hour and day
+ * within the same script run, see layout.lua. 1440 minutes, 720 hours and 366
+ * days are kept.
+ */
+@Controller
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class CounterHistoryController {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CounterHistoryController.class);
+
+	@Autowired
+	RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	RedisScripts redisScripts;
+
+	@Autowired
+	AccessCache accessCache;
+
+	/**
+	 * The bucket resolutions, as in layout.lua
+	 */
+	private enum Resolution {
+		MINUTE("m", 60000l, 1440), HOUR("h", 3600000l, 720), DAY("d", 86400000l, 366);
+
+		private final String suffix;
+		private final long millis;
+		private final int kept;
+
+		private Resolution(String suffix, long millis, int kept) {
+			this.suffix = suffix;
+			this.millis = millis;
+			this.kept = kept;
+		}
+	}
+
+	/**
+	 * Switch recording the history of a tokens counters on or off. History is
+	 * recorded by the scripts only.
+	 * 
+	 * @param token
+	 * @param enabled
+	 * @return
+	 */
+	@CrossOrigin
+	@RequestMapping(value = "/counter/history/enable", method = RequestMethod.GET)
+	public ResponseEntity<Void> enableHistory(@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "enabled", required = false, defaultValue = "true") boolean enabled) {
+		LOGGER.debug("History of {} enabled: {}", token, enabled);
+		if (!redisScripts.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.NOT_IMPLEMENTED);
+		}
+		Jedis j = null;
+		try {
+			j = redisPoolProvider.getResource(token);
+			Access access = accessCache.get(j, token);
+			if (null == access) {
+				return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+			} else if (!access.isRw()) {
+				return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+			}
+			if (enabled) {
+				j.hset(token, "__h", "1");
+			} else {
+				// recorded buckets expire with the token
+				j.hdel(token, "__h");
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+		return new ResponseEntity<>(HttpStatus.OK);
+	}
+
+	/**
+	 * Time series of the increments of a counter, one point per bucket from
+	 * from to to, empty buckets included
+	 * 
+	 * @param token
+	 *            rw or ro token
+	 * @param name
+	 * @param resolution
+	 *            minute, hour or day
+	 * @param from
+	 *            start in millis, default is 60 buckets before to
+	 * @param to
+	 *            end in millis, default is now
+	 * @return the points
+	 */
+	@CrossOrigin
+	@RequestMapping(value = "/counter/history", method = RequestMethod.GET)
+	public ResponseEntity<List<HistoryPoint>> getHistory(@RequestParam(value = "token", required = true) String token,
+			@RequestParam(value = "name", required = true) String name,
+			@RequestParam(value = "resolution", required = false, defaultValue = "minute") String resolution,
+			@RequestParam(value = "from", required = false) Long from,
+			@RequestParam(value = "to", required = false) Long to) {
+		Resolution r;
+		try {
+			r = Resolution.valueOf(resolution.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		long last = (null == to ? System.currentTimeMillis() : to) / r.millis;
+		long first = null == from ? last - 59 : from / r.millis;
+		if (first > last || last - first >= r.kept) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		Jedis j = null;
+		try {
+			j = redisPoolProvider.getResource(token);
+			Access access = accessCache.get(j, token);
+			String rwToken = token;
+			if (null != access && !access.isRw()) {
+				rwToken = access.getRwToken();
+				access = accessCache.get(j, rwToken);
+			}
+			if (null == access || !j.hexists(rwToken, name)) {
+				return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+			}
+			String[] buckets = new String[(int) (last - first + 1)];
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = String.valueOf(first + i);
+			}
+			List<String> sums = j.hmget(rwToken + ":h:" + r.suffix + ":" + name, buckets);
+			List<HistoryPoint> points = new ArrayList<>(buckets.length);
+			for (int i = 0; i < buckets.length; i++) {
+				points.add(new HistoryPoint().time((first + i) * r.millis)
+						.count(null == sums.get(i) ? 0l : Long.valueOf(sums.get(i))));
+			}
+			return new ResponseEntity<>(points, HttpStatus.OK);
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,250 @@
+package io.countmatic.cmspringserver.controller;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.cmspringserver.redis.AccessCache;
+import io.countmatic.cmspringserver.redis.AccessCache.Access;
+import io.countmatic.cmspringserver.redis.InstrumentedJedisPool;
+import io.countmatic.cmspringserver.redis.RedisEvents;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Server-sent events of counter changes, so dashboards don't have to poll.
+ * Changes are published by the scripts on the redis server holding the token
+ * and reach the subscribers on all instances. Changes of the same counter are
+ * coalesced, so a subscriber gets at most one update per counter and
+ * intervalMillis.
+ * <p>
+ * Events are "counters" with the current counters first and the changed
+ * counters later, "removed" with the names of deleted counters and "closed"
+ * when the token was deleted.
+ */
+@Controller
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class CounterStreamController {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CounterStreamController.class);
+
+	@Autowired
+	CounterController counterController;
+
+	@Autowired
+	RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	RedisEvents redisEvents;
+
+	@Autowired
+	AccessCache accessCache;
+
+	@Value("${countmatic.stream.intervalMillis:1000}")
+	private long intervalMillis;
+
+	@Value("${countmatic.stream.timeoutMillis:600000}")
+	private long timeoutMillis;
+
+	@Value("${countmatic.stream.maxSubscribers:10000}")
+	private int maxSubscribers;
+
+	// by rw token
+	private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+	private final AtomicInteger subscribers = new AtomicInteger();
+	private ScheduledExecutorService sender;
+
+	/**
+	 * The subscribers of one rw token and its changes since the last send
+	 */
+	private final class Subscription {
+		final String token;
+		final InstrumentedJedisPool pool;
+		final Set<SseEmitter> emitters = new CopyOnWriteArraySet<>();
+		final Consumer<String> listener = this::onMessage;
+		// latest change per counter, guarded by the subscription
+		Map<String, Counter> changed = new LinkedHashMap<>();
+		boolean closed;
+
+		Subscription(String token) {
+			this.token = token;
+			this.pool = redisPoolProvider.getPool(token);
+		}
+
+		void onMessage(String message) {
+			synchronized (this) {
+				if (message.isEmpty()) {
+					closed = true;
+					return;
+				}
+				// value:modified:name, name may contain colons
+				int v = message.indexOf(':');
+				int m = message.indexOf(':', v + 1);
+				String name = message.substring(m + 1);
+				Counter c = new Counter().name(name);
+				if (m > v + 1) {
+					c.count(Long.valueOf(message.substring(0, v))).modified(Long.valueOf(message.substring(v + 1, m)));
+				}
+				changed.put(name, c);
+			}
+		}
+	}
+
+	@PostConstruct
+	public void postConstruct() {
+		sender = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "cm-stream-sender");
+			t.setDaemon(true);
+			return t;
+		});
+		sender.scheduleWithFixedDelay(this::sendAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		sender.shutdown();
+		for (Subscription s : subscriptions.values()) {
+			for (SseEmitter emitter : s.emitters) {
+				emitter.complete();
+			}
+		}
+	}
+
+	/**
+	 * Subscribe to the changes of the counters of a rw or ro token
+	 *
+	 * @param token
+	 * @return the event stream
+	 */
+	@CrossOrigin
+	@RequestMapping(value = "/counter/stream", method = RequestMethod.GET, produces = "text/event-stream")
+	public ResponseEntity<SseEmitter> streamChanges(@RequestParam(value = "token", required = true) String token) {
+		LOGGER.debug("Subscribing to {}", token);
+		String rwToken;
+		Jedis j = null;
+		try {
+			j = redisPoolProvider.getResource(token);
+			Access access = accessCache.get(j, token);
+			if (null == access) {
+				return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+			}
+			rwToken = access.isRw() ? token : access.getRwToken();
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+		if (subscribers.incrementAndGet() > maxSubscribers) {
+			subscribers.decrementAndGet();
+			return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+		}
+
+		SseEmitter emitter = new SseEmitter(timeoutMillis);
+		// subscribe before reading, so no change gets lost in between
+		this.add(rwToken, emitter);
+		emitter.onCompletion(() -> this.remove(rwToken, emitter));
+		emitter.onTimeout(() -> this.remove(rwToken, emitter));
+		ResponseEntity<Counters> current = counterController.getCurrentReading(token, null, null);
+		if (current.getStatusCode() != HttpStatus.OK) {
+			this.remove(rwToken, emitter);
+			return new ResponseEntity<>(current.getStatusCode());
+		}
+		this.send(rwToken, emitter, "counters", current.getBody());
+		return new ResponseEntity<>(emitter, HttpStatus.OK);
+	}
+
+	private synchronized void add(String rwToken, SseEmitter emitter) {
+		Subscription s = subscriptions.get(rwToken);
+		if (null == s) {
+			s = new Subscription(rwToken);
+			subscriptions.put(rwToken, s);
+			redisEvents.subscribe(s.pool, RedisEvents.changesChannel(rwToken), s.listener);
+		}
+		s.emitters.add(emitter);
+	}
+
+	private synchronized void remove(String rwToken, SseEmitter emitter) {
+		Subscription s = subscriptions.get(rwToken);
+		if (null != s && s.emitters.remove(emitter)) {
+			subscribers.decrementAndGet();
+			if (s.emitters.isEmpty()) {
+				subscriptions.remove(rwToken);
+				redisEvents.unsubscribe(s.pool, RedisEvents.changesChannel(rwToken), s.listener);
+			}
+		}
+	}
+
+	/**
+	 * Send the coalesced changes of all subscriptions
+	 */
+	private void sendAll() {
+		for (Subscription s : subscriptions.values()) {
+			Map<String, Counter> changed;
+			boolean closed;
+			synchronized (s) {
+				if (s.changed.isEmpty() && !s.closed) {
+					continue;
+				}
+				changed = s.changed;
+				s.changed = new LinkedHashMap<>();
+				closed = s.closed;
+			}
+			Counters counters = new Counters();
+			Counters removed = new Counters();
+			for (Counter c : changed.values()) {
+				(null == c.getCount() ? removed : counters).add(c);
+			}
+			for (SseEmitter emitter : s.emitters) {
+				if (!counters.isEmpty()) {
+					this.send(s.token, emitter, "counters", counters);
+				}
+				if (!removed.isEmpty()) {
+					this.send(s.token, emitter, "removed", removed);
+				}
+				if (closed) {
+					this.send(s.token, emitter, "closed", new Counters());
+					emitter.complete();
+				}
+			}
+		}
+	}
+
+	private void send(String rwToken, SseEmitter emitter, String event, Counters counters) {
+		try {
+			emitter.send(SseEmitter.event().name(event).data(counters));
+		} catch (IOException | IllegalStateException e) {
+			// client gone
+			LOGGER.debug("Dropping subscriber of {}: {}", rwToken, e.getMessage());
+			this.remove(rwToken, emitter);
+		}
+	}
+
+}
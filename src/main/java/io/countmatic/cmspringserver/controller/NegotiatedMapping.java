@@ -0,0 +1,31 @@
+package io.countmatic.cmspringserver.controller;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.springframework.core.annotation.AliasFor;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * A mapping of the counter api producing JSON, CBOR and Smile, see
+ * {@link BinaryFormatConfiguration}. Its responses vary by Accept.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@RequestMapping(produces = { MediaType.APPLICATION_JSON_VALUE, BinaryFormatConfiguration.CBOR_VALUE,
+		BinaryFormatConfiguration.SMILE_VALUE })
+public @interface NegotiatedMapping {
+
+	@AliasFor(annotation = RequestMapping.class)
+	String[] value() default {};
+
+	@AliasFor(annotation = RequestMapping.class)
+	RequestMethod[] method() default {};
+
+}
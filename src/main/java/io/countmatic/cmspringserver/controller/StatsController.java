@@ -1,49 +1,109 @@
 package io.countmatic.cmspringserver.controller;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import io.countmatic.api_v2.spring.model.Counter;
 import io.countmatic.api_v2.spring.model.ServerInfo;
 import io.countmatic.api_v2.spring.server.StatsApi;
+import io.countmatic.cmspringserver.metrics.StatsCollector;
+import io.countmatic.cmspringserver.model.LayoutStats;
+import io.countmatic.cmspringserver.model.PoolStats;
+import io.countmatic.cmspringserver.model.ServerStats;
+import io.countmatic.cmspringserver.redis.CounterLayout;
+import io.countmatic.cmspringserver.redis.InstrumentedJedisPool;
 import io.countmatic.cmspringserver.redis.RedisPoolProvider;
-import redis.clients.jedis.Jedis;
+import io.countmatic.cmspringserver.store.CounterStore;
 
 @Controller
 public class StatsController implements StatsApi {
 
 	@Autowired
+	CounterStore counterStore;
+
+	// none with the embedded store
+	@Autowired(required = false)
 	RedisPoolProvider redisPoolProvider;
+
+	@Autowired(required = false)
+	CounterLayout counterLayout;
 	
+	@Autowired
+	StatsCollector statsCollector;
+
 	@Override
 	@CrossOrigin
 	public ResponseEntity<Counter> getNumberOfCounters() {
-		ResponseEntity<Counter> response = null;
-		Jedis j = null;
-		try {
-			j = redisPoolProvider.getPersistentResource();
-			Long keys = j.dbSize();
-			response = new ResponseEntity<>(new Counter().count(keys).name("dbsize"), HttpStatus.OK);
-		} finally {
-			if (null != j) {
-				redisPoolProvider.returnResource(j);
-			}
-		}
-
-		return response;
+		// from the snapshot, summed up over the shards
+		return new ResponseEntity<>(
+				new Counter().count(statsCollector.getSnapshot().getPersistentKeys()).name("dbsize"), HttpStatus.OK);
 	}
 
 	@Override
 	@CrossOrigin
 	public ResponseEntity<ServerInfo> getServerInfo() {
-        // TODO: impl!
-        return new ResponseEntity<ServerInfo>(new ServerInfo().apiVersion("2.0")
-        		.persistentBackend("redis").volatileBackend("redis")
-        		.currentCounters(redisPoolProvider.getPersistentResource().dbSize())
-        		.maxNamesPerToken(100l).server("cm Spring Boot (v1.5) Server"), HttpStatus.OK);
-    }
-	
+		return new ResponseEntity<ServerInfo>(new ServerInfo().apiVersion("2.0")
+				.persistentBackend(counterStore.backend()).volatileBackend(counterStore.backend())
+				.currentCounters(statsCollector.getSnapshot().getPersistentKeys())
+				.maxNamesPerToken(100l).server("cm Spring Boot (v1.5) Server"), HttpStatus.OK);
+	}
+
+	/**
+	 * Key and token counts, request rates and pool occupancy as of the last
+	 * refresh
+	 * 
+	 * @return
+	 */
+	@CrossOrigin
+	@RequestMapping(value = "/stats/snapshot", method = RequestMethod.GET)
+	public ResponseEntity<ServerStats> getStatsSnapshot() {
+		return new ResponseEntity<>(statsCollector.getSnapshot(), HttpStatus.OK);
+	}
+
+	/**
+	 * Occupancy and borrow wait times of the redis pools
+	 * 
+	 * @return
+	 */
+	@CrossOrigin
+	@RequestMapping(value = "/stats/pools", method = RequestMethod.GET)
+	public ResponseEntity<List<PoolStats>> getPoolStats() {
+		if (null == redisPoolProvider) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+		List<PoolStats> stats = new ArrayList<>();
+		for (InstrumentedJedisPool pool : redisPoolProvider.getPools()) {
+			stats.add(StatsCollector.poolStats(pool));
+		}
+		return new ResponseEntity<>(stats, HttpStatus.OK);
+	}
+
+	/**
+	 * Memory used by a sample of tokens in the legacy and in the compact layout
+	 * 
+	 * @param samples
+	 * @return
+	 */
+	@CrossOrigin
+	@RequestMapping(value = "/stats/layout", method = RequestMethod.GET)
+	public ResponseEntity<List<LayoutStats>> getLayoutStats(
+			@RequestParam(value = "samples", required = false, defaultValue = "100") int samples) {
+		if (null == counterLayout) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+		if (samples < 1 || samples > 10000) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<>(counterLayout.report(samples), HttpStatus.OK);
+	}
+
 }
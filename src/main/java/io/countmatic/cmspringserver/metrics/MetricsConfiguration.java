@@ -0,0 +1,23 @@
+package io.countmatic.cmspringserver.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+/**
+ * Hooks the request metrics into the MVC handling. The metrics are exported by
+ * the prometheus endpoint of the actuator.
+ */
+@Configuration
+public class MetricsConfiguration extends WebMvcConfigurerAdapter {
+
+	@Autowired
+	private RequestMetrics requestMetrics;
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(requestMetrics);
+	}
+
+}
@@ -0,0 +1,41 @@
+package io.countmatic.cmspringserver.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import io.countmatic.cmspringserver.redis.InstrumentedJedisPool;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Commands, time in redis and occupancy of all redis pools, including those
+ * used in the background
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class RedisPoolMetrics implements MeterBinder {
+
+	@Autowired
+	private RedisPoolProvider redisPoolProvider;
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		for (InstrumentedJedisPool pool : redisPoolProvider.getPools()) {
+			String name = pool.getName();
+			FunctionCounter.builder("countmatic.redis.commands", pool, InstrumentedJedisPool::getCommands)
+					.description("Commands sent").tags("pool", name).register(registry);
+			FunctionCounter.builder("countmatic.redis.time", pool, p -> p.getRedisNanos() / 1e9).baseUnit("seconds")
+					.description("Time spent sending commands and waiting for replies").tags("pool", name)
+					.register(registry);
+			Gauge.builder("countmatic.redis.pool.active", pool, InstrumentedJedisPool::getNumActive)
+					.description("Borrowed connections").tags("pool", name).register(registry);
+			Gauge.builder("countmatic.redis.pool.waiters", pool, InstrumentedJedisPool::getNumWaiters)
+					.description("Callers waiting for a connection").tags("pool", name).register(registry);
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package io.countmatic.cmspringserver.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import io.countmatic.cmspringserver.redis.RequestStats;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Times the API operations and records the redis commands and the time spent
+ * in redis per operation and pool:
+ * <ul>
+ * <li>countmatic.requests, by operation, status and async</li>
+ * <li>countmatic.requests.redis, time in redis by operation and pool</li>
+ * <li>countmatic.requests.redis.commands, by operation and pool</li>
+ * </ul>
+ * Async requests are timed from their first dispatch to their completion.
+ */
+@Component
+public class RequestMetrics extends HandlerInterceptorAdapter {
+
+	private static final String STATS = RequestMetrics.class.getName() + ".stats";
+	private static final String START = RequestMetrics.class.getName() + ".start";
+	private static final String ASYNC = RequestMetrics.class.getName() + ".async";
+
+	// handler methods of the counter API to operations, others by method name
+	private static final Map<String, String> OPERATIONS = new HashMap<>();
+
+	static {
+		OPERATIONS.put("getNewCounter", "new");
+		OPERATIONS.put("getNewEphemeralCounter", "new");
+		OPERATIONS.put("addCounter", "add");
+		OPERATIONS.put("deleteCounter", "delete");
+		OPERATIONS.put("getCurrentReading", "read");
+		OPERATIONS.put("getCurrentReadingPage", "read-page");
+		OPERATIONS.put("streamCurrentReading", "read-stream");
+		OPERATIONS.put("getReadOnlyToken", "ro-token");
+		OPERATIONS.put("nextNumber", "next");
+		OPERATIONS.put("previousNumber", "previous");
+		OPERATIONS.put("resetCounter", "reset");
+		OPERATIONS.put("nextNumbers", "batch");
+	}
+
+	@Autowired
+	private MeterRegistry registry;
+
+	// completed requests by operation, for the rates of the stats
+	private final ConcurrentMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		// called again when an async request is dispatched back
+		RequestStats stats = (RequestStats) request.getAttribute(STATS);
+		if (null == stats) {
+			stats = new RequestStats();
+			request.setAttribute(STATS, stats);
+			request.setAttribute(START, System.nanoTime());
+		}
+		RequestStats.attach(stats);
+		return true;
+	}
+
+	@Override
+	public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+			Object handler) {
+		request.setAttribute(ASYNC, Boolean.TRUE);
+		RequestStats.detach();
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) {
+		RequestStats.detach();
+		RequestStats stats = (RequestStats) request.getAttribute(STATS);
+		if (null == stats || !(handler instanceof HandlerMethod)) {
+			return;
+		}
+		long nanos = System.nanoTime() - (Long) request.getAttribute(START);
+		String operation = operationOf((HandlerMethod) handler);
+		requests.computeIfAbsent(operation, o -> new LongAdder()).increment();
+		Timer.builder("countmatic.requests").description("API operations").tags("operation", operation, "status",
+				String.valueOf(response.getStatus()), "async", String.valueOf(null != request.getAttribute(ASYNC)))
+				.publishPercentileHistogram().register(registry).record(nanos, TimeUnit.NANOSECONDS);
+		for (Map.Entry<String, long[]> e : stats.getPools().entrySet()) {
+			Timer.builder("countmatic.requests.redis").description("Time in redis per API operation")
+					.tags("operation", operation, "pool", e.getKey()).publishPercentileHistogram().register(registry)
+					.record(e.getValue()[1], TimeUnit.NANOSECONDS);
+			DistributionSummary.builder("countmatic.requests.redis.commands")
+					.description("Redis commands per API operation").tags("operation", operation, "pool", e.getKey())
+					.register(registry).record(e.getValue()[0]);
+		}
+	}
+
+	/**
+	 * @return completed requests by operation since the start
+	 */
+	public Map<String, Long> getRequestCounts() {
+		Map<String, Long> counts = new HashMap<>();
+		for (Map.Entry<String, LongAdder> e : requests.entrySet()) {
+			counts.put(e.getKey(), e.getValue().sum());
+		}
+		return counts;
+	}
+
+	private static String operationOf(HandlerMethod handler) {
+		String method = handler.getMethod().getName();
+		String operation = OPERATIONS.get(method);
+		return null == operation ? method : operation;
+	}
+
+}
@@ -0,0 +1,226 @@
+package io.countmatic.cmspringserver.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.countmatic.cmspringserver.model.PoolStats;
+import io.countmatic.cmspringserver.model.ServerStats;
+import io.countmatic.cmspringserver.redis.InstrumentedJedisPool;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import io.countmatic.cmspringserver.redis.Tier;
+import io.countmatic.cmspringserver.store.CounterStore;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Keeps a snapshot of the statistics, so polling them costs no store calls.
+ * Key counts and request rates are refreshed every refreshMillis, the tokens
+ * are counted by a full SCAN every scanMillis.
+ * <p>
+ * With redis the instances sharing it take turns: the one getting the lock
+ * counts and publishes the counts to a shared key, the others take them from
+ * there on refresh, so there's one SCAN per scanMillis whatever the number of
+ * instances.
+ */
+@Component
+public class StatsCollector {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StatsCollector.class);
+
+	// held by the instance counting, expires after scanMillis
+	static final String SCAN_LOCK = "countmatic:stats:scan";
+	// the last counts, fields as in TOKEN_FIELDS
+	static final String TOKENS_KEY = "countmatic:stats:tokens";
+	private static final String[] TOKEN_FIELDS = { "rw", "ro", "volatile", "counted" };
+
+	@Autowired
+	private CounterStore counterStore;
+
+	// none with the embedded store
+	@Autowired(required = false)
+	private RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	private RequestMetrics requestMetrics;
+
+	@Value("${countmatic.stats.refreshMillis:10000}")
+	private long refreshMillis;
+
+	@Value("${countmatic.stats.scanMillis:600000}")
+	private long scanMillis;
+
+	private volatile ServerStats snapshot = new ServerStats().refreshed(0l).persistentKeys(0l).volatileKeys(0l)
+			.requestsPerSecond(new HashMap<>()).pools(new ArrayList<>());
+	// { rw, ro, volatile, time } of the last count
+	private volatile long[] tokens;
+	private Map<String, Long> lastRequests = new HashMap<>();
+	private ScheduledExecutorService scheduler;
+	private final String instance = UUID.randomUUID().toString();
+
+	@PostConstruct
+	public void postConstruct() {
+		final AtomicInteger count = new AtomicInteger();
+		scheduler = Executors.newScheduledThreadPool(2, r -> {
+			Thread t = new Thread(r, "cm-stats-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshMillis, TimeUnit.MILLISECONDS);
+		if (scanMillis > 0) {
+			scheduler.scheduleWithFixedDelay(this::countTokens, 0, scanMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return the latest snapshot, never null
+	 */
+	public ServerStats getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @param pool
+	 * @return the current occupancy and wait times of a pool
+	 */
+	public static PoolStats poolStats(InstrumentedJedisPool pool) {
+		return new PoolStats().name(pool.getName()).maxTotal(pool.getMaxTotal()).active(pool.getNumActive())
+				.idle(pool.getNumIdle()).waiters(pool.getNumWaiters()).created(pool.getCreatedCount())
+				.destroyed(pool.getDestroyedCount()).meanBorrowWaitMillis(pool.getMeanBorrowWaitTimeMillis())
+				.maxBorrowWaitMillis(pool.getMaxBorrowWaitTimeMillis())
+				.borrowWaitMillis(pool.getBorrowWait().snapshot());
+	}
+
+	void refresh() {
+		try {
+			long now = System.currentTimeMillis();
+			ServerStats s = new ServerStats().refreshed(now).persistentKeys(counterStore.size(Tier.PERSISTENT))
+					.volatileKeys(counterStore.size(Tier.VOLATILE));
+			// rates since the previous refresh
+			Map<String, Long> requests = requestMetrics.getRequestCounts();
+			Map<String, Double> rates = new HashMap<>();
+			double seconds = (now - snapshot.getRefreshed()) / 1000.0;
+			for (Map.Entry<String, Long> e : requests.entrySet()) {
+				Long last = lastRequests.get(e.getKey());
+				rates.put(e.getKey(), (e.getValue() - (null == last ? 0 : last)) / seconds);
+			}
+			lastRequests = requests;
+			s.requestsPerSecond(rates);
+			List<PoolStats> pools = new ArrayList<>();
+			if (null != redisPoolProvider) {
+				for (InstrumentedJedisPool pool : redisPoolProvider.getPools()) {
+					pools.add(poolStats(pool));
+				}
+			}
+			s.pools(pools);
+			if (null != redisPoolProvider) {
+				this.readTokens();
+			}
+			long[] t = tokens;
+			if (null != t) {
+				s.rwTokens(t[0]).roTokens(t[1]).volatileTokens(t[2]).tokensCounted(t[3]);
+			}
+			snapshot = s;
+		} catch (RuntimeException e) {
+			LOGGER.warn("Refreshing stats failed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Count the tokens by type, auxiliary keys like the history are skipped.
+	 * With redis only if no other instance did within scanMillis.
+	 */
+	void countTokens() {
+		try {
+			if (null != redisPoolProvider && !this.lockScan()) {
+				LOGGER.debug("Tokens counted by another instance");
+				return;
+			}
+			long[] t = new long[4];
+			for (Tier tier : Tier.values()) {
+				counterStore.scan(tier, key -> {
+					if (key.indexOf(':') >= 0) {
+						return;
+					}
+					if (Tier.of(key) == Tier.VOLATILE) {
+						t[2]++;
+					} else if (key.endsWith(Tier.PERSISTENT.postfix(true))) {
+						t[1]++;
+					} else if (key.endsWith(Tier.PERSISTENT.postfix(false))) {
+						t[0]++;
+					}
+				});
+			}
+			t[3] = System.currentTimeMillis();
+			tokens = t;
+			if (null != redisPoolProvider) {
+				this.publishTokens(t);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.warn("Counting tokens failed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return true if this instance is to count the tokens now
+	 */
+	private boolean lockScan() {
+		try (Jedis j = redisPoolProvider.getResource(SCAN_LOCK)) {
+			return null != j.set(SCAN_LOCK, instance, "NX", "PX", scanMillis);
+		}
+	}
+
+	/**
+	 * Share the counts with the other instances, until two counts were missed
+	 *
+	 * @param t
+	 */
+	private void publishTokens(long[] t) {
+		Map<String, String> hash = new HashMap<>();
+		for (int i = 0; i < TOKEN_FIELDS.length; i++) {
+			hash.put(TOKEN_FIELDS[i], String.valueOf(t[i]));
+		}
+		try (Jedis j = redisPoolProvider.getResource(TOKENS_KEY)) {
+			j.hmset(TOKENS_KEY, hash);
+			j.pexpire(TOKENS_KEY, 2 * scanMillis);
+		}
+	}
+
+	/**
+	 * Take the counts of whichever instance counted last
+	 */
+	private void readTokens() {
+		List<String> shared;
+		try (Jedis j = redisPoolProvider.getResource(TOKENS_KEY)) {
+			shared = j.hmget(TOKENS_KEY, TOKEN_FIELDS);
+		}
+		if (null == shared.get(3)) {
+			return;
+		}
+		long[] t = new long[4];
+		for (int i = 0; i < t.length; i++) {
+			t[i] = Long.parseLong(shared.get(i));
+		}
+		tokens = t;
+	}
+
+}
@@ -0,0 +1,87 @@
+package io.countmatic.cmspringserver.model;
+
+import java.util.Objects;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * One increment within a batch
+ */
+public class CounterIncrement {
+
+	private String token;
+	private String name;
+	private Long increment;
+
+	public CounterIncrement token(String token) {
+		this.token = token;
+		return this;
+	}
+
+	/**
+	 * @return the token of the counter, if not given the batch token is used
+	 */
+	@ApiModelProperty(value = "Access token of the counter, defaults to the token of the batch")
+	public String getToken() {
+		return token;
+	}
+
+	public void setToken(String token) {
+		this.token = token;
+	}
+
+	public CounterIncrement name(String name) {
+		this.name = name;
+		return this;
+	}
+
+	@ApiModelProperty(required = true, value = "The name of the counter")
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public CounterIncrement increment(Long increment) {
+		this.increment = increment;
+		return this;
+	}
+
+	/**
+	 * @return the value to add, negative to decrement
+	 */
+	@ApiModelProperty(value = "Value to add to the counter, negative to substract, default is 1")
+	public Long getIncrement() {
+		return increment;
+	}
+
+	public void setIncrement(Long increment) {
+		this.increment = increment;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		CounterIncrement other = (CounterIncrement) o;
+		return Objects.equals(token, other.token) && Objects.equals(name, other.name)
+				&& Objects.equals(increment, other.increment);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(token, name, increment);
+	}
+
+	@Override
+	public String toString() {
+		return "CounterIncrement {token: " + token + ", name: " + name + ", increment: " + increment + "}";
+	}
+
+}
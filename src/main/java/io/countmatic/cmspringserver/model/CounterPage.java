@@ -0,0 +1,42 @@
+package io.countmatic.cmspringserver.model;
+
+import io.countmatic.api_v2.spring.model.Counters;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * One page of the counters of a token
+ */
+public class CounterPage {
+
+	private String cursor;
+	private Counters counters;
+
+	public CounterPage cursor(String cursor) {
+		this.cursor = cursor;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Cursor of the next page, 0 on the last page")
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+	public CounterPage counters(Counters counters) {
+		this.counters = counters;
+		return this;
+	}
+
+	@ApiModelProperty(value = "The counters of this page")
+	public Counters getCounters() {
+		return counters;
+	}
+
+	public void setCounters(Counters counters) {
+		this.counters = counters;
+	}
+
+}
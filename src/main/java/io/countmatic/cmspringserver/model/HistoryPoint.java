@@ -0,0 +1,41 @@
+package io.countmatic.cmspringserver.model;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Sum of the increments of a counter within one time bucket
+ */
+public class HistoryPoint {
+
+	private Long time;
+	private Long count;
+
+	public HistoryPoint time(Long time) {
+		this.time = time;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Start of the bucket in millis")
+	public Long getTime() {
+		return time;
+	}
+
+	public void setTime(Long time) {
+		this.time = time;
+	}
+
+	public HistoryPoint count(Long count) {
+		this.count = count;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Sum of the increments within the bucket")
+	public Long getCount() {
+		return count;
+	}
+
+	public void setCount(Long count) {
+		this.count = count;
+	}
+
+}
@@ -0,0 +1,56 @@
+package io.countmatic.cmspringserver.model;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Outcome of an import, with the line it stopped at if it failed
+ */
+public class ImportResult {
+
+	private Long imported;
+	private Long line;
+	private String error;
+
+	public ImportResult imported(Long imported) {
+		this.imported = imported;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Number of keys written, including those before a failing line")
+	public Long getImported() {
+		return imported;
+	}
+
+	public void setImported(Long imported) {
+		this.imported = imported;
+	}
+
+	public ImportResult line(Long line) {
+		this.line = line;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Line the import stopped at, null if it completed")
+	public Long getLine() {
+		return line;
+	}
+
+	public void setLine(Long line) {
+		this.line = line;
+	}
+
+	public ImportResult error(String error) {
+		this.error = error;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Why the import stopped, null if it completed")
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+}
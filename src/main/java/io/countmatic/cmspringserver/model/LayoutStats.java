@@ -0,0 +1,101 @@
+package io.countmatic.cmspringserver.model;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Memory used by a sample of tokens in one storage layout
+ */
+public class LayoutStats {
+
+	private String layout;
+	private Long tokens;
+	private Long counters;
+	private Long bytes;
+	private Double bytesPerCounter;
+	private Long packedTokens;
+
+	public LayoutStats layout(String layout) {
+		this.layout = layout;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Storage layout, legacy or compact")
+	public String getLayout() {
+		return layout;
+	}
+
+	public void setLayout(String layout) {
+		this.layout = layout;
+	}
+
+	public LayoutStats tokens(Long tokens) {
+		this.tokens = tokens;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Number of sampled tokens")
+	public Long getTokens() {
+		return tokens;
+	}
+
+	public void setTokens(Long tokens) {
+		this.tokens = tokens;
+	}
+
+	public LayoutStats counters(Long counters) {
+		this.counters = counters;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Number of counters in the sampled tokens")
+	public Long getCounters() {
+		return counters;
+	}
+
+	public void setCounters(Long counters) {
+		this.counters = counters;
+	}
+
+	public LayoutStats bytes(Long bytes) {
+		this.bytes = bytes;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Memory used by the sampled tokens in bytes")
+	public Long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(Long bytes) {
+		this.bytes = bytes;
+	}
+
+	public LayoutStats bytesPerCounter(Double bytesPerCounter) {
+		this.bytesPerCounter = bytesPerCounter;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Memory used per counter in bytes")
+	public Double getBytesPerCounter() {
+		return bytesPerCounter;
+	}
+
+	public void setBytesPerCounter(Double bytesPerCounter) {
+		this.bytesPerCounter = bytesPerCounter;
+	}
+
+	public LayoutStats packedTokens(Long packedTokens) {
+		this.packedTokens = packedTokens;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Sampled tokens in redis' compact hash encoding (ziplist or listpack)")
+	public Long getPackedTokens() {
+		return packedTokens;
+	}
+
+	public void setPackedTokens(Long packedTokens) {
+		this.packedTokens = packedTokens;
+	}
+
+}
@@ -0,0 +1,163 @@
+package io.countmatic.cmspringserver.model;
+
+import java.util.Map;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Occupancy and wait times of a redis connection pool
+ */
+public class PoolStats {
+
+	private String name;
+	private Integer maxTotal;
+	private Integer active;
+	private Integer idle;
+	private Integer waiters;
+	private Long created;
+	private Long destroyed;
+	private Long meanBorrowWaitMillis;
+	private Long maxBorrowWaitMillis;
+	private Map<String, Long> borrowWaitMillis;
+
+	public PoolStats name(String name) {
+		this.name = name;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Name of the pool")
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public PoolStats maxTotal(Integer maxTotal) {
+		this.maxTotal = maxTotal;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Max number of connections")
+	public Integer getMaxTotal() {
+		return maxTotal;
+	}
+
+	public void setMaxTotal(Integer maxTotal) {
+		this.maxTotal = maxTotal;
+	}
+
+	public PoolStats active(Integer active) {
+		this.active = active;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Connections in use")
+	public Integer getActive() {
+		return active;
+	}
+
+	public void setActive(Integer active) {
+		this.active = active;
+	}
+
+	public PoolStats idle(Integer idle) {
+		this.idle = idle;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Idle connections")
+	public Integer getIdle() {
+		return idle;
+	}
+
+	public void setIdle(Integer idle) {
+		this.idle = idle;
+	}
+
+	public PoolStats waiters(Integer waiters) {
+		this.waiters = waiters;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Threads waiting for a connection")
+	public Integer getWaiters() {
+		return waiters;
+	}
+
+	public void setWaiters(Integer waiters) {
+		this.waiters = waiters;
+	}
+
+	public PoolStats created(Long created) {
+		this.created = created;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Connections created since start")
+	public Long getCreated() {
+		return created;
+	}
+
+	public void setCreated(Long created) {
+		this.created = created;
+	}
+
+	public PoolStats destroyed(Long destroyed) {
+		this.destroyed = destroyed;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Connections destroyed since start")
+	public Long getDestroyed() {
+		return destroyed;
+	}
+
+	public void setDestroyed(Long destroyed) {
+		this.destroyed = destroyed;
+	}
+
+	public PoolStats meanBorrowWaitMillis(Long meanBorrowWaitMillis) {
+		this.meanBorrowWaitMillis = meanBorrowWaitMillis;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Mean wait for a connection of recent borrows")
+	public Long getMeanBorrowWaitMillis() {
+		return meanBorrowWaitMillis;
+	}
+
+	public void setMeanBorrowWaitMillis(Long meanBorrowWaitMillis) {
+		this.meanBorrowWaitMillis = meanBorrowWaitMillis;
+	}
+
+	public PoolStats maxBorrowWaitMillis(Long maxBorrowWaitMillis) {
+		this.maxBorrowWaitMillis = maxBorrowWaitMillis;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Max wait for a connection since start")
+	public Long getMaxBorrowWaitMillis() {
+		return maxBorrowWaitMillis;
+	}
+
+	public void setMaxBorrowWaitMillis(Long maxBorrowWaitMillis) {
+		this.maxBorrowWaitMillis = maxBorrowWaitMillis;
+	}
+
+	public PoolStats borrowWaitMillis(Map<String, Long> borrowWaitMillis) {
+		this.borrowWaitMillis = borrowWaitMillis;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Histogram of borrow waits, number of borrows by upper bound in millis")
+	public Map<String, Long> getBorrowWaitMillis() {
+		return borrowWaitMillis;
+	}
+
+	public void setBorrowWaitMillis(Map<String, Long> borrowWaitMillis) {
+		this.borrowWaitMillis = borrowWaitMillis;
+	}
+
+}
@@ -0,0 +1,149 @@
+package io.countmatic.cmspringserver.model;
+
+import java.util.List;
+import java.util.Map;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Snapshot of the server and redis statistics, refreshed in the background
+ */
+public class ServerStats {
+
+	private Long refreshed;
+	private Long persistentKeys;
+	private Long volatileKeys;
+	private Long rwTokens;
+	private Long roTokens;
+	private Long volatileTokens;
+	private Long tokensCounted;
+	private Map<String, Double> requestsPerSecond;
+	private List<PoolStats> pools;
+
+	public ServerStats refreshed(Long refreshed) {
+		this.refreshed = refreshed;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Time of the snapshot in millis")
+	public Long getRefreshed() {
+		return refreshed;
+	}
+
+	public void setRefreshed(Long refreshed) {
+		this.refreshed = refreshed;
+	}
+
+	public ServerStats persistentKeys(Long persistentKeys) {
+		this.persistentKeys = persistentKeys;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Keys in the persistent redis servers")
+	public Long getPersistentKeys() {
+		return persistentKeys;
+	}
+
+	public void setPersistentKeys(Long persistentKeys) {
+		this.persistentKeys = persistentKeys;
+	}
+
+	public ServerStats volatileKeys(Long volatileKeys) {
+		this.volatileKeys = volatileKeys;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Keys in the volatile redis servers")
+	public Long getVolatileKeys() {
+		return volatileKeys;
+	}
+
+	public void setVolatileKeys(Long volatileKeys) {
+		this.volatileKeys = volatileKeys;
+	}
+
+	public ServerStats rwTokens(Long rwTokens) {
+		this.rwTokens = rwTokens;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Persistent rw tokens as of tokensCounted, null if not counted yet")
+	public Long getRwTokens() {
+		return rwTokens;
+	}
+
+	public void setRwTokens(Long rwTokens) {
+		this.rwTokens = rwTokens;
+	}
+
+	public ServerStats roTokens(Long roTokens) {
+		this.roTokens = roTokens;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Persistent ro tokens as of tokensCounted, null if not counted yet")
+	public Long getRoTokens() {
+		return roTokens;
+	}
+
+	public void setRoTokens(Long roTokens) {
+		this.roTokens = roTokens;
+	}
+
+	public ServerStats volatileTokens(Long volatileTokens) {
+		this.volatileTokens = volatileTokens;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Volatile rw and ro tokens as of tokensCounted, null if not counted yet")
+	public Long getVolatileTokens() {
+		return volatileTokens;
+	}
+
+	public void setVolatileTokens(Long volatileTokens) {
+		this.volatileTokens = volatileTokens;
+	}
+
+	public ServerStats tokensCounted(Long tokensCounted) {
+		this.tokensCounted = tokensCounted;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Time the tokens were last counted in millis")
+	public Long getTokensCounted() {
+		return tokensCounted;
+	}
+
+	public void setTokensCounted(Long tokensCounted) {
+		this.tokensCounted = tokensCounted;
+	}
+
+	public ServerStats requestsPerSecond(Map<String, Double> requestsPerSecond) {
+		this.requestsPerSecond = requestsPerSecond;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Requests per second by operation since the previous snapshot")
+	public Map<String, Double> getRequestsPerSecond() {
+		return requestsPerSecond;
+	}
+
+	public void setRequestsPerSecond(Map<String, Double> requestsPerSecond) {
+		this.requestsPerSecond = requestsPerSecond;
+	}
+
+	public ServerStats pools(List<PoolStats> pools) {
+		this.pools = pools;
+		return this;
+	}
+
+	@ApiModelProperty(value = "Occupancy of the redis pools")
+	public List<PoolStats> getPools() {
+		return pools;
+	}
+
+	public void setPools(List<PoolStats> pools) {
+		this.pools = pools;
+	}
+
+}
@@ -0,0 +1,164 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Bounded local cache of the access metadata of tokens, i.e. the access level
+ * and the rw token a ro token reads from. Only existing tokens are cached.
+ * Deleted tokens are evicted on all instances by a pub/sub message carrying
+ * one or several tokens separated by newlines, tokens expired by redis drop
+ * out by the cache TTL.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class AccessCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AccessCache.class);
+
+	public static final String INVALIDATION_CHANNEL = "countmatic:invalidate";
+
+	@Autowired
+	private RedisEvents redisEvents;
+
+	@Value("${countmatic.accessCache.size:10000}")
+	private int size;
+
+	@Value("${countmatic.accessCache.ttlSeconds:60}")
+	private int ttlSeconds;
+
+	private Map<String, Access> cache;
+
+	/**
+	 * Access metadata of a token
+	 */
+	public static final class Access {
+		private final String access;
+		private final String rwToken;
+		private final long expires;
+
+		private Access(String access, String rwToken, long expires) {
+			this.access = access;
+			this.rwToken = rwToken;
+			this.expires = expires;
+		}
+
+		public boolean isRw() {
+			return "rw".equals(access);
+		}
+
+		/**
+		 * @return the rw token of a ro token
+		 */
+		public String getRwToken() {
+			return rwToken;
+		}
+	}
+
+	@PostConstruct
+	public void postConstruct() {
+		final int max = size;
+		this.cache = Collections.synchronizedMap(new LinkedHashMap<String, Access>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Access> eldest) {
+				return size() > max;
+			}
+		});
+		if (isEnabled()) {
+			redisEvents.subscribe(INVALIDATION_CHANNEL, this::evict);
+		}
+	}
+
+	public boolean isEnabled() {
+		return size > 0;
+	}
+
+	/**
+	 * Get the access metadata of a token, from redis if not cached
+	 *
+	 * @param j
+	 * @param token
+	 * @return the metadata or null if the token is unknown
+	 */
+	public Access get(Jedis j, String token) {
+		long now = System.currentTimeMillis();
+		Access a = isEnabled() ? cache.get(token) : null;
+		if (null == a || a.expires < now) {
+			List<String> meta = j.hmget(token, "__access", "__token");
+			if (null == meta.get(0)) {
+				cache.remove(token);
+				return null;
+			}
+			a = new Access(meta.get(0), meta.get(1), now + ttlSeconds * 1000L);
+			if (isEnabled()) {
+				cache.put(token, a);
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Drop a deleted token from the caches of all instances
+	 *
+	 * @param token
+	 */
+	public void invalidate(String token) {
+		if (isEnabled()) {
+			cache.remove(token);
+			LOGGER.debug("Invalidating {}", token);
+			redisEvents.publish(INVALIDATION_CHANNEL, token);
+		}
+	}
+
+	/**
+	 * Like {@link #invalidate}, without waiting for the message to be sent
+	 *
+	 * @param token
+	 * @return completes when the message is sent
+	 */
+	public CompletableFuture<Long> invalidateAsync(String token) {
+		if (!isEnabled()) {
+			return CompletableFuture.completedFuture(0l);
+		}
+		cache.remove(token);
+		LOGGER.debug("Invalidating {}", token);
+		return redisEvents.publishAsync(INVALIDATION_CHANNEL, token);
+	}
+
+	/**
+	 * Drop replaced tokens from the caches of all instances with one message
+	 *
+	 * @param tokens
+	 */
+	public void invalidateAll(Collection<String> tokens) {
+		if (isEnabled() && !tokens.isEmpty()) {
+			tokens.forEach(cache::remove);
+			LOGGER.debug("Invalidating {} tokens", tokens.size());
+			redisEvents.publish(INVALIDATION_CHANNEL, String.join("\n", tokens));
+		}
+	}
+
+	private void evict(String message) {
+		for (String token : message.split("\n")) {
+			cache.remove(token);
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.lambdaworks.redis.RedisClient;
+import com.lambdaworks.redis.RedisCommandExecutionException;
+import com.lambdaworks.redis.RedisURI;
+import com.lambdaworks.redis.ScriptOutputType;
+import com.lambdaworks.redis.api.StatefulRedisConnection;
+import com.lambdaworks.redis.api.async.RedisAsyncCommands;
+import com.lambdaworks.redis.resource.ClientResources;
+import com.lambdaworks.redis.resource.DefaultClientResources;
+
+import io.countmatic.cmspringserver.redis.RedisScripts.Script;
+
+/**
+ * Non-blocking access to the redis servers of the pools by lettuce, for the
+ * async API. Each server gets one connection, opened on first use, which all
+ * requests share: commands are written as they come and the replies complete
+ * their futures on lettuce's event loop, shared by all connections, so no
+ * thread waits for redis.
+ * Commands and time in redis are recorded like those of the pooled jedis
+ * connections.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class AsyncRedis {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRedis.class);
+
+	@Autowired
+	private RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	private RedisScripts redisScripts;
+
+	// the event loops of all clients
+	private final ClientResources resources = DefaultClientResources.create();
+	private final Map<InstrumentedJedisPool, RedisClient> clients = new ConcurrentHashMap<>();
+	private final Map<InstrumentedJedisPool, StatefulRedisConnection<String, String>> connections = new ConcurrentHashMap<>();
+
+	@PreDestroy
+	public void preDestroy() {
+		connections.values().forEach(StatefulRedisConnection::close);
+		clients.values().forEach(RedisClient::shutdown);
+		resources.shutdown();
+	}
+
+	/**
+	 * @param pool
+	 * @return the commands of the connection to the server of a pool
+	 */
+	public RedisAsyncCommands<String, String> commands(InstrumentedJedisPool pool) {
+		return connections.computeIfAbsent(pool, this::connect).async();
+	}
+
+	private StatefulRedisConnection<String, String> connect(InstrumentedJedisPool pool) {
+		RedisURI.Builder uri = RedisURI.Builder.redis(pool.getHost(), pool.getPort())
+				.withDatabase(redisPoolProvider.getDatabase())
+				.withTimeout(redisPoolProvider.getReadTimeout(), TimeUnit.MILLISECONDS);
+		if (null != redisPoolProvider.getPassword()) {
+			uri.withPassword(redisPoolProvider.getPassword());
+		}
+		RedisClient client = RedisClient.create(resources, uri.build());
+		clients.put(pool, client);
+		LOGGER.info("Connecting async client to {}", pool.getServer());
+		return client.connect();
+	}
+
+	/**
+	 * Send a command to the server of a pool and record it
+	 *
+	 * @param pool
+	 * @param command
+	 * @return the reply
+	 */
+	public <T> CompletableFuture<T> send(InstrumentedJedisPool pool, Supplier<CompletionStage<T>> command) {
+		RequestStats stats = RequestStats.current();
+		long start = System.nanoTime();
+		pool.recordCommand();
+		if (null != stats) {
+			stats.command(pool.getName());
+		}
+		return command.get().whenComplete((reply, e) -> {
+			long nanos = System.nanoTime() - start;
+			pool.recordNanos(nanos);
+			if (null != stats) {
+				stats.time(pool.getName(), nanos);
+			}
+		}).toCompletableFuture();
+	}
+
+	/**
+	 * Run a script by its sha, sent in full if the server doesn't know it,
+	 * like {@link RedisScripts#eval}
+	 *
+	 * @param pool
+	 *            of the server holding the keys
+	 * @param script
+	 * @param keys
+	 * @param args
+	 * @return the scripts reply, bulk strings decoded
+	 */
+	public CompletableFuture<List<Object>> eval(InstrumentedJedisPool pool, Script script, String[] keys,
+			String... args) {
+		RedisAsyncCommands<String, String> commands = commands(pool);
+		CompletableFuture<List<Object>> reply = send(pool,
+				() -> commands.<List<Object>> evalsha(redisScripts.sha(script), ScriptOutputType.MULTI, keys, args));
+		return reply.handle((r, e) -> {
+			if (null == e) {
+				return CompletableFuture.completedFuture(r);
+			}
+			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+			if (cause instanceof RedisCommandExecutionException
+					&& String.valueOf(cause.getMessage()).startsWith("NOSCRIPT")) {
+				LOGGER.info("Script {} not loaded, sending source", script);
+				return send(pool, () -> commands.<List<Object>> eval(redisScripts.source(script),
+						ScriptOutputType.MULTI, keys, args));
+			}
+			CompletableFuture<List<Object>> failed = new CompletableFuture<>();
+			failed.completeExceptionally(cause);
+			return failed;
+		}).thenCompose(f -> f);
+	}
+
+}
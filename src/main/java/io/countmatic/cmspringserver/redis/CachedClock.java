@@ -0,0 +1,38 @@
+package io.countmatic.cmspringserver.redis;
+
+/**
+ * Current time in millis as passed to redis. The decimal string is built once
+ * per millisecond and shared by all requests within it.
+ */
+public final class CachedClock {
+
+	private static final class Tick {
+		final long millis;
+		final String text;
+
+		Tick(long millis) {
+			this.millis = millis;
+			this.text = Long.toString(millis);
+		}
+	}
+
+	private static volatile Tick tick = new Tick(System.currentTimeMillis());
+
+	private CachedClock() {
+	}
+
+	/**
+	 * @return the current time in millis as decimal string
+	 */
+	public static String text() {
+		long now = System.currentTimeMillis();
+		Tick t = tick;
+		if (t.millis != now) {
+			// racing threads may each build one, any of them will do
+			t = new Tick(now);
+			tick = t;
+		}
+		return t.text;
+	}
+
+}
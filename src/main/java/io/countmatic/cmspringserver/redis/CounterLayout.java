@@ -0,0 +1,182 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import io.countmatic.cmspringserver.model.LayoutStats;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * Storage layout of the counter hashes, see layout.lua. The legacy layout
+ * keeps each timestamp in a __t_ field of its own, the compact one packs value
+ * and timestamp into one field, which halves the fields per hash and keeps more
+ * hashes in redis' compact encoding.
+ * <p>
+ * New tokens are created in the configured layout, existing ones are converted
+ * online by the migrator. Only the scripts understand the compact layout, so it
+ * needs countmatic.scripting.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class CounterLayout {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CounterLayout.class);
+
+	public static final String VERSION_FIELD = "__v";
+	public static final String LEGACY = "1";
+	public static final String COMPACT = "2";
+
+	@Autowired
+	private RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	private RedisScripts redisScripts;
+
+	@Value("${countmatic.layout:legacy}")
+	private String layoutName;
+
+	@Value("${countmatic.layout.migrate:false}")
+	private boolean migrate;
+
+	private boolean compact;
+
+	@PostConstruct
+	public void postConstruct() {
+		String layout = layoutName.trim().toLowerCase();
+		if (!layout.equals("legacy") && !layout.equals("compact")) {
+			throw new RuntimeException("Please set countmatic.layout to legacy or compact");
+		}
+		this.compact = layout.equals("compact");
+		if (compact && !redisScripts.isEnabled()) {
+			throw new RuntimeException("countmatic.layout=compact needs countmatic.scripting=true");
+		}
+		if (migrate) {
+			Thread t = new Thread(this::migrateAll, "cm-layout-migrator");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @param modified
+	 * @return the fields of a new rw token with one counter
+	 */
+	public Map<String, String> newToken(String name, long value, long modified) {
+		Map<String, String> hash = new HashMap<String, String>();
+		hash.put("__access", "rw");
+		if (compact) {
+			hash.put(VERSION_FIELD, COMPACT);
+			hash.put(name, value + ":" + modified);
+		} else {
+			hash.put(name, String.valueOf(value));
+			hash.put("__t_" + name, String.valueOf(modified));
+		}
+		return hash;
+	}
+
+	/**
+	 * Convert all tokens on all servers to the configured layout. Each token is
+	 * converted atomically, so this runs while serving.
+	 */
+	public void migrateAll() {
+		String target = compact ? COMPACT : LEGACY;
+		for (Tier tier : Tier.values()) {
+			for (InstrumentedJedisPool pool : redisPoolProvider.getRing(tier).getPools()) {
+				try {
+					LOGGER.info("Converted {} tokens on {}", migrate(pool, target), pool.getName());
+				} catch (RuntimeException e) {
+					LOGGER.warn("Converting tokens on {} failed: {}", pool.getName(), e.getMessage());
+				}
+			}
+		}
+	}
+
+	private long migrate(InstrumentedJedisPool pool, String target) {
+		long converted = 0;
+		ScanParams params = new ScanParams().count(1000);
+		try (Jedis j = pool.getResource()) {
+			String cursor = ScanParams.SCAN_POINTER_START;
+			do {
+				ScanResult<String> page = j.scan(cursor, params);
+				List<String[]> args = new ArrayList<>(page.getResult().size());
+				for (int i = 0; i < page.getResult().size(); i++) {
+					args.add(new String[] { target });
+				}
+				for (List<Object> reply : redisScripts.evalAll(j, RedisScripts.Script.MIGRATE, page.getResult(),
+						args)) {
+					converted += (Long) reply.get(0);
+				}
+				cursor = page.getStringCursor();
+			} while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+		}
+		return converted;
+	}
+
+	/**
+	 * Compare the memory used by both layouts for a random sample of tokens of
+	 * the persistent servers. Each sampled token is measured as is and as a
+	 * converted copy.
+	 *
+	 * @param samples
+	 * @return the stats of the legacy and of the compact layout
+	 */
+	public List<LayoutStats> report(int samples) {
+		long tokens = 0;
+		long counters = 0;
+		long[] bytes = new long[2];
+		long[] packed = new long[2];
+		List<InstrumentedJedisPool> pools = redisPoolProvider.getRing(Tier.PERSISTENT).getPools();
+		for (int i = 0; i < samples; i++) {
+			try (Jedis j = pools.get(i % pools.size()).getResource()) {
+				String key = j.randomKey();
+				if (null == key) {
+					continue;
+				}
+				List<Object> reply = redisScripts.eval(j, RedisScripts.Script.PROBE, key);
+				if ((Long) reply.get(0) != 200) {
+					continue;
+				}
+				// index 0 legacy, 1 compact
+				int own = ((Long) reply.get(1)).intValue();
+				tokens++;
+				counters += (Long) reply.get(2);
+				bytes[own] += (Long) reply.get(3);
+				bytes[1 - own] += (Long) reply.get(5);
+				packed[own] += isPacked((String) reply.get(4)) ? 1 : 0;
+				packed[1 - own] += isPacked((String) reply.get(6)) ? 1 : 0;
+			}
+		}
+		List<LayoutStats> stats = new ArrayList<>(2);
+		for (String layout : Arrays.asList("legacy", "compact")) {
+			int l = stats.size();
+			stats.add(new LayoutStats().layout(layout).tokens(tokens).counters(counters).bytes(bytes[l])
+					.bytesPerCounter(counters == 0 ? 0d : (double) bytes[l] / counters).packedTokens(packed[l]));
+		}
+		return stats;
+	}
+
+	private static boolean isPacked(String encoding) {
+		return "ziplist".equals(encoding) || "listpack".equals(encoding);
+	}
+
+}
@@ -0,0 +1,480 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import io.countmatic.cmspringserver.redis.RedisScripts.Script;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Write-behind buffer for counter increments. Increments of the same counter
+ * are summed up in-process and written with one HINCRBY per counter and flush
+ * window, either every flushMillis or as soon as maxPending increments are
+ * buffered.
+ * <p>
+ * In ASYNC mode callers get an estimate: the last value seen in redis plus the
+ * increments pending in this instance. In EXACT mode callers wait for the next
+ * flush and get their exact post-increment value, as each caller owns a range
+ * within the batch written by one HINCRBY.
+ * <p>
+ * Buffered increments are not visible to readers until flushed and are lost if
+ * the instance dies before flushing.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class IncrementBuffer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(IncrementBuffer.class);
+
+	// attempts of a flush without scripts whose tokens change meanwhile
+	private static final int WRITE_ATTEMPTS = 5;
+
+	public enum Mode {
+		OFF, ASYNC, EXACT
+	}
+
+	@Autowired
+	private RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	private RedisScripts redisScripts;
+
+	@Value("${countmatic.buffer.mode:off}")
+	private String modeName;
+
+	@Value("${countmatic.buffer.flushMillis:50}")
+	private long flushMillis;
+
+	@Value("${countmatic.buffer.maxPending:1000}")
+	private int maxPending;
+
+	private Mode mode = Mode.OFF;
+	private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+	// slots removed on the last flush, drained once more on the next one
+	private final List<Slot> retired = new ArrayList<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private ScheduledExecutorService flusher;
+
+	/**
+	 * Increments of one counter in EXACT mode, summed up until flushed
+	 */
+	private static final class Batch {
+		long sum;
+		// completes with the counters value before this batch
+		final CompletableFuture<Long> before = new CompletableFuture<>();
+	}
+
+	/**
+	 * Buffered state of one counter
+	 */
+	private static final class Slot {
+		final String key;
+		final String token;
+		final String name;
+		final int ttl;
+		// ASYNC
+		final LongAdder delta = new LongAdder();
+		volatile long base;
+		volatile boolean known;
+		// EXACT, guarded by the slot
+		Batch batch = new Batch();
+		boolean retired;
+		volatile boolean touched = true;
+
+		Slot(String key, String token, String name, int ttl) {
+			this.key = key;
+			this.token = token;
+			this.name = name;
+			this.ttl = ttl;
+		}
+	}
+
+	@PostConstruct
+	public void postConstruct() {
+		this.mode = Mode.valueOf(modeName.trim().toUpperCase());
+		if (mode != Mode.OFF) {
+			LOGGER.info("Buffering increments in {} mode, flushing every {}ms", mode, flushMillis);
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "cm-increment-flusher");
+				t.setDaemon(true);
+				return t;
+			});
+			flusher.scheduleWithFixedDelay(this::flushAll, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() throws InterruptedException {
+		if (null != flusher) {
+			flusher.shutdown();
+			flusher.awaitTermination(flushMillis * 10, TimeUnit.MILLISECONDS);
+			flushAll();
+		}
+	}
+
+	/**
+	 * @return true if increments should go through the buffer
+	 */
+	public boolean isEnabled() {
+		return mode != Mode.OFF;
+	}
+
+	/**
+	 * Buffer an increment (or a decrement if negative). The token has to be
+	 * checked for access and existence of the counter before.
+	 *
+	 * @param token
+	 * @param name
+	 * @param increment
+	 * @param ttl
+	 *            TTL to set on the token when flushing
+	 * @return the counters new value, an estimate in ASYNC mode
+	 */
+	public long add(String token, String name, long increment, int ttl) {
+		if (mode == Mode.EXACT) {
+			return addExact(token, name, increment, ttl);
+		}
+		Slot slot = slot(token, name, ttl);
+		slot.delta.add(increment);
+		slot.touched = true;
+		countPending();
+		if (!slot.known) {
+			// first use in this instance, fetch the current value
+			flush(Collections.singletonList(slot));
+		}
+		return slot.base + slot.delta.sum();
+	}
+
+	private long addExact(String token, String name, long increment, int ttl) {
+		Batch batch;
+		long upTo;
+		for (;;) {
+			Slot slot = slot(token, name, ttl);
+			synchronized (slot) {
+				if (slot.retired) {
+					continue;
+				}
+				batch = slot.batch;
+				batch.sum += increment;
+				upTo = batch.sum;
+				slot.touched = true;
+				break;
+			}
+		}
+		countPending();
+		try {
+			return batch.before.get(Math.max(1000, flushMillis * 20), TimeUnit.MILLISECONDS) + upTo;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for increment flush", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Flushing increments failed", e.getCause());
+		} catch (TimeoutException e) {
+			throw new IllegalStateException("Timeout waiting for increment flush", e);
+		}
+	}
+
+	/**
+	 * Write all pending increments of a token, must be called before a counter
+	 * gets reset or deleted.
+	 *
+	 * @param token
+	 */
+	public void flushToken(String token) {
+		if (!isEnabled()) {
+			return;
+		}
+		List<Slot> ofToken = new ArrayList<>();
+		for (Slot slot : slots.values()) {
+			if (slot.token.equals(token)) {
+				ofToken.add(slot);
+			}
+		}
+		if (!ofToken.isEmpty()) {
+			flush(ofToken);
+		}
+	}
+
+	private Slot slot(String token, String name, int ttl) {
+		String key = token + '\u0000' + name;
+		return slots.computeIfAbsent(key, k -> new Slot(k, token, name, ttl));
+	}
+
+	private void countPending() {
+		if (pending.incrementAndGet() == maxPending) {
+			flusher.execute(this::flushAll);
+		}
+	}
+
+	private void flushAll() {
+		pending.set(0);
+		try {
+			flush(new ArrayList<>(slots.values()));
+		} catch (RuntimeException e) {
+			LOGGER.warn("Flushing increments failed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Drain the slots and write their increments in one pipeline per redis
+	 * server
+	 *
+	 * @param toFlush
+	 */
+	private synchronized void flush(Collection<Slot> toFlush) {
+		List<Slot> work = new ArrayList<>(toFlush);
+		work.addAll(retired);
+		retired.clear();
+
+		List<Slot> drained = new ArrayList<>(work.size());
+		List<Long> deltas = new ArrayList<>(work.size());
+		List<Batch> batches = new ArrayList<>(work.size());
+		for (Slot slot : work) {
+			if (mode == Mode.EXACT) {
+				synchronized (slot) {
+					Batch b = slot.batch;
+					if (b.sum == 0) {
+						retireIfIdle(slot);
+						continue;
+					}
+					slot.batch = new Batch();
+					drained.add(slot);
+					deltas.add(b.sum);
+					batches.add(b);
+				}
+			} else {
+				long d = slot.delta.sum();
+				if (d == 0 && slot.known) {
+					retireIfIdle(slot);
+					continue;
+				}
+				// never reset, concurrent adds must survive
+				slot.delta.add(-d);
+				drained.add(slot);
+				deltas.add(d);
+				batches.add(null);
+			}
+		}
+		if (drained.isEmpty()) {
+			return;
+		}
+
+		// one pipeline per redis server
+		Map<InstrumentedJedisPool, List<Integer>> byPool = new HashMap<>();
+		for (int i = 0; i < drained.size(); i++) {
+			byPool.computeIfAbsent(redisPoolProvider.getPool(drained.get(i).token), k -> new ArrayList<>()).add(i);
+		}
+		RuntimeException failure = null;
+		for (Map.Entry<InstrumentedJedisPool, List<Integer>> e : byPool.entrySet()) {
+			try {
+				write(e.getKey(), e.getValue(), drained, deltas, batches);
+			} catch (RuntimeException ex) {
+				failure = ex;
+			}
+		}
+		if (null != failure) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Write drained increments to one redis server and hand out the new values
+	 *
+	 * @param pool
+	 * @param indexes
+	 *            the slots to write
+	 * @param drained
+	 * @param deltas
+	 * @param batches
+	 */
+	private void write(InstrumentedJedisPool pool, List<Integer> indexes, List<Slot> drained, List<Long> deltas,
+			List<Batch> batches) {
+		Jedis j = null;
+		// the new value or the failure per slot
+		List<Object> values;
+		try {
+			j = pool.getResource();
+			String now = CachedClock.text();
+			values = redisScripts.isEnabled() ? writeScripted(j, indexes, drained, deltas, now)
+					: writePipelined(j, indexes, drained, deltas, now);
+		} catch (RuntimeException e) {
+			// nothing known to be written, give the increments back
+			for (int i : indexes) {
+				if (null != batches.get(i)) {
+					batches.get(i).before.completeExceptionally(e);
+				} else {
+					drained.get(i).delta.add(deltas.get(i));
+				}
+			}
+			throw e;
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+
+		for (int v = 0; v < indexes.size(); v++) {
+			int i = indexes.get(v);
+			Slot slot = drained.get(i);
+			if (values.get(v) instanceof Long) {
+				long value = (Long) values.get(v);
+				if (null != batches.get(i)) {
+					batches.get(i).before.complete(value - deltas.get(i));
+				} else {
+					slot.base = value;
+					slot.known = true;
+				}
+			} else {
+				RuntimeException e = (RuntimeException) values.get(v);
+				LOGGER.warn("Dropping increment of {} in {}: {}", slot.name, slot.token, e.getMessage());
+				if (null != batches.get(i)) {
+					batches.get(i).before.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write by the next script, which knows both storage layouts and doesn't
+	 * bring back deleted counters
+	 */
+	private List<Object> writeScripted(Jedis j, List<Integer> indexes, List<Slot> drained, List<Long> deltas,
+			String now) {
+		List<String> keys = new ArrayList<>(indexes.size());
+		List<String[]> args = new ArrayList<>(indexes.size());
+		for (int i : indexes) {
+			Slot slot = drained.get(i);
+			keys.add(slot.token);
+			args.add(new String[] { slot.name, String.valueOf(deltas.get(i)), now, String.valueOf(slot.ttl) });
+		}
+		List<Object> values = new ArrayList<>(indexes.size());
+		for (List<Object> reply : redisScripts.evalAll(j, Script.NEXT, keys, args)) {
+			long status = (Long) reply.get(0);
+			values.add(status == 200 ? Long.valueOf((String) reply.get(2))
+					: new IllegalStateException("Counter answered " + status));
+		}
+		return values;
+	}
+
+	/**
+	 * Write by plain commands. The tokens are watched while their counters are
+	 * checked and written in one MULTI, so tokens and counters deleted since
+	 * their increments were buffered are not brought back. Their increments
+	 * are dropped like those refused by the script.
+	 */
+	private List<Object> writePipelined(Jedis j, List<Integer> indexes, List<Slot> drained, List<Long> deltas,
+			String now) {
+		Set<String> tokens = new LinkedHashSet<>();
+		for (int i : indexes) {
+			tokens.add(drained.get(i).token);
+		}
+		String[] keys = tokens.toArray(new String[tokens.size()]);
+		for (int attempt = 0; attempt < WRITE_ATTEMPTS; attempt++) {
+			j.watch(keys);
+			Pipeline p = j.pipelined();
+			Map<String, Response<String>> access = new HashMap<>();
+			for (String token : tokens) {
+				access.put(token, p.hget(token, "__access"));
+			}
+			List<Response<Boolean>> exists = new ArrayList<>(indexes.size());
+			for (int i : indexes) {
+				exists.add(p.hexists(drained.get(i).token, drained.get(i).name));
+			}
+			p.sync();
+
+			Transaction t = j.multi();
+			List<Response<Long>> responses = new ArrayList<>(indexes.size());
+			for (int v = 0; v < indexes.size(); v++) {
+				Slot slot = drained.get(indexes.get(v));
+				if (!"rw".equals(access.get(slot.token).get()) || !exists.get(v).get()) {
+					// gone, null marks it
+					responses.add(null);
+					continue;
+				}
+				long d = deltas.get(indexes.get(v));
+				responses.add(t.hincrBy(slot.token, slot.name, d));
+				if (d != 0) {
+					t.hset(slot.token, "__t_" + slot.name, now);
+					t.hincrBy(slot.token, "__ver", 1);
+					t.expire(slot.token, slot.ttl);
+				}
+			}
+			if (null == t.exec()) {
+				LOGGER.debug("Tokens changed while flushing, attempt {}", attempt + 1);
+				continue;
+			}
+
+			List<Object> values = new ArrayList<>(indexes.size());
+			p = j.pipelined();
+			for (int v = 0; v < responses.size(); v++) {
+				if (null == responses.get(v)) {
+					values.add(new IllegalStateException("Counter answered 404"));
+					continue;
+				}
+				try {
+					Long value = responses.get(v).get();
+					values.add(value);
+					Slot slot = drained.get(indexes.get(v));
+					p.publish(RedisEvents.changesChannel(slot.token),
+							RedisEvents.changeMessage(slot.name, value.toString(), now));
+				} catch (JedisDataException e) {
+					values.add(e);
+				}
+			}
+			p.sync();
+			return values;
+		}
+		throw new IllegalStateException("Tokens kept changing while flushing increments");
+	}
+
+	/**
+	 * Remove slots not used since the last flush. In ASYNC mode an add may still
+	 * hold a removed slot, so it's drained once more on the next flush.
+	 *
+	 * @param slot
+	 */
+	private void retireIfIdle(Slot slot) {
+		if (slot.touched) {
+			slot.touched = false;
+			return;
+		}
+		slots.remove(slot.key, slot);
+		if (mode == Mode.EXACT) {
+			slot.retired = true;
+		} else if (!slot.retired) {
+			slot.retired = true;
+			retired.add(slot);
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package io.countmatic.cmspringserver.redis;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol.Command;
+
+/**
+ * Jedis counting its commands and the time spent writing them and waiting for
+ * the replies, for its pool and the current request, see {@link RequestStats}
+ */
+class InstrumentedJedis extends Jedis {
+
+	InstrumentedJedis(InstrumentedJedisPool pool, String host, int port, int connectTimeout, int readTimeout) {
+		super(host, port, connectTimeout, readTimeout);
+		this.client = new InstrumentedClient(pool, host, port);
+		this.client.setConnectionTimeout(connectTimeout);
+		this.client.setSoTimeout(readTimeout);
+	}
+
+	/**
+	 * Called when returned to the pool
+	 */
+	void passivate() {
+		((InstrumentedClient) client).subscribed = false;
+	}
+
+	private static final class InstrumentedClient extends Client {
+
+		private final InstrumentedJedisPool pool;
+		// reads of subscribed connections wait for messages, not for redis
+		private boolean subscribed;
+
+		InstrumentedClient(InstrumentedJedisPool pool, String host, int port) {
+			super(host, port);
+			this.pool = pool;
+		}
+
+		@Override
+		protected Connection sendCommand(Command cmd, byte[]... args) {
+			if (cmd == Command.SUBSCRIBE || cmd == Command.PSUBSCRIBE) {
+				subscribed = true;
+			}
+			pool.recordCommand();
+			RequestStats stats = RequestStats.current();
+			if (null != stats) {
+				stats.command(pool.getName());
+			}
+			return super.sendCommand(cmd, args);
+		}
+
+		@Override
+		protected void flush() {
+			long start = System.nanoTime();
+			try {
+				super.flush();
+			} finally {
+				record(start);
+			}
+		}
+
+		@Override
+		protected Object readProtocolWithCheckingBroken() {
+			long start = System.nanoTime();
+			try {
+				return super.readProtocolWithCheckingBroken();
+			} finally {
+				record(start);
+			}
+		}
+
+		private void record(long start) {
+			if (subscribed) {
+				return;
+			}
+			long nanos = System.nanoTime() - start;
+			pool.recordNanos(nanos);
+			RequestStats stats = RequestStats.current();
+			if (null != stats) {
+				stats.time(pool.getName(), nanos);
+			}
+		}
+	}
+
+}
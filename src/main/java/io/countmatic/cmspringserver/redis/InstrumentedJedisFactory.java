@@ -0,0 +1,91 @@
+package io.countmatic.cmspringserver.redis;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Creates the connections of an {@link InstrumentedJedisPool}, like the factory
+ * of JedisPool does
+ */
+class InstrumentedJedisFactory implements PooledObjectFactory<Jedis> {
+
+	private final InstrumentedJedisPool pool;
+	private final String host;
+	private final int port;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final String password;
+	private final int database;
+
+	InstrumentedJedisFactory(InstrumentedJedisPool pool, String host, int port, int connectTimeout,
+			int readTimeout, String password, int database) {
+		this.pool = pool;
+		this.host = host;
+		this.port = port;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.password = password;
+		this.database = database;
+	}
+
+	@Override
+	public PooledObject<Jedis> makeObject() throws Exception {
+		Jedis j = new InstrumentedJedis(pool, host, port, connectTimeout, readTimeout);
+		try {
+			j.connect();
+			if (null != password) {
+				j.auth(password);
+			}
+			if (database != 0) {
+				j.select(database);
+			}
+		} catch (RuntimeException e) {
+			j.close();
+			throw e;
+		}
+		return new DefaultPooledObject<Jedis>(j);
+	}
+
+	@Override
+	public void destroyObject(PooledObject<Jedis> p) throws Exception {
+		Jedis j = p.getObject();
+		if (j.isConnected()) {
+			try {
+				try {
+					j.quit();
+				} catch (RuntimeException e) {
+					// closing anyway
+				}
+				j.disconnect();
+			} catch (RuntimeException e) {
+				// gone already
+			}
+		}
+	}
+
+	@Override
+	public boolean validateObject(PooledObject<Jedis> p) {
+		try {
+			return p.getObject().isConnected() && "PONG".equals(p.getObject().ping());
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void activateObject(PooledObject<Jedis> p) throws Exception {
+		Jedis j = p.getObject();
+		if (j.getDB() != database) {
+			j.select(database);
+		}
+	}
+
+	@Override
+	public void passivateObject(PooledObject<Jedis> p) throws Exception {
+		((InstrumentedJedis) p.getObject()).passivate();
+	}
+
+}
@@ -0,0 +1,102 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * JedisPool recording how long callers wait for a connection, the commands sent
+ * and the time spent in redis, and exposing the counters of the underlying pool
+ */
+public class InstrumentedJedisPool extends JedisPool {
+
+	private final String name;
+	private final String host;
+	private final int port;
+	private final WaitHistogram borrowWait = new WaitHistogram();
+	private final LongAdder commands = new LongAdder();
+	private final LongAdder redisNanos = new LongAdder();
+
+	public InstrumentedJedisPool(String name, GenericObjectPoolConfig poolConfig, String host, int port,
+			int connectTimeout, int readTimeout, String password, int database) {
+		super(poolConfig, host, port, connectTimeout, readTimeout, password, database, null, false, null, null, null);
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		// replace the plain connections set up by JedisPool
+		initPool(poolConfig,
+				new InstrumentedJedisFactory(this, host, port, connectTimeout, readTimeout, password, database));
+	}
+
+	@Override
+	public Jedis getResource() {
+		long start = System.nanoTime();
+		try {
+			return super.getResource();
+		} finally {
+			borrowWait.record(System.nanoTime() - start);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return host:port of the redis server
+	 */
+	public String getServer() {
+		return host + ":" + port;
+	}
+
+	public WaitHistogram getBorrowWait() {
+		return borrowWait;
+	}
+
+	/**
+	 * @return commands sent by the connections of this pool
+	 */
+	public long getCommands() {
+		return commands.sum();
+	}
+
+	/**
+	 * @return nanos the connections of this pool spent sending commands and
+	 *         waiting for replies
+	 */
+	public long getRedisNanos() {
+		return redisNanos.sum();
+	}
+
+	void recordCommand() {
+		commands.increment();
+	}
+
+	void recordNanos(long nanos) {
+		redisNanos.add(nanos);
+	}
+
+	public int getMaxTotal() {
+		return internalPool.getMaxTotal();
+	}
+
+	public long getCreatedCount() {
+		return internalPool.getCreatedCount();
+	}
+
+	public long getDestroyedCount() {
+		return internalPool.getDestroyedCount();
+	}
+
+}
@@ -0,0 +1,286 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Redis pub/sub between the server instances. All instances use the first
+ * persistent redis as message bus. Changes of counters are published by the
+ * scripts on the server holding the token, so those channels are subscribed on
+ * that server.
+ * <p>
+ * A subscriber thread per server is started with the first subscription and
+ * reconnects on connection loss; messages published meanwhile are lost.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class RedisEvents {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RedisEvents.class);
+
+	private static final long RECONNECT_MILLIS = 1000;
+
+	private static final String CHANGES_CHANNEL = "countmatic:changes:";
+
+	@Autowired
+	private RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	private AsyncRedis asyncRedis;
+
+	private final Map<InstrumentedJedisPool, Bus> buses = new ConcurrentHashMap<>();
+	private volatile boolean running = true;
+
+	/**
+	 * @param token
+	 *            a rw token
+	 * @return the channel the changes of the token's counters are published to,
+	 *         see layout.lua
+	 */
+	public static String changesChannel(String token) {
+		return CHANGES_CHANNEL + token;
+	}
+
+	/**
+	 * @param name
+	 *            the changed counter, null if the token was deleted
+	 * @param value
+	 *            empty if the counter was deleted
+	 * @param modified
+	 *            empty if the counter was deleted
+	 * @return the message published to the changes channel of a token, as done
+	 *         by the scripts
+	 */
+	public static String changeMessage(String name, String value, String modified) {
+		return null == name ? "" : value + ":" + modified + ":" + name;
+	}
+
+	/**
+	 * Subscriptions on one redis server
+	 */
+	private final class Bus {
+		private final InstrumentedJedisPool pool;
+		private final Map<String, List<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+		private volatile Subscriber subscriber;
+		private Thread thread;
+
+		Bus(InstrumentedJedisPool pool) {
+			this.pool = pool;
+		}
+
+		/**
+		 * Dispatches messages and keeps the subscribed channels in sync
+		 */
+		private final class Subscriber extends JedisPubSub {
+			private final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+
+			@Override
+			public void onMessage(String channel, String message) {
+				List<Consumer<String>> l = listeners.get(channel);
+				if (null != l) {
+					for (Consumer<String> listener : l) {
+						try {
+							listener.accept(message);
+						} catch (RuntimeException e) {
+							LOGGER.warn("Listener on {} failed: {}", channel, e.getMessage());
+						}
+					}
+				}
+			}
+
+			@Override
+			public void onSubscribe(String channel, int subscribedChannels) {
+				subscribed.add(channel);
+				// catch up with channels added while connecting
+				for (String c : listeners.keySet()) {
+					if (!subscribed.contains(c)) {
+						subscribe(c);
+					}
+				}
+			}
+
+			@Override
+			public void onUnsubscribe(String channel, int subscribedChannels) {
+				subscribed.remove(channel);
+			}
+		}
+
+		synchronized void subscribe(String channel, Consumer<String> listener) {
+			listeners.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>()).add(listener);
+			Subscriber s = this.subscriber;
+			if (null != s && s.isSubscribed() && !s.subscribed.contains(channel)) {
+				s.subscribe(channel);
+			}
+			if (null == thread) {
+				thread = new Thread(this::listen, "cm-redis-events-" + pool.getName());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		synchronized void unsubscribe(String channel, Consumer<String> listener) {
+			List<Consumer<String>> l = listeners.get(channel);
+			if (null == l) {
+				return;
+			}
+			l.remove(listener);
+			if (l.isEmpty()) {
+				listeners.remove(channel);
+				Subscriber s = this.subscriber;
+				if (null != s && s.isSubscribed()) {
+					s.unsubscribe(channel);
+				}
+			}
+		}
+
+		private void listen() {
+			while (running) {
+				String[] channels = listeners.keySet().toArray(new String[0]);
+				if (channels.length == 0) {
+					pause();
+					continue;
+				}
+				Jedis j = null;
+				try {
+					j = pool.getResource();
+					Subscriber s = new Subscriber();
+					this.subscriber = s;
+					// blocks until unsubscribed from all channels or disconnected
+					j.subscribe(s, channels);
+				} catch (JedisConnectionException e) {
+					LOGGER.warn("Lost redis events connection to {}: {}", pool.getName(), e.getMessage());
+					pause();
+				} finally {
+					if (null != j) {
+						// a broken connection is returned as broken by close
+						redisPoolProvider.returnResource(j);
+					}
+				}
+			}
+		}
+
+		void stop() {
+			Subscriber s = this.subscriber;
+			if (null != s && s.isSubscribed()) {
+				s.unsubscribe();
+			}
+			if (null != thread) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Publish a message to all instances, including this one
+	 *
+	 * @param channel
+	 * @param message
+	 */
+	public void publish(String channel, String message) {
+		Jedis j = null;
+		try {
+			j = redisPoolProvider.getPersistentResource();
+			j.publish(channel, message);
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #publish}, without waiting for redis
+	 *
+	 * @param channel
+	 * @param message
+	 * @return the number of receivers
+	 */
+	public CompletableFuture<Long> publishAsync(String channel, String message) {
+		InstrumentedJedisPool pool = busPool();
+		return asyncRedis.send(pool, () -> asyncRedis.commands(pool).publish(channel, message));
+	}
+
+	/**
+	 * Listen to a channel of the message bus
+	 *
+	 * @param channel
+	 * @param listener
+	 */
+	public void subscribe(String channel, Consumer<String> listener) {
+		subscribe(busPool(), channel, listener);
+	}
+
+	/**
+	 * Listen to a channel on a redis server
+	 *
+	 * @param pool
+	 * @param channel
+	 * @param listener
+	 */
+	public void subscribe(InstrumentedJedisPool pool, String channel, Consumer<String> listener) {
+		buses.computeIfAbsent(pool, Bus::new).subscribe(channel, listener);
+	}
+
+	/**
+	 * Stop listening, the channel is unsubscribed when its last listener is gone
+	 *
+	 * @param channel
+	 * @param listener
+	 */
+	public void unsubscribe(String channel, Consumer<String> listener) {
+		unsubscribe(busPool(), channel, listener);
+	}
+
+	/**
+	 * Stop listening to a channel on a redis server
+	 *
+	 * @param pool
+	 * @param channel
+	 * @param listener
+	 */
+	public void unsubscribe(InstrumentedJedisPool pool, String channel, Consumer<String> listener) {
+		Bus bus = buses.get(pool);
+		if (null != bus) {
+			bus.unsubscribe(channel, listener);
+		}
+	}
+
+	private InstrumentedJedisPool busPool() {
+		return redisPoolProvider.getRing(Tier.PERSISTENT).getPools().get(0);
+	}
+
+	private void pause() {
+		try {
+			Thread.sleep(RECONNECT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		running = false;
+		for (Bus bus : buses.values()) {
+			bus.stop();
+		}
+	}
+
+}
@@ -1,28 +1,52 @@
 package io.countmatic.cmspringserver.redis;
 
-import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 /**
  * Provide resources for two redis instances. One for persistent data, another
  * one for in-memory data that gets lost on downtime.
+ * <p>
+ * Each of them may be a comma separated list of servers, tokens are then
+ * sharded over the servers by a consistent hash ring. The first persistent
+ * server also carries the pub/sub messages between instances.
+ * <p>
+ * Servers may have read replicas, given as a semicolon separated list of comma
+ * separated replicas per server. Counter reads go to a replica in sync if there
+ * is one.
  * 
  * @author Rainer Feike
  *
  */
 @Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
 public class RedisPoolProvider {
 
-	private JedisPool persistentPool;
-	private JedisPool volatilePool;
+	private static final Logger LOGGER = LoggerFactory.getLogger(RedisPoolProvider.class);
+
+	private final Map<Tier, ShardRing> rings = new EnumMap<>(Tier.class);
+	private final Map<InstrumentedJedisPool, ReplicaSet> replicaSets = new HashMap<>();
+	private ScheduledExecutorService replicaChecker;
 
 	@Value("${countmatic.persistentServer}")
 	private String persitentHost;
@@ -30,6 +54,70 @@ public class RedisPoolProvider {
 	@Value("${countmatic.volatileServer}")
 	private String volatileHost;
 
+	@Value("${countmatic.persistentReplicas:}")
+	private String persistentReplicas;
+
+	@Value("${countmatic.volatileReplicas:}")
+	private String volatileReplicas;
+
+	@Value("${countmatic.replicas.policy:roundrobin}")
+	private String replicaPolicy;
+
+	@Value("${countmatic.replicas.maxLagSeconds:30}")
+	private int maxLagSeconds;
+
+	@Value("${countmatic.replicas.checkMillis:1000}")
+	private long checkMillis;
+
+	@Value("${countmatic.pool.port:6379}")
+	private int port;
+
+	@Value("${countmatic.pool.password:}")
+	private String password;
+
+	@Value("${countmatic.pool.database:0}")
+	private int database;
+
+	@Value("${countmatic.pool.connectTimeout:2000}")
+	private int connectTimeout;
+
+	@Value("${countmatic.pool.readTimeout:2000}")
+	private int readTimeout;
+
+	@Value("${countmatic.pool.maxTotal:128}")
+	private int maxTotal;
+
+	@Value("${countmatic.pool.maxIdle:128}")
+	private int maxIdle;
+
+	@Value("${countmatic.pool.minIdle:16}")
+	private int minIdle;
+
+	@Value("${countmatic.pool.maxWaitMillis:-1}")
+	private long maxWaitMillis;
+
+	// a PING round trip each, idle connections are tested by the evictor
+	@Value("${countmatic.pool.testOnBorrow:false}")
+	private boolean testOnBorrow;
+
+	@Value("${countmatic.pool.testOnReturn:false}")
+	private boolean testOnReturn;
+
+	@Value("${countmatic.pool.testWhileIdle:true}")
+	private boolean testWhileIdle;
+
+	@Value("${countmatic.pool.minEvictableIdleMillis:60000}")
+	private long minEvictableIdleMillis;
+
+	@Value("${countmatic.pool.evictionRunMillis:30000}")
+	private long evictionRunMillis;
+
+	@Value("${countmatic.pool.testsPerEvictionRun:3}")
+	private int testsPerEvictionRun;
+
+	@Autowired
+	private RedisScripts redisScripts;
+
 	public RedisPoolProvider() {
 	}
 
@@ -40,32 +128,230 @@ public class RedisPoolProvider {
 					"Please set countmatic.persitentServer and countmatic.volatileServer in application.properties");
 		}
 		final JedisPoolConfig poolConfig = buildPoolConfig();
-		this.persistentPool = new JedisPool(poolConfig, persitentHost);
-		this.volatilePool = new JedisPool(poolConfig, volatileHost);
+		rings.put(Tier.PERSISTENT, buildRing("persistent", poolConfig, persitentHost));
+		rings.put(Tier.VOLATILE, buildRing("volatile", poolConfig, volatileHost));
+		buildReplicas(rings.get(Tier.PERSISTENT), poolConfig, persistentReplicas);
+		buildReplicas(rings.get(Tier.VOLATILE), poolConfig, volatileReplicas);
+		if (redisScripts.isEnabled()) {
+			for (InstrumentedJedisPool pool : getPools()) {
+				loadScripts(pool);
+			}
+		}
+		if (!replicaSets.isEmpty()) {
+			replicaChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "cm-replica-check");
+				t.setDaemon(true);
+				return t;
+			});
+			replicaChecker.scheduleWithFixedDelay(() -> {
+				for (ReplicaSet set : replicaSets.values()) {
+					set.check(maxLagSeconds);
+				}
+			}, 0, checkMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		if (null != replicaChecker) {
+			replicaChecker.shutdown();
+		}
+	}
+
+	/**
+	 * Build the pools of a comma separated list of servers
+	 * 
+	 * @param name
+	 * @param poolConfig
+	 * @param servers
+	 * @return
+	 */
+	private ShardRing buildRing(String name, JedisPoolConfig poolConfig, String servers) {
+		String[] list = servers.split(",");
+		List<InstrumentedJedisPool> pools = new ArrayList<>(list.length);
+		for (int i = 0; i < list.length; i++) {
+			pools.add(buildPool(list.length == 1 ? name : name + "-" + i, poolConfig, list[i]));
+		}
+		return new ShardRing(pools);
+	}
 
+	/**
+	 * Build the replica sets of the servers of a ring
+	 * 
+	 * @param ring
+	 * @param poolConfig
+	 * @param replicas
+	 *            comma separated replicas, semicolon separated per server
+	 */
+	private void buildReplicas(ShardRing ring, JedisPoolConfig poolConfig, String replicas) {
+		if (replicas.trim().isEmpty()) {
+			return;
+		}
+		String[] groups = replicas.split(";");
+		if (groups.length != ring.getPools().size()) {
+			throw new RuntimeException("Please give a group of replicas for each server in " + replicas);
+		}
+		ReplicaSet.Policy policy = ReplicaSet.Policy.valueOf(replicaPolicy.trim().toUpperCase());
+		for (int i = 0; i < groups.length; i++) {
+			InstrumentedJedisPool primary = ring.getPools().get(i);
+			List<InstrumentedJedisPool> pools = new ArrayList<>();
+			for (String server : groups[i].split(",")) {
+				if (!server.trim().isEmpty()) {
+					pools.add(buildPool(primary.getName() + "-replica-" + pools.size(), poolConfig, server));
+				}
+			}
+			if (!pools.isEmpty()) {
+				replicaSets.put(primary, new ReplicaSet(primary, pools, policy));
+			}
+		}
+	}
+
+	/**
+	 * Preload the counter scripts. An unreachable server is no reason to fail,
+	 * scripts are sent again on NOSCRIPT anyway.
+	 * 
+	 * @param pool
+	 */
+	private void loadScripts(InstrumentedJedisPool pool) {
+		try (Jedis j = pool.getResource()) {
+			redisScripts.load(j);
+		} catch (JedisConnectionException e) {
+			LOGGER.warn("Could not preload scripts: {}", e.getMessage());
+		}
 	}
 
 	private JedisPoolConfig buildPoolConfig() {
 		final JedisPoolConfig poolConfig = new JedisPoolConfig();
-		poolConfig.setMaxTotal(128);
-		poolConfig.setMaxIdle(128);
-		poolConfig.setMinIdle(16);
-		poolConfig.setTestOnBorrow(true);
-		poolConfig.setTestOnReturn(true);
-		poolConfig.setTestWhileIdle(true);
-		poolConfig.setMinEvictableIdleTimeMillis(Duration.ofSeconds(60).toMillis());
-		poolConfig.setTimeBetweenEvictionRunsMillis(Duration.ofSeconds(30).toMillis());
-		poolConfig.setNumTestsPerEvictionRun(3);
+		poolConfig.setMaxTotal(maxTotal);
+		poolConfig.setMaxIdle(maxIdle);
+		poolConfig.setMinIdle(minIdle);
+		poolConfig.setMaxWaitMillis(maxWaitMillis);
+		poolConfig.setTestOnBorrow(testOnBorrow);
+		poolConfig.setTestOnReturn(testOnReturn);
+		poolConfig.setTestWhileIdle(testWhileIdle);
+		poolConfig.setMinEvictableIdleTimeMillis(minEvictableIdleMillis);
+		poolConfig.setTimeBetweenEvictionRunsMillis(evictionRunMillis);
+		poolConfig.setNumTestsPerEvictionRun(testsPerEvictionRun);
 		poolConfig.setBlockWhenExhausted(true);
 		return poolConfig;
 	}
 
+	/**
+	 * Build a pool for a server given as host or host:port
+	 * 
+	 * @param name
+	 * @param poolConfig
+	 * @param server
+	 * @return
+	 */
+	private InstrumentedJedisPool buildPool(String name, JedisPoolConfig poolConfig, String server) {
+		String host = server.trim();
+		int p = port;
+		int colon = host.lastIndexOf(':');
+		if (colon > 0) {
+			p = Integer.parseInt(host.substring(colon + 1));
+			host = host.substring(0, colon);
+		}
+		LOGGER.info("Connecting {} pool to {}:{}/{}", name, host, p, database);
+		return new InstrumentedJedisPool(name, poolConfig, host, p, connectTimeout, readTimeout,
+				password.isEmpty() ? null : password, database);
+	}
+
+	/**
+	 * @return all pools including replicas, for monitoring
+	 */
+	public List<InstrumentedJedisPool> getPools() {
+		List<InstrumentedJedisPool> pools = new ArrayList<>();
+		for (ShardRing ring : rings.values()) {
+			for (InstrumentedJedisPool pool : ring.getPools()) {
+				pools.add(pool);
+				ReplicaSet set = replicaSets.get(pool);
+				if (null != set) {
+					pools.addAll(set.getReplicas());
+				}
+			}
+		}
+		return pools;
+	}
+
+	/**
+	 * @param tier
+	 * @return the ring of the servers of a tier
+	 */
+	public ShardRing getRing(Tier tier) {
+		return rings.get(tier);
+	}
+
+	/**
+	 * @param token
+	 * @return the pool of the redis server holding the token
+	 */
+	public InstrumentedJedisPool getPool(String token) {
+		return rings.get(Tier.of(token)).get(token);
+	}
+
+	/**
+	 * @param token
+	 * @return the pool of a replica in sync with the server holding the token,
+	 *         null if there is none
+	 */
+	public InstrumentedJedisPool getReadPool(String token) {
+		ReplicaSet set = replicaSets.get(getPool(token));
+		return null == set ? null : set.choose();
+	}
+
+	/**
+	 * Stop reading from a failed replica until its next check
+	 * 
+	 * @param replica
+	 */
+	public void markDown(InstrumentedJedisPool replica) {
+		for (ReplicaSet set : replicaSets.values()) {
+			if (set.getReplicas().contains(replica)) {
+				set.markDown(replica);
+			}
+		}
+	}
+
+	/**
+	 * @param token
+	 * @return a connection to the redis server holding the token
+	 */
+	public Jedis getResource(String token) {
+		return this.getPool(token).getResource();
+	}
+
+	/**
+	 * @return a connection to the first persistent server
+	 */
 	public Jedis getPersistentResource() {
-		return this.persistentPool.getResource();
+		return rings.get(Tier.PERSISTENT).getPools().get(0).getResource();
 	}
 
+	/**
+	 * @return a connection to the first volatile server
+	 */
 	public Jedis getVolatileResource() {
-		return this.volatilePool.getResource();
+		return rings.get(Tier.VOLATILE).getPools().get(0).getResource();
+	}
+
+	public int getDatabase() {
+		return database;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @return the password of the servers, null if there is none
+	 */
+	public String getPassword() {
+		return password.isEmpty() ? null : password;
 	}
 
 	public void returnResource(Jedis resource) {
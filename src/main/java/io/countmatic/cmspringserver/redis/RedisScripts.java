@@ -0,0 +1,283 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Registry of the lua scripts implementing the counter operations. Each script
+ * does access check, mutation, timestamp write and TTL refresh of a token
+ * atomically within a single EVALSHA round trip. The storage layout functions
+ * of layout.lua are prepended to every script.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class RedisScripts {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RedisScripts.class);
+
+	private static final String PRELUDE = "layout.lua";
+
+	/**
+	 * The scripts, previous is done by NEXT with a negative increment
+	 */
+	public enum Script {
+		NEXT("next.lua"), RESET("reset.lua"), ADD("add.lua"), DELETE("delete.lua"), READ("read.lua"),
+		BATCH("batch.lua"), SCAN("scan.lua"), MIGRATE("migrate.lua"), PROBE("probe.lua");
+
+		private final String file;
+
+		private Script(String file) {
+			this.file = file;
+		}
+	}
+
+	private final Map<Script, String> sources = new EnumMap<>(Script.class);
+	private final Map<Script, String> shas = new EnumMap<>(Script.class);
+	private final Map<Script, byte[]> rawShas = new EnumMap<>(Script.class);
+
+	@Value("${countmatic.scripting:true}")
+	private boolean enabled;
+
+	public RedisScripts() {
+		String prelude = readSource(PRELUDE);
+		for (Script script : Script.values()) {
+			String source = prelude + readSource(script.file);
+			sources.put(script, source);
+			shas.put(script, sha1(source));
+			rawShas.put(script, SafeEncoder.encode(shas.get(script)));
+		}
+	}
+
+	/**
+	 * @return true if counter operations should be done by the scripts
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	String sha(Script script) {
+		return shas.get(script);
+	}
+
+	String source(Script script) {
+		return sources.get(script);
+	}
+
+	/**
+	 * Load all scripts into the script cache of a redis server
+	 * 
+	 * @param j
+	 */
+	public void load(Jedis j) {
+		for (Script script : Script.values()) {
+			j.scriptLoad(sources.get(script));
+		}
+	}
+
+	/**
+	 * Run a script by its sha. If the server doesn't know the script (restart,
+	 * SCRIPT FLUSH), it's sent in full which caches it again.
+	 * 
+	 * @param j
+	 * @param script
+	 * @param key
+	 * @param args
+	 * @return the scripts reply
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object> eval(Jedis j, Script script, String key, String... args) {
+		List<String> keys = Collections.singletonList(key);
+		List<String> argv = Arrays.asList(args);
+		try {
+			return (List<Object>) j.evalsha(shas.get(script), keys, argv);
+		} catch (JedisNoScriptException e) {
+			LOGGER.info("Script {} not loaded, sending source", script);
+			return (List<Object>) j.eval(sources.get(script), keys, argv);
+		}
+	}
+
+	/**
+	 * Run a script on several keys, which have to live on the server of the
+	 * connection
+	 * 
+	 * @param j
+	 * @param script
+	 * @param keys
+	 * @param args
+	 * @return the scripts reply
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object> eval(Jedis j, Script script, List<String> keys, List<String> args) {
+		try {
+			return (List<Object>) j.evalsha(shas.get(script), keys, args);
+		} catch (JedisNoScriptException e) {
+			LOGGER.info("Script {} not loaded, sending source", script);
+			return (List<Object>) j.eval(sources.get(script), keys, args);
+		}
+	}
+
+	/**
+	 * Like {@link #eval}, but with binary arguments and reply, so no strings
+	 * are built for the arguments and the numbers of the reply. Bulk strings in
+	 * the reply are byte[], see {@link #text} and {@link #number}.
+	 * 
+	 * @param j
+	 * @param script
+	 * @param key
+	 * @param args
+	 * @return the scripts reply
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object> evalRaw(Jedis j, Script script, String key, String... args) {
+		byte[][] params = new byte[args.length + 1][];
+		params[0] = SafeEncoder.encode(key);
+		for (int i = 0; i < args.length; i++) {
+			params[i + 1] = SafeEncoder.encode(args[i]);
+		}
+		try {
+			return (List<Object>) j.evalsha(rawShas.get(script), 1, params);
+		} catch (JedisNoScriptException e) {
+			LOGGER.info("Script {} not loaded, sending source", script);
+			return (List<Object>) j.eval(SafeEncoder.encode(sources.get(script)), 1, params);
+		}
+	}
+
+	/**
+	 * @param reply
+	 *            a bulk string of a script reply, binary or decoded
+	 * @return the string
+	 */
+	public static String text(Object reply) {
+		return reply instanceof byte[] ? SafeEncoder.encode((byte[]) reply) : (String) reply;
+	}
+
+	/**
+	 * @param reply
+	 *            an integer or a decimal bulk string of a script reply, binary
+	 *            or decoded
+	 * @return the number, parsed without building a string
+	 */
+	public static long number(Object reply) {
+		if (reply instanceof Long) {
+			return (Long) reply;
+		} else if (!(reply instanceof byte[])) {
+			return Long.parseLong((String) reply);
+		}
+		byte[] b = (byte[]) reply;
+		boolean negative = b.length > 0 && b[0] == '-';
+		int i = negative ? 1 : 0;
+		if (i == b.length) {
+			throw new NumberFormatException("Not a number: " + SafeEncoder.encode(b));
+		}
+		// accumulated negative to reach Long.MIN_VALUE
+		long value = 0;
+		for (; i < b.length; i++) {
+			int digit = b[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Not a number: " + SafeEncoder.encode(b));
+			}
+			value = value * 10 - digit;
+		}
+		return negative ? value : -value;
+	}
+
+	/**
+	 * Run a script on several keys in one pipeline. Scripts failing with
+	 * NOSCRIPT were not executed and are run again by {@link #eval}.
+	 * 
+	 * @param j
+	 * @param script
+	 * @param keys
+	 * @param args
+	 *            the arguments per key
+	 * @return the scripts replies per key
+	 */
+	@SuppressWarnings("unchecked")
+	public List<List<Object>> evalAll(Jedis j, Script script, List<String> keys, List<String[]> args) {
+		byte[] sha = SafeEncoder.encode(shas.get(script));
+		Pipeline p = j.pipelined();
+		List<Response<Object>> responses = new ArrayList<>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			List<byte[]> argv = new ArrayList<>(args.get(i).length);
+			for (String arg : args.get(i)) {
+				argv.add(SafeEncoder.encode(arg));
+			}
+			responses.add(p.evalsha(sha, Collections.singletonList(SafeEncoder.encode(keys.get(i))), argv));
+		}
+		p.sync();
+		List<List<Object>> replies = new ArrayList<>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			try {
+				replies.add((List<Object>) decode(responses.get(i).get()));
+			} catch (JedisNoScriptException e) {
+				replies.add(eval(j, script, keys.get(i), args.get(i)));
+			}
+		}
+		return replies;
+	}
+
+	/**
+	 * Pipelined scripts reply in binary, convert bulk strings
+	 * 
+	 * @param reply
+	 * @return
+	 */
+	private static Object decode(Object reply) {
+		if (reply instanceof byte[]) {
+			return SafeEncoder.encode((byte[]) reply);
+		} else if (reply instanceof List) {
+			List<?> l = (List<?>) reply;
+			List<Object> decoded = new ArrayList<>(l.size());
+			for (Object o : l) {
+				decoded.add(decode(o));
+			}
+			return decoded;
+		}
+		return reply;
+	}
+
+	private static String readSource(String file) {
+		try (InputStream in = new ClassPathResource("redis/" + file).getInputStream()) {
+			return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read script " + file, e);
+		}
+	}
+
+	private static String sha1(String source) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
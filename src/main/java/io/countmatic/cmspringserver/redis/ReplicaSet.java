@@ -0,0 +1,123 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * The read replicas of one redis server. Replicas are only handed out while
+ * their replication link is up and they heard from the primary within
+ * maxLagSeconds, a replica failing a read is skipped until the next check.
+ */
+public class ReplicaSet {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaSet.class);
+
+	public enum Policy {
+		ROUNDROBIN, LEASTACTIVE
+	}
+
+	private final InstrumentedJedisPool primary;
+	private final List<InstrumentedJedisPool> replicas;
+	private final Policy policy;
+	private final AtomicInteger next = new AtomicInteger();
+	// replaced as a whole by checks, none until the first check
+	private volatile List<InstrumentedJedisPool> healthy = Collections.emptyList();
+
+	public ReplicaSet(InstrumentedJedisPool primary, List<InstrumentedJedisPool> replicas, Policy policy) {
+		this.primary = primary;
+		this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+		this.policy = policy;
+	}
+
+	public InstrumentedJedisPool getPrimary() {
+		return primary;
+	}
+
+	public List<InstrumentedJedisPool> getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * @return a healthy replica or null if there is none
+	 */
+	public InstrumentedJedisPool choose() {
+		List<InstrumentedJedisPool> h = healthy;
+		if (h.isEmpty()) {
+			return null;
+		}
+		if (policy == Policy.LEASTACTIVE) {
+			InstrumentedJedisPool least = h.get(0);
+			for (InstrumentedJedisPool pool : h) {
+				if (pool.getNumActive() < least.getNumActive()) {
+					least = pool;
+				}
+			}
+			return least;
+		}
+		return h.get((next.getAndIncrement() & Integer.MAX_VALUE) % h.size());
+	}
+
+	/**
+	 * Stop using a replica until the next check
+	 *
+	 * @param replica
+	 */
+	public synchronized void markDown(InstrumentedJedisPool replica) {
+		List<InstrumentedJedisPool> h = new ArrayList<>(healthy);
+		if (h.remove(replica)) {
+			LOGGER.warn("Replica {} failed, reading from other servers", replica.getName());
+			healthy = Collections.unmodifiableList(h);
+		}
+	}
+
+	/**
+	 * Check the replication state of all replicas
+	 *
+	 * @param maxLagSeconds
+	 */
+	public synchronized void check(int maxLagSeconds) {
+		List<InstrumentedJedisPool> h = new ArrayList<>(replicas.size());
+		for (InstrumentedJedisPool replica : replicas) {
+			boolean ok;
+			try (Jedis j = replica.getResource()) {
+				ok = isInSync(j.info("replication"), maxLagSeconds);
+			} catch (RuntimeException e) {
+				ok = false;
+			}
+			if (ok) {
+				h.add(replica);
+			}
+			if (ok != healthy.contains(replica)) {
+				LOGGER.info("Replica {}{}", replica.getName(), ok ? " is in sync" : " is down or lagging");
+			}
+		}
+		healthy = Collections.unmodifiableList(h);
+	}
+
+	/**
+	 * @param info
+	 *            the replication section of INFO
+	 * @param maxLagSeconds
+	 * @return true if the server is a replica close enough to its primary
+	 */
+	static boolean isInSync(String info, int maxLagSeconds) {
+		boolean linkUp = false;
+		int lastIo = Integer.MAX_VALUE;
+		for (String line : info.split("\r?\n")) {
+			if (line.equals("master_link_status:up")) {
+				linkUp = true;
+			} else if (line.startsWith("master_last_io_seconds_ago:")) {
+				lastIo = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+			}
+		}
+		return linkUp && lastIo >= 0 && lastIo <= maxLagSeconds;
+	}
+
+}
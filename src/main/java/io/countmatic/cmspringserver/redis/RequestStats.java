@@ -0,0 +1,75 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Redis commands and time spent in redis by one request, per pool. Filled in by
+ * the connections of the thread the request is attached to; a request hands
+ * over between threads but doesn't run on two at once.
+ */
+public final class RequestStats {
+
+	private static final ThreadLocal<RequestStats> CURRENT = new ThreadLocal<>();
+
+	// pool name to { commands, nanos }
+	private final Map<String, long[]> pools = new HashMap<>(4);
+
+	/**
+	 * @return the stats of the request running on this thread, null if none
+	 */
+	public static RequestStats current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Let the commands of this thread count for a request
+	 *
+	 * @param stats
+	 */
+	public static void attach(RequestStats stats) {
+		CURRENT.set(stats);
+	}
+
+	public static void detach() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * @param work
+	 * @return the work counting for the request of the calling thread on
+	 *         whichever thread it runs
+	 */
+	public static <T> Supplier<T> propagate(Supplier<T> work) {
+		RequestStats stats = current();
+		if (null == stats) {
+			return work;
+		}
+		return () -> {
+			RequestStats previous = current();
+			attach(stats);
+			try {
+				return work.get();
+			} finally {
+				attach(previous);
+			}
+		};
+	}
+
+	void command(String pool) {
+		pools.computeIfAbsent(pool, p -> new long[2])[0]++;
+	}
+
+	void time(String pool, long nanos) {
+		pools.computeIfAbsent(pool, p -> new long[2])[1] += nanos;
+	}
+
+	/**
+	 * @return pool name to { commands, nanos }
+	 */
+	public Map<String, long[]> getPools() {
+		return pools;
+	}
+
+}
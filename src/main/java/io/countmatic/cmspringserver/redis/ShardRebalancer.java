@@ -0,0 +1,146 @@
+package io.countmatic.cmspringserver.redis;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Moves keys to the server the shard ring assigns them to. Needed once after
+ * servers were added to a tier, until then the moved share of tokens is not
+ * found. Keys are transferred by MIGRATE, which keeps their TTL and is atomic
+ * per key. With countmatic.pool.password the target is authenticated by
+ * MIGRATE's AUTH option, which needs redis 4.0.7 or later.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class ShardRebalancer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShardRebalancer.class);
+
+	@Autowired
+	private RedisPoolProvider redisPoolProvider;
+
+	@Value("${countmatic.shards.rebalance:false}")
+	private boolean rebalance;
+
+	@PostConstruct
+	public void postConstruct() {
+		if (rebalance) {
+			Thread t = new Thread(this::rebalanceAll, "cm-shard-rebalancer");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Rebalance all tiers with more than one server
+	 */
+	public void rebalanceAll() {
+		for (Tier tier : Tier.values()) {
+			ShardRing ring = redisPoolProvider.getRing(tier);
+			if (ring.getPools().size() > 1) {
+				for (InstrumentedJedisPool pool : ring.getPools()) {
+					try {
+						rebalance(ring, pool);
+					} catch (RuntimeException e) {
+						LOGGER.warn("Rebalancing {} failed: {}", pool.getName(), e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move the keys of one server not belonging there
+	 *
+	 * @param ring
+	 * @param pool
+	 */
+	private void rebalance(ShardRing ring, InstrumentedJedisPool pool) {
+		long moved = 0;
+		ScanParams params = new ScanParams().count(1000);
+		try (Jedis j = pool.getResource();
+				MigrateConnection m = new MigrateConnection(pool, redisPoolProvider)) {
+			String cursor = ScanParams.SCAN_POINTER_START;
+			do {
+				ScanResult<String> page = j.scan(cursor, params);
+				for (String key : page.getResult()) {
+					InstrumentedJedisPool owner = ring.get(key);
+					if (owner != pool) {
+						try {
+							m.migrate(owner, key);
+							moved++;
+						} catch (JedisDataException e) {
+							// e.g. BUSYKEY, the key was recreated on its new server
+							LOGGER.warn("Could not move {} to {}: {}", key, owner.getName(), e.getMessage());
+						}
+					}
+				}
+				cursor = page.getStringCursor();
+			} while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+		}
+		LOGGER.info("Moved {} keys away from {}", moved, pool.getName());
+	}
+
+	/**
+	 * A connection to the source server sending MIGRATE with the AUTH option,
+	 * which jedis 2.9 has no method for
+	 */
+	static final class MigrateConnection extends Connection {
+
+		private final String password;
+		private final String database;
+		private final String timeout;
+
+		MigrateConnection(InstrumentedJedisPool source, RedisPoolProvider provider) {
+			super(source.getHost(), source.getPort());
+			this.password = provider.getPassword();
+			this.database = String.valueOf(provider.getDatabase());
+			this.timeout = String.valueOf(provider.getReadTimeout());
+			this.setConnectionTimeout(provider.getConnectTimeout());
+			this.setSoTimeout(provider.getReadTimeout());
+			try {
+				if (null != password) {
+					this.sendCommand(Protocol.Command.AUTH, password);
+					this.getStatusCodeReply();
+				}
+				this.sendCommand(Protocol.Command.SELECT, database);
+				this.getStatusCodeReply();
+			} catch (RuntimeException e) {
+				this.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @param target
+		 * @param key
+		 * @throws JedisDataException
+		 *             if the target refused the key
+		 */
+		void migrate(InstrumentedJedisPool target, String key) {
+			String host = target.getHost();
+			String port = String.valueOf(target.getPort());
+			if (null == password) {
+				this.sendCommand(Protocol.Command.MIGRATE, host, port, key, database, timeout);
+			} else {
+				this.sendCommand(Protocol.Command.MIGRATE, host, port, key, database, timeout, "AUTH", password);
+			}
+			this.getStatusCodeReply();
+		}
+
+	}
+
+}
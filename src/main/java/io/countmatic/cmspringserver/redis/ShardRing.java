@@ -0,0 +1,131 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import redis.clients.util.Hashing;
+
+/**
+ * Consistent hash ring spreading the tokens of a tier over several redis
+ * servers. A token, with all its counters, lives on exactly one server, so
+ * single token operations stay atomic.
+ * <p>
+ * Keys are placed by a SHA-256 of their token, so auxiliary keys starting with
+ * the token and a colon end up with it. A ro token carries the position of its
+ * rw token in front instead, see {@link #coLocate}, so both always end up on
+ * the same server, whatever servers are added later. The position reveals
+ * nothing of the rw token.
+ */
+public class ShardRing {
+
+	// hex digits of the position in front of a ro token
+	static final int POSITION_LENGTH = 16;
+
+	// points per server, evens out the share of each server
+	private static final int VIRTUAL_NODES = 160;
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has it
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final List<InstrumentedJedisPool> pools;
+	private final TreeMap<Long, InstrumentedJedisPool> ring = new TreeMap<>();
+
+	/**
+	 * @param pools
+	 *            the servers, placed by their host:port so the order of
+	 *            configuration doesn't matter
+	 */
+	public ShardRing(List<InstrumentedJedisPool> pools) {
+		this.pools = Collections.unmodifiableList(new ArrayList<>(pools));
+		for (InstrumentedJedisPool pool : pools) {
+			for (int n = 0; n < VIRTUAL_NODES; n++) {
+				ring.put(Hashing.MURMUR_HASH.hash(pool.getServer() + "-" + n), pool);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            a token or a key starting with one
+	 * @return the pool of the server holding the key
+	 */
+	public InstrumentedJedisPool get(String key) {
+		if (pools.size() == 1) {
+			return pools.get(0);
+		}
+		Map.Entry<Long, InstrumentedJedisPool> e = ring.ceilingEntry(position(key));
+		return null == e ? ring.firstEntry().getValue() : e.getValue();
+	}
+
+	public List<InstrumentedJedisPool> getPools() {
+		return pools;
+	}
+
+	/**
+	 * @param key
+	 * @return the part of the key deciding its server, the token
+	 */
+	public static String shardKey(String key) {
+		int colon = key.indexOf(':');
+		return colon < 0 ? key : key.substring(0, colon);
+	}
+
+	/**
+	 * @param key
+	 * @return the position of the key on the ring, the one in front of a ro
+	 *         token or the hash of the token
+	 */
+	static long position(String key) {
+		String token = shardKey(key);
+		if (isReadOnly(token) && token.length() > POSITION_LENGTH) {
+			try {
+				return Long.parseUnsignedLong(token.substring(0, POSITION_LENGTH), 16);
+			} catch (NumberFormatException e) {
+				// a ro token from before the positions, placed by its hash
+			}
+		}
+		byte[] digest = SHA256.get().digest(token.getBytes(StandardCharsets.UTF_8));
+		long position = 0;
+		for (int i = 0; i < 8; i++) {
+			position = (position << 8) | (digest[i] & 0xff);
+		}
+		return position;
+	}
+
+	private static boolean isReadOnly(String token) {
+		return token.endsWith(Tier.PERSISTENT.postfix(true)) || token.endsWith(Tier.VOLATILE.postfix(true));
+	}
+
+	/**
+	 * Make a new ro token land on the same server as an existing token,
+	 * whatever the ring looks like, by putting the position of that token in
+	 * front. Being a hash, the position doesn't give away the token.
+	 *
+	 * @param token
+	 *            the existing token
+	 * @param newToken
+	 *            a freshly generated ro token
+	 * @return newToken with the position of token in front
+	 */
+	public static String coLocate(String token, String newToken) {
+		String hex = Long.toHexString(position(token));
+		StringBuilder sb = new StringBuilder(POSITION_LENGTH + newToken.length());
+		for (int i = hex.length(); i < POSITION_LENGTH; i++) {
+			sb.append('0');
+		}
+		return sb.append(hex).append(newToken).toString();
+	}
+
+}
@@ -0,0 +1,39 @@
+package io.countmatic.cmspringserver.redis;
+
+/**
+ * The redis tier holding a token, encoded in the tokens postfix
+ */
+public enum Tier {
+	/**
+	 * Counters in the persistent redis, tokens end with -rw or -ro
+	 */
+	PERSISTENT("-rw", "-ro"),
+	/**
+	 * Ephemeral counters in the volatile redis, tokens end with -vrw or -vro
+	 */
+	VOLATILE("-vrw", "-vro");
+
+	private final String rwPostfix;
+	private final String roPostfix;
+
+	private Tier(String rwPostfix, String roPostfix) {
+		this.rwPostfix = rwPostfix;
+		this.roPostfix = roPostfix;
+	}
+
+	public String postfix(boolean readonly) {
+		return readonly ? roPostfix : rwPostfix;
+	}
+
+	/**
+	 * @param token
+	 * @return the tier of a token, unknown tokens are persistent
+	 */
+	public static Tier of(String token) {
+		if (null != token && (token.endsWith(VOLATILE.rwPostfix) || token.endsWith(VOLATILE.roPostfix))) {
+			return VOLATILE;
+		}
+		return PERSISTENT;
+	}
+
+}
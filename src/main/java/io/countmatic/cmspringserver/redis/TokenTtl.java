@@ -0,0 +1,113 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * TTL of the tokens per tier, refreshed lazily. Each instance pushes the TTL
+ * of a token forward at most once per refreshAfterSeconds instead of on every
+ * call, which saves a write (and its replication) on most calls. Tokens live
+ * at least ttl - refreshAfterSeconds after their last use.
+ */
+@Component
+public class TokenTtl {
+
+	@Value("${countmatic.ttl.persistentSeconds:604800}")
+	private int persistentSeconds;
+
+	@Value("${countmatic.ttl.volatileSeconds:604800}")
+	private int volatileSeconds;
+
+	@Value("${countmatic.ttl.refreshAfterSeconds:3600}")
+	private int refreshAfterSeconds;
+
+	@Value("${countmatic.ttl.trackedTokens:100000}")
+	private int trackedTokens;
+
+	// last refresh per token by this instance
+	private final Map<String, Long> refreshed = new ConcurrentHashMap<>();
+	// script arguments, built once
+	private String persistentArg;
+	private String volatileArg;
+
+	@PostConstruct
+	public void postConstruct() {
+		persistentArg = String.valueOf(persistentSeconds);
+		volatileArg = String.valueOf(volatileSeconds);
+	}
+
+	/**
+	 * @param token
+	 * @return the TTL of the token in seconds
+	 */
+	public int ttl(String token) {
+		return Tier.of(token) == Tier.VOLATILE ? volatileSeconds : persistentSeconds;
+	}
+
+	/**
+	 * Claim the refresh of a token if due
+	 *
+	 * @param token
+	 * @return the TTL to set now, 0 if the token was refreshed recently
+	 */
+	public int due(String token) {
+		long now = System.currentTimeMillis();
+		Long last = refreshed.get(token);
+		if (null != last && now - last < refreshAfterSeconds * 1000L) {
+			return 0;
+		}
+		if (refreshed.size() >= trackedTokens) {
+			// cheaper than LRU bookkeeping, costs some early refreshes
+			refreshed.clear();
+		}
+		refreshed.put(token, now);
+		return ttl(token);
+	}
+
+	/**
+	 * @param token
+	 * @return the ttl argument of the scripts, 0 if the token was refreshed
+	 *         recently
+	 */
+	public String arg(String token) {
+		if (due(token) == 0) {
+			return "0";
+		}
+		return Tier.of(token) == Tier.VOLATILE ? volatileArg : persistentArg;
+	}
+
+	/**
+	 * Refresh the TTL of a token if due
+	 *
+	 * @param j
+	 * @param token
+	 */
+	public void touch(Jedis j, String token) {
+		int ttl = due(token);
+		if (ttl > 0) {
+			j.expire(token, ttl);
+		}
+	}
+
+	/**
+	 * Refresh the TTL of a token within a pipeline if due
+	 *
+	 * @param p
+	 * @param token
+	 */
+	public void touch(Pipeline p, String token) {
+		int ttl = due(token);
+		if (ttl > 0) {
+			p.expire(token, ttl);
+		}
+	}
+
+}
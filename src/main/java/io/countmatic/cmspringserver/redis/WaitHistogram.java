@@ -0,0 +1,59 @@
+package io.countmatic.cmspringserver.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of wait times with fixed buckets from 10 microseconds to
+ * one second
+ */
+public class WaitHistogram {
+
+	// upper bounds of the buckets in microseconds
+	private static final long[] BOUNDS = { 10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000 };
+
+	private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+	private final LongAdder totalNanos = new LongAdder();
+
+	public WaitHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		long micros = nanos / 1000;
+		int i = 0;
+		while (i < BOUNDS.length && micros > BOUNDS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		totalNanos.add(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	/**
+	 * @return the counts per bucket, keyed by the upper bound in millis
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> rc = new LinkedHashMap<>();
+		for (int i = 0; i < BOUNDS.length; i++) {
+			rc.put(String.valueOf(BOUNDS[i] / 1000.0), buckets[i].sum());
+		}
+		rc.put("+Inf", buckets[BOUNDS.length].sum());
+		return rc;
+	}
+
+}
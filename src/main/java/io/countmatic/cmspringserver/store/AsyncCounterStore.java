@@ -0,0 +1,41 @@
+package io.countmatic.cmspringserver.store;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.http.ResponseEntity;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
+
+/**
+ * The operations of the {@link CounterStore} for the async API, completing
+ * when the store answers instead of blocking the caller. Results and statuses
+ * are the same as those of the CounterStore.
+ */
+public interface AsyncCounterStore {
+
+	CompletableFuture<ResponseEntity<Token>> create(String token, String name, long value);
+
+	CompletableFuture<ResponseEntity<Token>> createReadOnly(String token, String roToken);
+
+	CompletableFuture<ResponseEntity<Counter>> add(String token, String name, long value);
+
+	CompletableFuture<ResponseEntity<Counter>> delete(String token, String name);
+
+	CompletableFuture<ResponseEntity<Counters>> read(String token, String name, String version);
+
+	CompletableFuture<ResponseEntity<CounterPage>> readPage(String token, String cursor, int count);
+
+	CompletableFuture<ResponseEntity<Counter>> increment(String token, String name, long increment);
+
+	CompletableFuture<ResponseEntity<Counter>> reset(String token, String name, long value);
+
+	CompletableFuture<ResponseEntity<Counters>> incrementAll(Map<String, List<Integer>> byToken,
+			List<CounterIncrement> increments);
+
+}
@@ -0,0 +1,265 @@
+package io.countmatic.cmspringserver.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
+import io.countmatic.cmspringserver.redis.AccessCache;
+import io.countmatic.cmspringserver.redis.AsyncRedis;
+import io.countmatic.cmspringserver.redis.CachedClock;
+import io.countmatic.cmspringserver.redis.CounterLayout;
+import io.countmatic.cmspringserver.redis.IncrementBuffer;
+import io.countmatic.cmspringserver.redis.InstrumentedJedisPool;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import io.countmatic.cmspringserver.redis.RedisScripts;
+import io.countmatic.cmspringserver.redis.RedisScripts.Script;
+import io.countmatic.cmspringserver.redis.ShardRing;
+import io.countmatic.cmspringserver.redis.TokenTtl;
+
+/**
+ * The counters in redis for the async API, run by the scripts over the
+ * non-blocking connections of {@link AsyncRedis}. The scripts and replies are
+ * those of the {@link RedisCounterStore}. Without scripts or with the
+ * write-behind buffer the blocking store is run on an executor instead, see
+ * {@link OffloadingAsyncCounterStore}. Reads always go to the primaries.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class AsyncRedisCounterStore implements AsyncCounterStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRedisCounterStore.class);
+
+	@Autowired
+	RedisCounterStore redisCounterStore;
+
+	@Autowired
+	RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	RedisScripts redisScripts;
+
+	@Autowired
+	IncrementBuffer incrementBuffer;
+
+	@Autowired
+	AccessCache accessCache;
+
+	@Autowired
+	AsyncRedis asyncRedis;
+
+	@Autowired
+	CounterLayout counterLayout;
+
+	@Autowired
+	TokenTtl tokenTtl;
+
+	@Value("${countmatic.async.threads:128}")
+	private int threads;
+
+	@Value("${countmatic.async.queueSize:10000}")
+	private int queueSize;
+
+	// set if the blocking store has to serve the async API
+	private OffloadingAsyncCounterStore offloading;
+
+	@PostConstruct
+	public void postConstruct() {
+		if (!redisScripts.isEnabled() || incrementBuffer.isEnabled()) {
+			LOGGER.info("Async API runs the blocking store on {} threads, it needs the scripts without the buffer",
+					threads);
+			offloading = new OffloadingAsyncCounterStore(redisCounterStore, threads, queueSize);
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		if (null != offloading) {
+			offloading.shutdown();
+		}
+	}
+
+	private CompletableFuture<List<Object>> eval(Script script, String token, String... args) {
+		return asyncRedis.eval(redisPoolProvider.getPool(token), script, new String[] { token }, args);
+	}
+
+	private CompletableFuture<ResponseEntity<Counter>> evalCounter(Script script, String token, String... args) {
+		return this.eval(script, token, args).thenApply(reply -> {
+			HttpStatus s = RedisCounterStore.statusOf(reply);
+			if (s != HttpStatus.OK) {
+				LOGGER.debug("Script {} answered {}", script, s);
+				return new ResponseEntity<>(s);
+			}
+			return RedisCounterStore
+					.toCounter(new ResponseEntity<>(RedisCounterStore.toCounters(reply), HttpStatus.OK));
+		});
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Token>> create(String token, String name, long value) {
+		if (null != offloading) {
+			return offloading.create(token, name, value);
+		}
+		InstrumentedJedisPool pool = redisPoolProvider.getPool(token);
+		Map<String, String> hash = counterLayout.newToken(name, value, System.currentTimeMillis());
+		// both are written at once, the second doesn't wait for the first
+		CompletableFuture<String> set = asyncRedis.send(pool, () -> asyncRedis.commands(pool).hmset(token, hash));
+		CompletableFuture<Boolean> expire = asyncRedis.send(pool,
+				() -> asyncRedis.commands(pool).expire(token, tokenTtl.ttl(token)));
+		return set.thenCombine(expire, (s, e) -> {
+			LOGGER.info("created new counter {}", token);
+			return new ResponseEntity<>(new Token().token(token), HttpStatus.OK);
+		});
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Token>> createReadOnly(String token, String roToken) {
+		if (null != offloading) {
+			return offloading.createReadOnly(token, roToken);
+		}
+		InstrumentedJedisPool pool = redisPoolProvider.getPool(token);
+		return asyncRedis.send(pool, () -> asyncRedis.commands(pool).hmget(token, "__access")).thenCompose(meta -> {
+			if (null == meta.get(0)) {
+				LOGGER.debug("Token unknown");
+				return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+			} else if (!"rw".equals(meta.get(0))) {
+				LOGGER.debug("Token not a rw token");
+				return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.FORBIDDEN));
+			}
+			Map<String, String> hash = new HashMap<String, String>();
+			hash.put("__token", token);
+			hash.put("__access", "ro");
+			// same server as the rw token, it's resolved within the read script
+			String ro = ShardRing.coLocate(token, roToken);
+			List<CompletableFuture<?>> writes = new ArrayList<>();
+			writes.add(asyncRedis.send(pool, () -> asyncRedis.commands(pool).hmset(ro, hash)));
+			writes.add(asyncRedis.send(pool, () -> asyncRedis.commands(pool).expire(ro, tokenTtl.ttl(ro))));
+			int ttl = tokenTtl.due(token);
+			if (ttl > 0) {
+				writes.add(asyncRedis.send(pool, () -> asyncRedis.commands(pool).expire(token, ttl)));
+			}
+			return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()])).thenApply(v -> {
+				LOGGER.info("Created new readonly token : {}", ro);
+				return new ResponseEntity<>(new Token().token(ro), HttpStatus.OK);
+			});
+		});
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counter>> add(String token, String name, long value) {
+		if (null != offloading) {
+			return offloading.add(token, name, value);
+		}
+		return this.evalCounter(Script.ADD, token, name, String.valueOf(value), CachedClock.text(),
+				tokenTtl.arg(token));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counter>> delete(String token, String name) {
+		if (null != offloading) {
+			return offloading.delete(token, name);
+		}
+		return this.evalCounter(Script.DELETE, token, RedisCounterStore.orEmpty(name), tokenTtl.arg(token))
+				.thenCompose(rc -> {
+					if (null == name && rc.getStatusCode() == HttpStatus.OK) {
+						return accessCache.invalidateAsync(token).thenApply(n -> rc);
+					}
+					return CompletableFuture.completedFuture(rc);
+				});
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counters>> read(String token, String name, String version) {
+		if (null != offloading) {
+			return offloading.read(token, name, version);
+		}
+		return this.eval(Script.READ, token, RedisCounterStore.orEmpty(name), tokenTtl.arg(token),
+				RedisCounterStore.orEmpty(version)).thenApply(RedisCounterStore::toRead);
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<CounterPage>> readPage(String token, String cursor, int count) {
+		if (null != offloading) {
+			return offloading.readPage(token, cursor, count);
+		}
+		return this.eval(Script.SCAN, token, cursor, String.valueOf(count),
+				"0".equals(cursor) ? tokenTtl.arg(token) : "0").thenApply(reply -> {
+					HttpStatus s = RedisCounterStore.statusOf(reply);
+					if (s != HttpStatus.OK) {
+						return new ResponseEntity<>(s);
+					}
+					// skip the cursor, the triples follow
+					Counters counters = RedisCounterStore.toCounters(reply.subList(1, reply.size()));
+					return new ResponseEntity<>(
+							new CounterPage().cursor(RedisScripts.text(reply.get(1))).counters(counters),
+							HttpStatus.OK);
+				});
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counter>> increment(String token, String name, long increment) {
+		if (null != offloading) {
+			return offloading.increment(token, name, increment);
+		}
+		return this.evalCounter(Script.NEXT, token, RedisCounterStore.orEmpty(name), String.valueOf(increment),
+				CachedClock.text(), tokenTtl.arg(token));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counter>> reset(String token, String name, long value) {
+		if (null != offloading) {
+			return offloading.reset(token, name, value);
+		}
+		return this.evalCounter(Script.RESET, token, RedisCounterStore.orEmpty(name), String.valueOf(value),
+				CachedClock.text(), tokenTtl.arg(token));
+	}
+
+	/**
+	 * Like {@link RedisCounterStore#incrementAll}, the tokens of a batch have
+	 * to live on the same redis server
+	 */
+	@Override
+	public CompletableFuture<ResponseEntity<Counters>> incrementAll(Map<String, List<Integer>> byToken,
+			List<CounterIncrement> increments) {
+		if (null != offloading) {
+			return offloading.incrementAll(byToken, increments);
+		}
+		InstrumentedJedisPool pool = redisCounterStore.poolOf(byToken.keySet());
+		if (null == pool) {
+			LOGGER.debug("Batch spans several redis servers");
+			return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+		}
+		String[] keys = byToken.keySet().toArray(new String[byToken.size()]);
+		List<String> args = redisCounterStore.batchArgs(byToken, increments, System.currentTimeMillis());
+		return asyncRedis.eval(pool, Script.BATCH, keys, args.toArray(new String[args.size()])).thenApply(reply -> {
+			Counter[] result = new Counter[increments.size()];
+			HttpStatus s = RedisCounterStore.fromBatch(reply, byToken, result);
+			if (s != HttpStatus.OK) {
+				return new ResponseEntity<>(s);
+			}
+			Counters counters = new Counters();
+			Collections.addAll(counters, result);
+			return new ResponseEntity<>(counters, HttpStatus.OK);
+		});
+	}
+
+}
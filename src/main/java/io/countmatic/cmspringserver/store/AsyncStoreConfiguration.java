@@ -0,0 +1,23 @@
+package io.countmatic.cmspringserver.store;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Provides the async API of the embedded store, which has no non-blocking
+ * access and runs on an executor. Redis has its {@link AsyncRedisCounterStore}.
+ */
+@Configuration
+public class AsyncStoreConfiguration {
+
+	@Bean(destroyMethod = "shutdown")
+	@ConditionalOnProperty(name = "countmatic.store", havingValue = "embedded")
+	public OffloadingAsyncCounterStore offloadingAsyncCounterStore(CounterStore counterStore,
+			@Value("${countmatic.async.threads:128}") int threads,
+			@Value("${countmatic.async.queueSize:10000}") int queueSize) {
+		return new OffloadingAsyncCounterStore(counterStore, threads, queueSize);
+	}
+
+}
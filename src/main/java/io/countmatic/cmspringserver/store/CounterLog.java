@@ -0,0 +1,280 @@
+package io.countmatic.cmspringserver.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the embedded store in a memory-mapped file. Appending is
+ * a copy into the mapping, the OS writes it back and {@link #force()} makes
+ * sure it's on disk. The mapping grows by doubling when full.
+ * <p>
+ * Each record is op, length, body and a CRC32 of the body. Replay stops at the
+ * first free or broken record, so a record torn by a crash is dropped with
+ * everything after it. Values are logged as they are after the change, which
+ * makes replaying a record twice harmless.
+ */
+final class CounterLog implements Closeable {
+
+	private static final int MAGIC = 0x434d4c31; // CML1
+	private static final int HEADER = 4;
+	// op, length, crc
+	private static final int OVERHEAD = 1 + 4 + 4;
+
+	static final byte TOKEN = 1;
+	static final byte SET = 2;
+	static final byte REMOVE = 3;
+	static final byte DROP = 4;
+	static final byte EXPIRE = 5;
+
+	/**
+	 * Receives the records of a replay
+	 */
+	interface Replay {
+		/**
+		 * @param token
+		 * @param rwToken
+		 *            empty for rw tokens
+		 * @param expires
+		 */
+		void token(String token, String rwToken, long expires);
+
+		void set(String token, String name, long value, long modified);
+
+		void remove(String token, String name);
+
+		void drop(String token);
+
+		void expire(String token, long expires);
+	}
+
+	private final Path path;
+	private final int size;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Open or create a log, appending after its last valid record
+	 *
+	 * @param path
+	 * @param size
+	 *            initial size of the mapping in bytes
+	 * @throws IOException
+	 */
+	CounterLog(Path path, int size) throws IOException {
+		this.path = path;
+		this.size = size;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long length = channel.size();
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, length));
+		if (length == 0) {
+			buffer.putInt(0, MAGIC);
+		} else if (buffer.getInt(0) != MAGIC) {
+			channel.close();
+			throw new IOException(path + " is not a counter log");
+		}
+		buffer.position(HEADER);
+		this.replay(null);
+	}
+
+	/**
+	 * Read all records from the start and leave the position after the last
+	 * valid one
+	 *
+	 * @param replay
+	 *            null to only find the end
+	 */
+	synchronized void replay(Replay replay) {
+		ByteBuffer b = buffer.duplicate();
+		int p = HEADER;
+		while (p + OVERHEAD <= b.capacity()) {
+			byte op = b.get(p);
+			int length = b.getInt(p + 1);
+			if (op < TOKEN || op > EXPIRE || length < 0 || p + OVERHEAD + length > b.capacity()) {
+				break;
+			}
+			b.limit(p + 5 + length).position(p + 5);
+			crc.reset();
+			crc.update(b.slice());
+			b.limit(b.capacity());
+			if ((int) crc.getValue() != b.getInt(p + 5 + length)) {
+				break;
+			}
+			if (null != replay) {
+				b.position(p + 5);
+				this.dispatch(op, b, replay);
+			}
+			p += OVERHEAD + length;
+		}
+		buffer.position(p);
+	}
+
+	private void dispatch(byte op, ByteBuffer b, Replay replay) {
+		String token = string(b);
+		switch (op) {
+		case TOKEN:
+			replay.token(token, string(b), b.getLong());
+			break;
+		case SET:
+			replay.set(token, string(b), b.getLong(), b.getLong());
+			break;
+		case REMOVE:
+			replay.remove(token, string(b));
+			break;
+		case DROP:
+			replay.drop(token);
+			break;
+		default:
+			replay.expire(token, b.getLong());
+		}
+	}
+
+	private static String string(ByteBuffer b) {
+		byte[] bytes = new byte[b.getInt()];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param token
+	 * @param rwToken
+	 *            null for rw tokens
+	 * @param expires
+	 */
+	synchronized void token(String token, String rwToken, long expires) {
+		byte[] t = bytes(token);
+		byte[] r = bytes(null == rwToken ? "" : rwToken);
+		ByteBuffer b = this.begin(TOKEN, 4 + t.length + 4 + r.length + 8);
+		b.putInt(t.length).put(t).putInt(r.length).put(r).putLong(expires);
+		this.end();
+	}
+
+	synchronized void set(String token, String name, long value, long modified) {
+		byte[] t = bytes(token);
+		byte[] n = bytes(name);
+		ByteBuffer b = this.begin(SET, 4 + t.length + 4 + n.length + 16);
+		b.putInt(t.length).put(t).putInt(n.length).put(n).putLong(value).putLong(modified);
+		this.end();
+	}
+
+	synchronized void remove(String token, String name) {
+		byte[] t = bytes(token);
+		byte[] n = bytes(name);
+		ByteBuffer b = this.begin(REMOVE, 4 + t.length + 4 + n.length);
+		b.putInt(t.length).put(t).putInt(n.length).put(n);
+		this.end();
+	}
+
+	synchronized void drop(String token) {
+		byte[] t = bytes(token);
+		this.begin(DROP, 4 + t.length).putInt(t.length).put(t);
+		this.end();
+	}
+
+	synchronized void expire(String token, long expires) {
+		byte[] t = bytes(token);
+		this.begin(EXPIRE, 4 + t.length + 8).putInt(t.length).put(t).putLong(expires);
+		this.end();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// the record being written
+	private int start;
+	private byte pending;
+
+	private ByteBuffer begin(byte op, int length) {
+		if (buffer.position() + OVERHEAD + length > buffer.capacity()) {
+			this.grow(OVERHEAD + length);
+		}
+		start = buffer.position();
+		pending = op;
+		// the op goes last, so a torn record reads as free
+		buffer.put(start, (byte) 0).putInt(start + 1, length);
+		buffer.position(start + 5);
+		return buffer;
+	}
+
+	private void end() {
+		ByteBuffer body = buffer.duplicate();
+		body.limit(buffer.position()).position(start + 5);
+		crc.reset();
+		crc.update(body.slice());
+		buffer.putInt((int) crc.getValue());
+		buffer.put(start, pending);
+	}
+
+	private void grow(int needed) {
+		int position = buffer.position();
+		long capacity = buffer.capacity();
+		while (capacity < position + needed) {
+			capacity *= 2;
+		}
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Counter log " + path + " is full");
+		}
+		try {
+			buffer.force();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			throw new IllegalStateException("Growing counter log " + path + " failed", e);
+		}
+		buffer.position(position);
+	}
+
+	/**
+	 * @return the bytes in use
+	 */
+	synchronized int position() {
+		return buffer.position();
+	}
+
+	/**
+	 * Write the appended records to disk
+	 */
+	synchronized void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Replace the log with a new one holding only what the writer logs. The new
+	 * log is written next to this one and moved over it when complete, a crash
+	 * meanwhile leaves the old log in place.
+	 *
+	 * @param writer
+	 *            logs the current state, nothing else may append meanwhile
+	 * @throws IOException
+	 */
+	synchronized void rewrite(Consumer<CounterLog> writer) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		CounterLog next = new CounterLog(tmp, size);
+		writer.accept(next);
+		next.force();
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// the old mapping is released by the GC
+		channel.close();
+		channel = next.channel;
+		buffer = next.buffer;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		buffer.force();
+		channel.close();
+	}
+
+}
@@ -0,0 +1,149 @@
+package io.countmatic.cmspringserver.store;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.springframework.http.ResponseEntity;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
+import io.countmatic.cmspringserver.redis.Tier;
+
+/**
+ * Storage of the tokens and their counters, chosen by countmatic.store. The
+ * controllers validate the requests and leave the rest to the store, which
+ * answers like the scripts do: OK with the result, NOT_FOUND for unknown
+ * tokens or names, FORBIDDEN for changes through ro tokens and BAD_REQUEST if
+ * the counter of a token with several counters isn't named.
+ * <p>
+ * Every change of the counters of a token bumps its version, which reads
+ * return as ETag, see {@link TokenVersion}.
+ * <p>
+ * All counters of one token are changed atomically, each store refreshes the
+ * TTL of the tokens it touches.
+ */
+public interface CounterStore {
+
+	/**
+	 * @return the backend reported by the server info
+	 */
+	String backend();
+
+	/**
+	 * Store a new rw token with one counter
+	 *
+	 * @param token
+	 * @param name
+	 * @param value
+	 * @return the token
+	 */
+	ResponseEntity<Token> create(String token, String name, long value);
+
+	/**
+	 * Store a new ro token reading the counters of a rw token
+	 *
+	 * @param token
+	 *            the rw token
+	 * @param roToken
+	 *            a new ro token, the store may move it to its rw token
+	 * @return the ro token as stored
+	 */
+	ResponseEntity<Token> createReadOnly(String token, String roToken);
+
+	/**
+	 * Add a counter or overwrite an existing one
+	 *
+	 * @param token
+	 * @param name
+	 * @param value
+	 * @return the counter
+	 */
+	ResponseEntity<Counter> add(String token, String name, long value);
+
+	/**
+	 * @param token
+	 * @param name
+	 *            null to delete the token
+	 * @return the deleted counter, 0 if the token was deleted
+	 */
+	ResponseEntity<Counter> delete(String token, String name);
+
+	/**
+	 * @param token
+	 *            a rw or ro token
+	 * @param name
+	 *            null for all counters
+	 * @param version
+	 *            version of the token known to the client, null for none
+	 * @return the counters and the version of the token, NOT_MODIFIED without
+	 *         counters if the version is still current
+	 */
+	ResponseEntity<Counters> read(String token, String name, String version);
+
+	/**
+	 * Read a page of the counters of a token, see
+	 * CounterController.getCurrentReadingPage
+	 *
+	 * @param token
+	 *            a rw or ro token
+	 * @param cursor
+	 *            0 for the first page
+	 * @param count
+	 *            number of counters per page, a hint only
+	 * @return the page, its cursor is 0 after the last one
+	 */
+	ResponseEntity<CounterPage> readPage(String token, String cursor, int count);
+
+	/**
+	 * @param token
+	 * @param name
+	 *            may be null if the token has a single counter
+	 * @param increment
+	 *            negative to decrement
+	 * @return the counter with its new value
+	 */
+	ResponseEntity<Counter> increment(String token, String name, long increment);
+
+	/**
+	 * @param token
+	 * @param name
+	 *            may be null if the token has a single counter
+	 * @param value
+	 * @return the counter with its new value
+	 */
+	ResponseEntity<Counter> reset(String token, String name, long value);
+
+	/**
+	 * Apply the increments of a batch, all or none. All tokens and names are
+	 * checked before any counter is changed, and no other change gets between
+	 * the check and the increments. Stores that can not guarantee this for the
+	 * given tokens refuse the batch.
+	 *
+	 * @param byToken
+	 *            the positions of the increments per token
+	 * @param increments
+	 * @return the new values in the order of the increments
+	 */
+	ResponseEntity<Counters> incrementAll(Map<String, List<Integer>> byToken, List<CounterIncrement> increments);
+
+	/**
+	 * @param tier
+	 * @return the number of keys, tokens and auxiliary ones, summed up over the
+	 *         servers
+	 */
+	long size(Tier tier);
+
+	/**
+	 * Walk all keys of a tier, the keys of auxiliary data contain a colon. Keys
+	 * added or removed meanwhile may be missed.
+	 *
+	 * @param tier
+	 * @param keys
+	 */
+	void scan(Tier tier, Consumer<String> keys);
+
+}
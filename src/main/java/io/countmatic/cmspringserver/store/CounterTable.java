@@ -0,0 +1,191 @@
+package io.countmatic.cmspringserver.store;
+
+import java.util.Arrays;
+
+/**
+ * The counters of one token in the embedded store. Names, values and
+ * timestamps are kept in parallel arrays indexed by an open addressing table,
+ * so there are no boxed longs and no entry objects per counter.
+ * <p>
+ * A counter keeps its position until it is removed, which makes positions
+ * usable as page cursors. Freed positions are reused by later counters. Not
+ * thread-safe, the store synchronizes on the token.
+ */
+final class CounterTable {
+
+	private String[] names;
+	private long[] values;
+	private long[] modified;
+	// position + 1 per slot, 0 for free slots, at most half full
+	private int[] slots;
+	// positions below end are in use or free
+	private int end;
+	private int size;
+	private int[] free;
+	private int freeCount;
+
+	CounterTable() {
+		this(2);
+	}
+
+	CounterTable(int capacity) {
+		capacity = Math.max(2, capacity);
+		names = new String[capacity];
+		values = new long[capacity];
+		modified = new long[capacity];
+		free = new int[capacity];
+		slots = new int[slotsFor(capacity)];
+	}
+
+	private static int slotsFor(int capacity) {
+		return Integer.highestOneBit(capacity * 4 - 1);
+	}
+
+	private int home(String name) {
+		int h = name.hashCode();
+		return (h ^ (h >>> 16)) & (slots.length - 1);
+	}
+
+	/**
+	 * @param name
+	 * @return the slot holding the counter or the free slot to put it in
+	 */
+	private int slot(String name) {
+		int mask = slots.length - 1;
+		int s = home(name);
+		while (slots[s] != 0 && !names[slots[s] - 1].equals(name)) {
+			s = (s + 1) & mask;
+		}
+		return s;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the positions to iterate, some of them may be free
+	 */
+	int end() {
+		return end;
+	}
+
+	/**
+	 * @param name
+	 * @return the position of the counter, -1 if there is none
+	 */
+	int find(String name) {
+		return slots[slot(name)] - 1;
+	}
+
+	/**
+	 * @return the position of the only counter, -1 if there are none or several
+	 */
+	int single() {
+		if (size != 1) {
+			return -1;
+		}
+		for (int p = 0; p < end; p++) {
+			if (null != names[p]) {
+				return p;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param position
+	 * @return the name of the counter, null if the position is free
+	 */
+	String name(int position) {
+		return names[position];
+	}
+
+	long value(int position) {
+		return values[position];
+	}
+
+	long modified(int position) {
+		return modified[position];
+	}
+
+	void set(int position, long value, long modified) {
+		this.values[position] = value;
+		this.modified[position] = modified;
+	}
+
+	/**
+	 * Add a counter or overwrite an existing one
+	 *
+	 * @param name
+	 * @param value
+	 * @param modified
+	 * @return its position
+	 */
+	int put(String name, long value, long modified) {
+		int s = slot(name);
+		if (slots[s] != 0) {
+			this.set(slots[s] - 1, value, modified);
+			return slots[s] - 1;
+		}
+		int p;
+		if (freeCount > 0) {
+			p = free[--freeCount];
+		} else {
+			if (end == names.length) {
+				grow();
+				s = slot(name);
+			}
+			p = end++;
+		}
+		names[p] = name;
+		slots[s] = p + 1;
+		size++;
+		this.set(p, value, modified);
+		return p;
+	}
+
+	/**
+	 * @param name
+	 * @return the former position of the counter, -1 if there was none
+	 */
+	int remove(String name) {
+		int s = slot(name);
+		int p = slots[s] - 1;
+		if (p < 0) {
+			return -1;
+		}
+		names[p] = null;
+		free[freeCount++] = p;
+		size--;
+		// shift the following slots back, so no lookup stops early
+		int mask = slots.length - 1;
+		int hole = s;
+		for (int next = (s + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+			int h = home(names[slots[next] - 1]);
+			// move unless the home slot lies cyclically within (hole, next]
+			boolean stays = hole <= next ? (hole < h && h <= next) : (hole < h || h <= next);
+			if (!stays) {
+				slots[hole] = slots[next];
+				hole = next;
+			}
+		}
+		slots[hole] = 0;
+		return p;
+	}
+
+	private void grow() {
+		int capacity = names.length * 2;
+		names = Arrays.copyOf(names, capacity);
+		values = Arrays.copyOf(values, capacity);
+		modified = Arrays.copyOf(modified, capacity);
+		free = Arrays.copyOf(free, capacity);
+		slots = new int[slotsFor(capacity)];
+		for (int p = 0; p < end; p++) {
+			if (null != names[p]) {
+				slots[slot(names[p])] = p + 1;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,683 @@
+package io.countmatic.cmspringserver.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
+import io.countmatic.cmspringserver.redis.Tier;
+import io.countmatic.cmspringserver.redis.TokenTtl;
+
+/**
+ * Counters within the server process, for single instances without redis.
+ * Tokens live in a concurrent map, the counters of each token in a
+ * {@link CounterTable}, and all changes of persistent tokens are appended to a
+ * {@link CounterLog} in countmatic.embedded.path. The log is written to disk
+ * every syncMillis, so a crash loses at most the changes of that interval.
+ * Ephemeral tokens are not logged and are lost on restart, like in the
+ * volatile redis.
+ * <p>
+ * Every compactMillis expired tokens are dropped and the log is rewritten
+ * once it has grown to twice its size after the last rewrite. Changes wait
+ * while the log is rewritten.
+ * <p>
+ * Counter streams, history, the write-behind buffer and the admin export are
+ * built on redis and not available with this store.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "embedded")
+public class EmbeddedCounterStore implements CounterStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedCounterStore.class);
+
+	@Autowired
+	TokenTtl tokenTtl;
+
+	// empty to keep the counters in memory only
+	@Value("${countmatic.embedded.path:}")
+	String path;
+
+	@Value("${countmatic.embedded.logSize:16777216}")
+	int logSize;
+
+	@Value("${countmatic.embedded.syncMillis:1000}")
+	long syncMillis;
+
+	@Value("${countmatic.embedded.compactMillis:60000}")
+	long compactMillis;
+
+	/**
+	 * A rw token with its counters or a ro token reading them
+	 */
+	static final class Entry {
+		// null for rw tokens
+		final String rwToken;
+		// null for ro tokens
+		final CounterTable counters;
+		volatile long expires;
+		// changes of the counters, guarded by the entry
+		long version;
+
+		Entry(String rwToken, long expires) {
+			this.rwToken = rwToken;
+			this.counters = null == rwToken ? new CounterTable() : null;
+			this.expires = expires;
+		}
+
+		boolean isRw() {
+			return null == rwToken;
+		}
+	}
+
+	// versions are not logged, so they start over with a new prefix
+	private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36) + ".";
+
+	private final Map<String, Entry> tokens = new ConcurrentHashMap<>();
+	// changes share the read lock, rewriting the log takes the write lock
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private CounterLog log;
+	private int compacted;
+	private ScheduledExecutorService scheduler;
+
+	@PostConstruct
+	public void postConstruct() throws IOException {
+		if (!path.isEmpty()) {
+			Path file = Paths.get(path);
+			if (null != file.getParent()) {
+				Files.createDirectories(file.getParent());
+			}
+			log = new CounterLog(file, logSize);
+			log.replay(new Replay());
+			this.dropExpired();
+			this.compact();
+			LOGGER.info("Loaded {} tokens from {}", tokens.size(), path);
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "cm-embedded-store");
+			t.setDaemon(true);
+			return t;
+		});
+		if (null != log) {
+			scheduler.scheduleWithFixedDelay(log::force, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+		}
+		scheduler.scheduleWithFixedDelay(this::maintain, compactMillis, compactMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void preDestroy() throws IOException {
+		scheduler.shutdown();
+		if (null != log) {
+			lock.writeLock().lock();
+			try {
+				log.close();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the tokens from the log
+	 */
+	private final class Replay implements CounterLog.Replay {
+		@Override
+		public void token(String token, String rwToken, long expires) {
+			tokens.put(token, new Entry(rwToken.isEmpty() ? null : rwToken, expires));
+		}
+
+		@Override
+		public void set(String token, String name, long value, long modified) {
+			Entry e = tokens.get(token);
+			if (null != e && e.isRw()) {
+				e.counters.put(name, value, modified);
+			}
+		}
+
+		@Override
+		public void remove(String token, String name) {
+			Entry e = tokens.get(token);
+			if (null != e && e.isRw()) {
+				e.counters.remove(name);
+			}
+		}
+
+		@Override
+		public void drop(String token) {
+			tokens.remove(token);
+		}
+
+		@Override
+		public void expire(String token, long expires) {
+			Entry e = tokens.get(token);
+			if (null != e) {
+				e.expires = expires;
+			}
+		}
+	}
+
+	void maintain() {
+		try {
+			this.dropExpired();
+			if (null != log && log.position() > 2 * compacted) {
+				this.compact();
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Maintaining the embedded store failed: {}", e.getMessage());
+		}
+	}
+
+	private void dropExpired() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, Entry>> i = tokens.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, Entry> e = i.next();
+			if (e.getValue().expires < now) {
+				this.drop(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the log with the current tokens only
+	 *
+	 * @throws IOException
+	 */
+	void compact() throws IOException {
+		lock.writeLock().lock();
+		try {
+			log.rewrite(next -> {
+				for (Map.Entry<String, Entry> e : tokens.entrySet()) {
+					if (logged(e.getKey())) {
+						logEntry(next, e.getKey(), e.getValue());
+					}
+				}
+			});
+			compacted = log.position();
+			LOGGER.debug("Compacted the counter log to {} bytes", compacted);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static void logEntry(CounterLog to, String token, Entry e) {
+		to.token(token, e.rwToken, e.expires);
+		if (e.isRw()) {
+			CounterTable t = e.counters;
+			for (int p = 0; p < t.end(); p++) {
+				if (null != t.name(p)) {
+					to.set(token, t.name(p), t.value(p), t.modified(p));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param token
+	 * @return whether changes of the token go to the log
+	 */
+	private boolean logged(String token) {
+		return null != log && Tier.of(token) == Tier.PERSISTENT;
+	}
+
+	private static long expiresAt(int ttl) {
+		return ttl == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + ttl * 1000L;
+	}
+
+	/**
+	 * @param token
+	 * @return the token, null if unknown or expired
+	 */
+	private Entry get(String token) {
+		Entry e = tokens.get(token);
+		if (null != e && e.expires < System.currentTimeMillis()) {
+			this.drop(token, e);
+			return null;
+		}
+		return e;
+	}
+
+	private void drop(String token, Entry e) {
+		lock.readLock().lock();
+		try {
+			if (tokens.remove(token, e) && logged(token)) {
+				log.drop(token);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Push the expiry of a token forward if due, see TokenTtl. Needs the read
+	 * lock.
+	 *
+	 * @param token
+	 * @param e
+	 */
+	private void touch(String token, Entry e) {
+		int ttl = tokenTtl.due(token);
+		if (ttl > 0) {
+			e.expires = expiresAt(ttl);
+			if (logged(token)) {
+				log.expire(token, e.expires);
+			}
+		}
+	}
+
+	/**
+	 * @param e
+	 * @return the status of a change through the token
+	 */
+	private static HttpStatus statusOf(Entry e) {
+		if (null == e) {
+			return HttpStatus.NOT_FOUND;
+		}
+		return e.isRw() ? HttpStatus.OK : HttpStatus.FORBIDDEN;
+	}
+
+	private static Counter counter(CounterTable t, int p) {
+		return new Counter().name(t.name(p)).count(t.value(p)).modified(t.modified(p));
+	}
+
+	/**
+	 * @param t
+	 * @param name
+	 * @return the position of the named or the only counter, NOT_FOUND -1 or
+	 *         BAD_REQUEST -2 if there is none
+	 */
+	private static int position(CounterTable t, String name) {
+		if (null != name) {
+			return t.find(name);
+		}
+		int p = t.single();
+		return p < 0 ? -2 : p;
+	}
+
+	private static HttpStatus missing(int position) {
+		return position == -1 ? HttpStatus.NOT_FOUND : HttpStatus.BAD_REQUEST;
+	}
+
+	@Override
+	public String backend() {
+		return "embedded";
+	}
+
+	@Override
+	public ResponseEntity<Token> create(String token, String name, long value) {
+		Entry e = new Entry(null, expiresAt(tokenTtl.ttl(token)));
+		long modified = System.currentTimeMillis();
+		lock.readLock().lock();
+		try {
+			synchronized (e) {
+				e.counters.put(name, value, modified);
+				tokens.put(token, e);
+				if (logged(token)) {
+					logEntry(log, token, e);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		LOGGER.info("created new counter {}", token);
+		return new ResponseEntity<>(new Token().token(token), HttpStatus.OK);
+	}
+
+	@Override
+	public ResponseEntity<Token> createReadOnly(String token, String roToken) {
+		Entry e = this.get(token);
+		HttpStatus s = statusOf(e);
+		if (s != HttpStatus.OK) {
+			return new ResponseEntity<>(s);
+		}
+		Entry ro = new Entry(token, expiresAt(tokenTtl.ttl(roToken)));
+		lock.readLock().lock();
+		try {
+			tokens.put(roToken, ro);
+			if (logged(roToken)) {
+				logEntry(log, roToken, ro);
+			}
+			this.touch(token, e);
+		} finally {
+			lock.readLock().unlock();
+		}
+		LOGGER.info("Created new readonly token : {}", roToken);
+		return new ResponseEntity<>(new Token().token(roToken), HttpStatus.OK);
+	}
+
+	@Override
+	public ResponseEntity<Counter> add(String token, String name, long value) {
+		Entry e = this.get(token);
+		HttpStatus s = statusOf(e);
+		if (s != HttpStatus.OK) {
+			return new ResponseEntity<>(s);
+		}
+		long modified = System.currentTimeMillis();
+		lock.readLock().lock();
+		try {
+			synchronized (e) {
+				e.counters.put(name, value, modified);
+				e.version++;
+				if (logged(token)) {
+					log.set(token, name, value, modified);
+				}
+			}
+			this.touch(token, e);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new ResponseEntity<>(new Counter().name(name).count(value).modified(modified), HttpStatus.OK);
+	}
+
+	@Override
+	public ResponseEntity<Counter> delete(String token, String name) {
+		Entry e = this.get(token);
+		HttpStatus s = statusOf(e);
+		if (s != HttpStatus.OK) {
+			return new ResponseEntity<>(s);
+		}
+		if (null == name) {
+			this.drop(token, e);
+			return new ResponseEntity<>(new Counter().count(0l).modified(0l), HttpStatus.OK);
+		}
+		lock.readLock().lock();
+		try {
+			Counter c;
+			synchronized (e) {
+				int p = e.counters.find(name);
+				if (p < 0) {
+					return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+				}
+				c = counter(e.counters, p);
+				e.counters.remove(name);
+				e.version++;
+				if (logged(token)) {
+					log.remove(token, name);
+				}
+			}
+			this.touch(token, e);
+			return new ResponseEntity<>(c, HttpStatus.OK);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param token
+	 *            a rw or ro token
+	 * @return the rw token holding the counters, null if unknown
+	 */
+	private Entry resolve(String token) {
+		Entry e = this.get(token);
+		if (null == e || e.isRw()) {
+			return e;
+		}
+		lock.readLock().lock();
+		try {
+			this.touch(token, e);
+		} finally {
+			lock.readLock().unlock();
+		}
+		Entry rw = this.get(e.rwToken);
+		return null == rw || !rw.isRw() ? null : rw;
+	}
+
+	@Override
+	public ResponseEntity<Counters> read(String token, String name, String version) {
+		Entry ro = this.get(token);
+		Entry e = this.resolve(token);
+		if (null == ro || null == e) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+		Counters counters = new Counters();
+		String current;
+		synchronized (e) {
+			current = EPOCH + e.version;
+			CounterTable t = e.counters;
+			if (current.equals(version)) {
+				counters = null;
+			} else if (null != name) {
+				int p = t.find(name);
+				if (p < 0) {
+					return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+				}
+				counters.add(counter(t, p));
+			} else {
+				for (int p = 0; p < t.end(); p++) {
+					if (null != t.name(p)) {
+						counters.add(counter(t, p));
+					}
+				}
+			}
+		}
+		lock.readLock().lock();
+		try {
+			this.touch(ro.isRw() ? token : ro.rwToken, e);
+		} finally {
+			lock.readLock().unlock();
+		}
+		// no counters if the client's are still current
+		return null == counters ? TokenVersion.notModified(current) : TokenVersion.ok(counters, current);
+	}
+
+	/**
+	 * The cursor is the position of the next counter in the token's table
+	 */
+	@Override
+	public ResponseEntity<CounterPage> readPage(String token, String cursor, int count) {
+		int from;
+		try {
+			from = Integer.parseInt(cursor);
+		} catch (NumberFormatException ex) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		Entry ro = this.get(token);
+		Entry e = this.resolve(token);
+		if (null == ro || null == e || from < 0) {
+			return new ResponseEntity<>(from < 0 ? HttpStatus.BAD_REQUEST : HttpStatus.NOT_FOUND);
+		}
+		Counters counters = new Counters();
+		int p = from;
+		synchronized (e) {
+			CounterTable t = e.counters;
+			for (; p < t.end() && counters.size() < count; p++) {
+				if (null != t.name(p)) {
+					counters.add(counter(t, p));
+				}
+			}
+			if (p >= t.end()) {
+				p = 0;
+			}
+		}
+		if (from == 0) {
+			lock.readLock().lock();
+			try {
+				this.touch(ro.isRw() ? token : ro.rwToken, e);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		return new ResponseEntity<>(new CounterPage().cursor(String.valueOf(p)).counters(counters), HttpStatus.OK);
+	}
+
+	/**
+	 * Set a counter to a new value computed from its current one
+	 *
+	 * @param token
+	 * @param name
+	 * @param increment
+	 *            added to the current value if reset is false
+	 * @param reset
+	 * @return the changed counter
+	 */
+	private ResponseEntity<Counter> change(String token, String name, long increment, boolean reset) {
+		Entry e = this.get(token);
+		HttpStatus s = statusOf(e);
+		if (s != HttpStatus.OK) {
+			return new ResponseEntity<>(s);
+		}
+		long modified = System.currentTimeMillis();
+		lock.readLock().lock();
+		try {
+			Counter c;
+			synchronized (e) {
+				CounterTable t = e.counters;
+				int p = position(t, name);
+				if (p < 0) {
+					return new ResponseEntity<>(missing(p));
+				}
+				t.set(p, reset ? increment : t.value(p) + increment, modified);
+				e.version++;
+				c = counter(t, p);
+				if (logged(token)) {
+					log.set(token, c.getName(), c.getCount(), modified);
+				}
+			}
+			this.touch(token, e);
+			return new ResponseEntity<>(c, HttpStatus.OK);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ResponseEntity<Counter> increment(String token, String name, long increment) {
+		return this.change(token, name, increment, false);
+	}
+
+	@Override
+	public ResponseEntity<Counter> reset(String token, String name, long value) {
+		return this.change(token, name, value, true);
+	}
+
+	/**
+	 * Run work holding the monitors of all entries, taken in the order given
+	 *
+	 * @param entries
+	 * @param i
+	 *            the first entry not held yet
+	 * @param work
+	 * @return the result of the work
+	 */
+	private static <T> T synchronizedAll(Entry[] entries, int i, Supplier<T> work) {
+		if (i == entries.length) {
+			return work.get();
+		}
+		synchronized (entries[i]) {
+			return synchronizedAll(entries, i + 1, work);
+		}
+	}
+
+	/**
+	 * All tokens are checked and changed while holding all of them, taken in
+	 * the order of the token names so two batches can't deadlock. So either
+	 * every increment is applied or none. A token deleted meanwhile is deleted
+	 * after the batch.
+	 */
+	@Override
+	public ResponseEntity<Counters> incrementAll(Map<String, List<Integer>> byToken,
+			List<CounterIncrement> increments) {
+		String[] order = byToken.keySet().toArray(new String[byToken.size()]);
+		Arrays.sort(order);
+		Entry[] entries = new Entry[order.length];
+		for (int k = 0; k < order.length; k++) {
+			entries[k] = this.get(order[k]);
+			HttpStatus s = statusOf(entries[k]);
+			if (s != HttpStatus.OK) {
+				return new ResponseEntity<>(s);
+			}
+		}
+		Counter[] result = new Counter[increments.size()];
+		long modified = System.currentTimeMillis();
+		lock.readLock().lock();
+		try {
+			HttpStatus s = synchronizedAll(entries, 0, () -> {
+				// check all before changing any
+				for (int k = 0; k < order.length; k++) {
+					for (int i : byToken.get(order[k])) {
+						if (entries[k].counters.find(increments.get(i).getName()) < 0) {
+							return HttpStatus.NOT_FOUND;
+						}
+					}
+				}
+				for (int k = 0; k < order.length; k++) {
+					String token = order[k];
+					Entry e = entries[k];
+					// before the first change, so no changed token keeps its version
+					e.version++;
+					for (int i : byToken.get(token)) {
+						CounterIncrement inc = increments.get(i);
+						int p = e.counters.find(inc.getName());
+						long increment = null == inc.getIncrement() ? 1l : inc.getIncrement();
+						e.counters.set(p, e.counters.value(p) + increment, modified);
+						result[i] = counter(e.counters, p);
+						if (logged(token)) {
+							log.set(token, inc.getName(), result[i].getCount(), modified);
+						}
+					}
+				}
+				return HttpStatus.OK;
+			});
+			if (s != HttpStatus.OK) {
+				return new ResponseEntity<>(s);
+			}
+			for (int k = 0; k < order.length; k++) {
+				this.touch(order[k], entries[k]);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Counters counters = new Counters();
+		Collections.addAll(counters, result);
+		return new ResponseEntity<>(counters, HttpStatus.OK);
+	}
+
+	@Override
+	public long size(Tier tier) {
+		long keys = 0;
+		for (String token : tokens.keySet()) {
+			if (Tier.of(token) == tier) {
+				keys++;
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	public void scan(Tier tier, Consumer<String> keys) {
+		for (String token : tokens.keySet()) {
+			if (Tier.of(token) == tier) {
+				keys.accept(token);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package io.countmatic.cmspringserver.store;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
+import io.countmatic.cmspringserver.redis.RequestStats;
+
+/**
+ * Runs a blocking {@link CounterStore} on an executor, for the stores and
+ * setups without a non-blocking client: the embedded store, and redis without
+ * scripts or with the increment buffer. Calls exceeding the executor queue
+ * are answered with SERVICE_UNAVAILABLE.
+ */
+public class OffloadingAsyncCounterStore implements AsyncCounterStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(OffloadingAsyncCounterStore.class);
+
+	private final CounterStore counterStore;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param counterStore
+	 * @param threads
+	 * @param queueSize
+	 */
+	public OffloadingAsyncCounterStore(CounterStore counterStore, int threads, int queueSize) {
+		this.counterStore = counterStore;
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize), r -> {
+					Thread t = new Thread(r, "cm-async-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private <T> CompletableFuture<ResponseEntity<T>> submit(Supplier<ResponseEntity<T>> work) {
+		try {
+			return CompletableFuture.supplyAsync(RequestStats.propagate(work), executor);
+		} catch (RejectedExecutionException e) {
+			LOGGER.warn("Async queue full, rejecting request");
+			return CompletableFuture.completedFuture(new ResponseEntity<T>(HttpStatus.SERVICE_UNAVAILABLE));
+		}
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Token>> create(String token, String name, long value) {
+		return submit(() -> counterStore.create(token, name, value));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Token>> createReadOnly(String token, String roToken) {
+		return submit(() -> counterStore.createReadOnly(token, roToken));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counter>> add(String token, String name, long value) {
+		return submit(() -> counterStore.add(token, name, value));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counter>> delete(String token, String name) {
+		return submit(() -> counterStore.delete(token, name));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counters>> read(String token, String name, String version) {
+		return submit(() -> counterStore.read(token, name, version));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<CounterPage>> readPage(String token, String cursor, int count) {
+		return submit(() -> counterStore.readPage(token, cursor, count));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counter>> increment(String token, String name, long increment) {
+		return submit(() -> counterStore.increment(token, name, increment));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counter>> reset(String token, String name, long value) {
+		return submit(() -> counterStore.reset(token, name, value));
+	}
+
+	@Override
+	public CompletableFuture<ResponseEntity<Counters>> incrementAll(Map<String, List<Integer>> byToken,
+			List<CounterIncrement> increments) {
+		return submit(() -> counterStore.incrementAll(byToken, increments));
+	}
+
+}
@@ -0,0 +1,1003 @@
+package io.countmatic.cmspringserver.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
+import io.countmatic.cmspringserver.redis.AccessCache;
+import io.countmatic.cmspringserver.redis.AccessCache.Access;
+import io.countmatic.cmspringserver.redis.CachedClock;
+import io.countmatic.cmspringserver.redis.CounterLayout;
+import io.countmatic.cmspringserver.redis.IncrementBuffer;
+import io.countmatic.cmspringserver.redis.InstrumentedJedisPool;
+import io.countmatic.cmspringserver.redis.RedisEvents;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import io.countmatic.cmspringserver.redis.RedisScripts;
+import io.countmatic.cmspringserver.redis.RedisScripts.Script;
+import io.countmatic.cmspringserver.redis.ShardRing;
+import io.countmatic.cmspringserver.redis.Tier;
+import io.countmatic.cmspringserver.redis.TokenTtl;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * The counters in redis, one hash per token. Uses the scripts if
+ * countmatic.scripting is set and the legacy commands otherwise, increments go
+ * through the write-behind buffer if enabled.
+ */
+@Component
+@ConditionalOnProperty(name = "countmatic.store", havingValue = "redis", matchIfMissing = true)
+public class RedisCounterStore implements CounterStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RedisCounterStore.class);
+
+	// attempts of a batch without scripts whose tokens change meanwhile
+	private static final int BATCH_ATTEMPTS = 5;
+
+	@Autowired
+	RedisPoolProvider redisPoolProvider;
+
+	@Autowired
+	RedisScripts redisScripts;
+
+	@Autowired
+	IncrementBuffer incrementBuffer;
+
+	@Autowired
+	AccessCache accessCache;
+
+	@Autowired
+	CounterLayout counterLayout;
+
+	@Autowired
+	TokenTtl tokenTtl;
+
+	// send the writes following the access check as one pipeline
+	@Value("${countmatic.pipelining:false}")
+	boolean pipelining;
+
+	@Override
+	public String backend() {
+		return "redis";
+	}
+
+	@Override
+	public ResponseEntity<Token> create(String token, String name, long value) {
+		Jedis jedis = null;
+		try {
+			jedis = redisPoolProvider.getResource(token);
+			Map<String, String> hash = counterLayout.newToken(name, value, System.currentTimeMillis());
+			jedis.hmset(token, hash);
+			jedis.expire(token, tokenTtl.ttl(token));
+			LOGGER.info("created new counter {}", token);
+		} finally {
+			if (null != jedis) {
+				redisPoolProvider.returnResource(jedis);
+			}
+		}
+		return new ResponseEntity<>(new Token().token(token), HttpStatus.OK);
+	}
+
+	/**
+	 * Check token for existence and rw access
+	 * 
+	 * @param j
+	 * @param token
+	 * @return OK or NOT_FOUND or FORBIDDEN
+	 */
+	private HttpStatus checkIfExistsAndRw(Jedis j, String token) {
+		HttpStatus rc = HttpStatus.OK;
+		Access access = accessCache.get(j, token);
+		if (null == access) {
+			LOGGER.debug("Token unknown");
+			rc = HttpStatus.NOT_FOUND;
+		} else if (!access.isRw()) {
+			LOGGER.debug("Token not a rw token");
+			rc = HttpStatus.FORBIDDEN;
+		}
+
+		return rc;
+	}
+
+	/**
+	 * Increment a counter, touch its timestamp and the tokens TTL
+	 * 
+	 * @param j
+	 * @param token
+	 * @param name
+	 * @param increment
+	 * @return the new value
+	 */
+	private Long incrementCounter(Jedis j, String token, String name, long increment) {
+		String modified = CachedClock.text();
+		if (pipelining) {
+			Pipeline p = j.pipelined();
+			Response<Long> newVal = p.hincrBy(token, name, increment);
+			p.hset(token, "__t_" + name, modified);
+			p.hincrBy(token, "__ver", 1);
+			tokenTtl.touch(p, token);
+			p.sync();
+			this.notifyChange(j, token, name, newVal.get().toString(), modified);
+			return newVal.get();
+		}
+		Long newVal = j.hincrBy(token, name, increment);
+		j.hset(token, "__t_" + name, modified);
+		j.hincrBy(token, "__ver", 1);
+		tokenTtl.touch(j, token);
+		this.notifyChange(j, token, name, newVal.toString(), modified);
+		return newVal;
+	}
+
+	/**
+	 * Set a counter, its timestamp and touch the tokens TTL
+	 * 
+	 * @param j
+	 * @param token
+	 * @param name
+	 * @param value
+	 * @param modified
+	 */
+	private void setCounter(Jedis j, String token, String name, Long value, long modified) {
+		if (pipelining) {
+			Pipeline p = j.pipelined();
+			p.hset(token, name, value.toString());
+			p.hset(token, "__t_" + name, String.valueOf(modified));
+			p.hincrBy(token, "__ver", 1);
+			tokenTtl.touch(p, token);
+			p.publish(RedisEvents.changesChannel(token),
+					RedisEvents.changeMessage(name, value.toString(), String.valueOf(modified)));
+			p.sync();
+			return;
+		}
+		j.hset(token, name, value.toString());
+		j.hset(token, "__t_" + name, String.valueOf(modified));
+		j.hincrBy(token, "__ver", 1);
+		tokenTtl.touch(j, token);
+		this.notifyChange(j, token, name, value.toString(), String.valueOf(modified));
+	}
+
+	/**
+	 * Tell the subscribers of a token about a change, done by the scripts
+	 * otherwise
+	 * 
+	 * @param j
+	 * @param token
+	 * @param name
+	 *            null if the token was deleted
+	 * @param value
+	 * @param modified
+	 */
+	private void notifyChange(Jedis j, String token, String name, String value, String modified) {
+		j.publish(RedisEvents.changesChannel(token), RedisEvents.changeMessage(name, value, modified));
+	}
+
+	/**
+	 * Get the single counter within token. If there are more counters, returns null.
+	 * Only the name is filled in, values are not transferred.
+	 * 
+	 * @param j
+	 * @param token
+	 * @return
+	 */
+	public Counter getTheOnlyOne(Jedis j, String token) {
+		Counter rc = null;
+		for (String key : j.hkeys(token)) {
+			if (!key.startsWith("__")) {
+				if (null == rc) {
+					rc = new Counter().name(key);
+				} else {
+					rc = null;
+					break;
+				}
+			}
+		}
+		return rc;
+	}
+
+	/**
+	 * Run a counter script on a token and convert its reply
+	 * 
+	 * @param script
+	 * @param token
+	 * @param args
+	 * @return the counters or the status reported by the script
+	 */
+	private ResponseEntity<Counters> runScript(Script script, String token, String... args) {
+		Jedis j = null;
+		try {
+			j = redisPoolProvider.getResource(token);
+			List<Object> reply = redisScripts.evalRaw(j, script, token, args);
+			HttpStatus s = statusOf(reply);
+			if (s != HttpStatus.OK) {
+				LOGGER.debug("Script {} answered {}", script, s);
+				return new ResponseEntity<>(s);
+			}
+			return new ResponseEntity<>(toCounters(reply), HttpStatus.OK);
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+	}
+
+	/**
+	 * Read counters from a replica. Replicas are read-only, so the TTL is
+	 * refreshed on the primary.
+	 * 
+	 * @param replica
+	 * @param token
+	 * @param name
+	 * @param version
+	 * @return the counters, null if the primary has to answer because the
+	 *         replica failed or doesn't know the token (yet)
+	 */
+	private ResponseEntity<Counters> readFromReplica(InstrumentedJedisPool replica, String token, String name,
+			String version) {
+		List<Object> reply;
+		try (Jedis r = replica.getResource()) {
+			reply = redisScripts.evalRaw(r, Script.READ, token, orEmpty(name), "0", orEmpty(version));
+		} catch (JedisConnectionException e) {
+			LOGGER.warn("Reading from {} failed: {}", replica.getName(), e.getMessage());
+			redisPoolProvider.markDown(replica);
+			return null;
+		}
+		HttpStatus s = statusOf(reply);
+		if (s == HttpStatus.NOT_FOUND) {
+			return null;
+		}
+		if (s == HttpStatus.OK || s == HttpStatus.NOT_MODIFIED) {
+			Jedis j = null;
+			try {
+				j = redisPoolProvider.getResource(token);
+				Access access = accessCache.get(j, token);
+				if (null != access) {
+					Pipeline p = j.pipelined();
+					tokenTtl.touch(p, token);
+					if (!access.isRw()) {
+						tokenTtl.touch(p, access.getRwToken());
+					}
+					p.sync();
+				}
+			} finally {
+				if (null != j) {
+					redisPoolProvider.returnResource(j);
+				}
+			}
+		}
+		return toRead(reply);
+	}
+
+	static HttpStatus statusOf(List<Object> reply) {
+		return HttpStatus.valueOf(((Long) reply.get(0)).intValue());
+	}
+
+	/**
+	 * Convert the reply of the read script, the version of the token follows
+	 * the status
+	 * 
+	 * @param reply
+	 * @return
+	 */
+	static ResponseEntity<Counters> toRead(List<Object> reply) {
+		HttpStatus s = statusOf(reply);
+		if (s == HttpStatus.NOT_MODIFIED) {
+			return TokenVersion.notModified(RedisScripts.text(reply.get(1)));
+		} else if (s != HttpStatus.OK) {
+			return new ResponseEntity<>(s);
+		}
+		// skip the version, the triples follow
+		return TokenVersion.ok(toCounters(reply.subList(1, reply.size())), RedisScripts.text(reply.get(1)));
+	}
+
+	/**
+	 * Convert the name, value, modified triples following the status of a
+	 * script reply, binary or decoded
+	 * 
+	 * @param reply
+	 * @return
+	 */
+	static Counters toCounters(List<Object> reply) {
+		Counters counters = new Counters();
+		for (int i = 1; i + 2 < reply.size(); i += 3) {
+			counters.add(new Counter().name(RedisScripts.text(reply.get(i)))
+					.count(RedisScripts.number(reply.get(i + 1))).modified(RedisScripts.number(reply.get(i + 2))));
+		}
+		return counters;
+	}
+
+	/**
+	 * Run a script changing a single counter
+	 * 
+	 * @param script
+	 * @param token
+	 * @param args
+	 * @return the changed counter or the status reported by the script
+	 */
+	private ResponseEntity<Counter> runCounterScript(Script script, String token, String... args) {
+		return toCounter(this.runScript(script, token, args));
+	}
+
+	/**
+	 * @param rc
+	 *            the counters of a script changing a single counter
+	 * @return the changed counter or the status reported by the script
+	 */
+	static ResponseEntity<Counter> toCounter(ResponseEntity<Counters> rc) {
+		if (rc.getStatusCode() != HttpStatus.OK) {
+			return new ResponseEntity<>(rc.getStatusCode());
+		}
+		// a deleted token has no counters left
+		Counter c = rc.getBody().isEmpty() ? new Counter().count(0l).modified(0l) : rc.getBody().get(0);
+		return new ResponseEntity<>(c, HttpStatus.OK);
+	}
+
+	/**
+	 * Check token and counter, then hand the increment to the write-behind
+	 * buffer
+	 * 
+	 * @param token
+	 * @param name
+	 * @param increment
+	 * @return the counters new value as reported by the buffer
+	 */
+	private ResponseEntity<Counter> bufferedIncrement(String token, String name, long increment) {
+		Jedis j = null;
+		try {
+			j = redisPoolProvider.getResource(token);
+			HttpStatus s = this.checkIfExistsAndRw(j, token);
+			if (s != HttpStatus.OK) {
+				return new ResponseEntity<>(s);
+			}
+			if (null == name) {
+				Counter c = this.getTheOnlyOne(j, token);
+				if (null == c) {
+					return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+				}
+				name = c.getName();
+			} else if (!j.hexists(token, name)) {
+				LOGGER.debug("Name unknown");
+				return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+		// don't hold the connection while waiting for the flush
+		long newVal = incrementBuffer.add(token, name, increment, tokenTtl.ttl(token));
+		return new ResponseEntity<>(new Counter().count(newVal).name(name).modified(0l), HttpStatus.OK);
+	}
+
+	static String orEmpty(String name) {
+		return null == name ? "" : name;
+	}
+
+	@Override
+	public ResponseEntity<Counter> add(String token, String name, long value) {
+		incrementBuffer.flushToken(token);
+		if (redisScripts.isEnabled()) {
+			return this.runCounterScript(Script.ADD, token, name, String.valueOf(value), CachedClock.text(),
+					tokenTtl.arg(token));
+		}
+		Jedis j = null;
+		ResponseEntity<Counter> response = null;
+		// check token
+		try {
+			j = redisPoolProvider.getResource(token);
+			HttpStatus s = this.checkIfExistsAndRw(j, token);
+			if (s != HttpStatus.OK) {
+				response = new ResponseEntity<>(s);
+			} else {
+				LOGGER.debug("OK, adding counter");
+				long modified = System.currentTimeMillis();
+				this.setCounter(j, token, name, value, modified);
+				Counter c = new Counter().count(value).name(name).modified(modified);
+				response = new ResponseEntity<>(c, HttpStatus.OK);
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+
+		return response;
+	}
+
+	@Override
+	public ResponseEntity<Counter> delete(String token, String name) {
+		incrementBuffer.flushToken(token);
+		if (redisScripts.isEnabled()) {
+			ResponseEntity<Counter> rc = this.runCounterScript(Script.DELETE, token, orEmpty(name),
+					tokenTtl.arg(token));
+			if (null == name && rc.getStatusCode() == HttpStatus.OK) {
+				accessCache.invalidate(token);
+			}
+			return rc;
+		}
+		Jedis j = null;
+		ResponseEntity<Counter> response = null;
+		// check token
+		try {
+			// FIXME: check that name doesnt start like "__"
+			j = redisPoolProvider.getResource(token);
+			HttpStatus s = this.checkIfExistsAndRw(j, token);
+			if (s != HttpStatus.OK) {
+				response = new ResponseEntity<>(s);
+			} else {
+				if (null != name) {
+					String val = j.hget(token, name);
+					if (null == val) {
+						LOGGER.debug("Name unknown");
+						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
+					} else {
+						LOGGER.debug("OK, deleting field in groupcounter");
+						String ts = j.hget(token, "__t_" + name);
+						if (null == ts) {
+							ts = "0";
+						}
+						Counter c = new Counter().count(Long.valueOf(val)).name(name).modified(Long.valueOf(ts));
+						j.hdel(token, name);
+						j.hincrBy(token, "__ver", 1);
+						tokenTtl.touch(j, token);
+						this.notifyChange(j, token, name, "", "");
+						response = new ResponseEntity<>(c, HttpStatus.OK);
+					}
+				} else {
+					LOGGER.debug("OK, deleting groupcounter");
+					j.del(token);
+					this.notifyChange(j, token, null, null, null);
+					accessCache.invalidate(token);
+					Counter c = new Counter().count(0l).name(name).modified(0l);
+					response = new ResponseEntity<>(c, HttpStatus.OK);
+				}
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+
+		return response;
+	}
+
+	@Override
+	public ResponseEntity<Counters> read(String token, String name, String version) {
+		if (redisScripts.isEnabled()) {
+			InstrumentedJedisPool replica = redisPoolProvider.getReadPool(token);
+			if (null != replica) {
+				ResponseEntity<Counters> response = this.readFromReplica(replica, token, name, version);
+				if (null != response) {
+					return response;
+				}
+			}
+			Jedis j = null;
+			try {
+				j = redisPoolProvider.getResource(token);
+				return toRead(redisScripts.evalRaw(j, Script.READ, token, orEmpty(name), tokenTtl.arg(token),
+						orEmpty(version)));
+			} finally {
+				if (null != j) {
+					redisPoolProvider.returnResource(j);
+				}
+			}
+		}
+		Jedis j = null;
+		ResponseEntity<Counters> response = null;
+		// check token
+		try {
+			// FIXME: check that name doesnt start like "__"
+			j = redisPoolProvider.getResource(token);
+			Access access = accessCache.get(j, token);
+			if (null == access) {
+				LOGGER.debug("Token unknown");
+				response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
+			} else if (!access.isRw()) {
+				LOGGER.debug("Forwarding to rw Token");
+				String rwToken = access.getRwToken();
+				tokenTtl.touch(j, token);
+				return this.read(rwToken, name, version);
+			} else {
+				// read before the counters, so a change meanwhile is not missed
+				String current = j.hget(token, "__ver");
+				if (null == current) {
+					current = "0";
+				}
+				if (current.equals(version)) {
+					tokenTtl.touch(j, token);
+					return TokenVersion.notModified(current);
+				}
+				Counters counters = new Counters();
+				if (null != name) {
+					String val = j.hget(token, name);
+					if (null == val) {
+						LOGGER.debug("Name unknown");
+						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
+					} else {
+						LOGGER.debug("OK, have field in counter");
+						String ts = j.hget(token, "__t_" + name);
+						if (null == ts) {
+							ts = "0";
+						}
+						Counter c = new Counter().count(Long.valueOf(val)).name(name).modified(Long.valueOf(ts));
+						tokenTtl.touch(j, token);
+						counters.add(c);
+						response = TokenVersion.ok(counters, current);
+					}
+				} else {
+					LOGGER.debug("OK, fetching all groupcounters");
+					Map<String, String> map = j.hgetAll(token);
+					for (String key : map.keySet()) {
+						if (!key.startsWith("__")) {
+							String ts = map.get("__t_" + key);
+							if (null == ts) {
+								ts = "0";
+							}
+							Counter c = new Counter().count(Long.valueOf(map.get(key))).name(key)
+									.modified(Long.valueOf(ts));
+							counters.add(c);
+						}
+					}
+					tokenTtl.touch(j, token);
+					response = TokenVersion.ok(counters, current);
+				}
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * Read one HSCAN page of the counters of a token
+	 * 
+	 * @param token
+	 * @param cursor
+	 * @param count
+	 * @return the page or NOT_FOUND
+	 */
+	@Override
+	public ResponseEntity<CounterPage> readPage(String token, String cursor, int count) {
+		Jedis j = null;
+		try {
+			j = redisPoolProvider.getResource(token);
+			if (redisScripts.isEnabled()) {
+				List<Object> reply = redisScripts.eval(j, Script.SCAN, token, cursor, String.valueOf(count),
+						"0".equals(cursor) ? tokenTtl.arg(token) : "0");
+				HttpStatus s = statusOf(reply);
+				if (s != HttpStatus.OK) {
+					return new ResponseEntity<>(s);
+				}
+				// skip the cursor, the triples follow
+				Counters counters = toCounters(reply.subList(1, reply.size()));
+				return new ResponseEntity<>(new CounterPage().cursor((String) reply.get(1)).counters(counters),
+						HttpStatus.OK);
+			}
+			Access access = accessCache.get(j, token);
+			String key = token;
+			if (null != access && !access.isRw()) {
+				key = access.getRwToken();
+				if ("0".equals(cursor)) {
+					tokenTtl.touch(j, token);
+				}
+				access = accessCache.get(j, key);
+			}
+			if (null == access || !access.isRw()) {
+				return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+			}
+			ScanResult<Map.Entry<String, String>> page = j.hscan(key, cursor, new ScanParams().count(count));
+			List<String> names = new ArrayList<>();
+			List<String> values = new ArrayList<>();
+			for (Map.Entry<String, String> e : page.getResult()) {
+				if (!e.getKey().startsWith("__")) {
+					names.add(e.getKey());
+					values.add(e.getValue());
+				}
+			}
+			Counters counters = new Counters();
+			if (!names.isEmpty()) {
+				String[] tsFields = new String[names.size()];
+				for (int i = 0; i < tsFields.length; i++) {
+					tsFields[i] = "__t_" + names.get(i);
+				}
+				List<String> ts = j.hmget(key, tsFields);
+				for (int i = 0; i < tsFields.length; i++) {
+					counters.add(new Counter().name(names.get(i)).count(Long.valueOf(values.get(i)))
+							.modified(null == ts.get(i) ? 0l : Long.valueOf(ts.get(i))));
+				}
+			}
+			if ("0".equals(cursor)) {
+				tokenTtl.touch(j, key);
+			}
+			return new ResponseEntity<>(new CounterPage().cursor(page.getStringCursor()).counters(counters),
+					HttpStatus.OK);
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+	}
+
+	@Override
+	public ResponseEntity<Token> createReadOnly(String token, String roToken) {
+		Jedis j = null;
+		ResponseEntity<Token> response = null;
+		// check token
+		try {
+			j = redisPoolProvider.getResource(token);
+			HttpStatus s = this.checkIfExistsAndRw(j, token);
+			if (s != HttpStatus.OK) {
+				response = new ResponseEntity<>(s);
+			} else {
+				LOGGER.debug("OK, creating ro token");
+				Map<String, String> hash = new HashMap<String, String>();
+				hash.put("__token", token);
+				hash.put("__access", "ro");
+				// same server as the rw token, it's resolved within the read script
+				roToken = ShardRing.coLocate(token, roToken);
+				j.hmset(roToken, hash);
+				j.expire(roToken, tokenTtl.ttl(roToken));
+				tokenTtl.touch(j, token);
+				response = new ResponseEntity<>(new Token().token(roToken), HttpStatus.OK);
+				LOGGER.info("Created new readonly token : {}", roToken);
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+
+		return response;
+	}
+
+	@Override
+	public ResponseEntity<Counter> increment(String token, String name, long increment) {
+		if (incrementBuffer.isEnabled()) {
+			return this.bufferedIncrement(token, name, increment);
+		}
+		if (redisScripts.isEnabled()) {
+			return this.runCounterScript(Script.NEXT, token, orEmpty(name), String.valueOf(increment),
+					CachedClock.text(), tokenTtl.arg(token));
+		}
+		Jedis j = null;
+		ResponseEntity<Counter> response = null;
+		// check token
+		try {
+			j = redisPoolProvider.getResource(token);
+			HttpStatus s = this.checkIfExistsAndRw(j, token);
+			if (s != HttpStatus.OK) {
+				response = new ResponseEntity<>(s);
+			} else {
+				LOGGER.debug("OK, incrementing");
+				if (null != name) {
+					String val = j.hget(token, name);
+					if (null == val) {
+						LOGGER.debug("Name unknown");
+						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
+					} else {
+						LOGGER.debug("OK, incrementing field in counter");
+						Long newVal = this.incrementCounter(j, token, name, increment);
+						Counter c = new Counter().count(newVal).name(name).modified(0l);
+						response = new ResponseEntity<>(c, HttpStatus.OK);
+					}
+				} else {
+					LOGGER.debug("OK, incrementing singlecounter");
+					Counter c = this.getTheOnlyOne(j, token);
+					if (null == c) {
+						response = new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+					} else {
+						Long newVal = this.incrementCounter(j, token, c.getName(), increment);
+						response = new ResponseEntity<>(new Counter().count(newVal).name(c.getName()).modified(0l),
+								HttpStatus.OK);
+					}
+				}
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+
+		return response;
+	}
+
+	@Override
+	public ResponseEntity<Counter> reset(String token, String name, long value) {
+		incrementBuffer.flushToken(token);
+		if (redisScripts.isEnabled()) {
+			return this.runCounterScript(Script.RESET, token, orEmpty(name), String.valueOf(value),
+					CachedClock.text(), tokenTtl.arg(token));
+		}
+		Jedis j = null;
+		ResponseEntity<Counter> response = null;
+		// check token
+		try {
+			j = redisPoolProvider.getResource(token);
+			HttpStatus s = this.checkIfExistsAndRw(j, token);
+			if (s != HttpStatus.OK) {
+				response = new ResponseEntity<>(s);
+			} else {
+				LOGGER.debug("OK, make reset");
+				if (null != name) {
+					String val = j.hget(token, name);
+					if (null == val) {
+						LOGGER.debug("Name unknown");
+						response = new ResponseEntity<>(HttpStatus.NOT_FOUND);
+					} else {
+						LOGGER.debug("OK, reset field in counter");
+						this.setCounter(j, token, name, value, System.currentTimeMillis());
+						response = new ResponseEntity<>(new Counter().count(value).name(name).modified(0l),
+								HttpStatus.OK);
+					}
+				} else {
+					LOGGER.debug("OK, reset singlecounter");
+					Counter c = this.getTheOnlyOne(j, token);
+					if (null == c) {
+						response = new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+					} else {
+						this.setCounter(j, token, c.getName(), value, System.currentTimeMillis());
+						response = new ResponseEntity<>(new Counter().count(value).name(c.getName()).modified(0l),
+								HttpStatus.OK);
+					}
+				}
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * Check all tokens and counters of a batch before changing any of them
+	 * 
+	 * @param j
+	 * @param byToken
+	 * @param increments
+	 * @return OK or the status of the first failing check
+	 */
+	private HttpStatus checkBatch(Jedis j, Map<String, List<Integer>> byToken, List<CounterIncrement> increments) {
+		for (String t : byToken.keySet()) {
+			HttpStatus s = this.checkIfExistsAndRw(j, t);
+			if (s != HttpStatus.OK) {
+				return s;
+			}
+		}
+		Pipeline p = j.pipelined();
+		List<Response<Boolean>> exists = new ArrayList<>(increments.size());
+		for (Map.Entry<String, List<Integer>> e : byToken.entrySet()) {
+			for (int i : e.getValue()) {
+				exists.add(p.hexists(e.getKey(), increments.get(i).getName()));
+			}
+		}
+		p.sync();
+		for (Response<Boolean> r : exists) {
+			if (!r.get()) {
+				LOGGER.debug("Name unknown");
+				return HttpStatus.NOT_FOUND;
+			}
+		}
+		return HttpStatus.OK;
+	}
+
+	/**
+	 * Apply the increments of a batch to the tokens of one redis server, all
+	 * or none. The script checks and changes all tokens at once. The commands
+	 * WATCH the tokens while checking them and change them in one MULTI, which
+	 * is retried a few times if a token changed meanwhile.
+	 * 
+	 * @param j
+	 * @param byToken
+	 * @param increments
+	 * @param result
+	 *            receives the new values at the positions of their increments
+	 * @param modified
+	 * @return OK, the status of the failing check or CONFLICT if the tokens
+	 *         kept changing
+	 */
+	private HttpStatus applyBatch(Jedis j, Map<String, List<Integer>> byToken, List<CounterIncrement> increments,
+			Counter[] result, long modified) {
+		List<String> tokens = new ArrayList<>(byToken.keySet());
+		if (redisScripts.isEnabled()) {
+			return fromBatch(redisScripts.eval(j, Script.BATCH, tokens, this.batchArgs(byToken, increments, modified)),
+					byToken, result);
+		}
+		String[] keys = tokens.toArray(new String[tokens.size()]);
+		for (int attempt = 0; attempt < BATCH_ATTEMPTS; attempt++) {
+			j.watch(keys);
+			HttpStatus s = this.checkBatch(j, byToken, increments);
+			if (s != HttpStatus.OK) {
+				j.unwatch();
+				return s;
+			}
+			Transaction t = j.multi();
+			List<Response<Long>> values = new ArrayList<>(increments.size());
+			for (Map.Entry<String, List<Integer>> e : byToken.entrySet()) {
+				Map<String, String> timestamps = new HashMap<String, String>();
+				for (int i : e.getValue()) {
+					CounterIncrement inc = increments.get(i);
+					values.add(t.hincrBy(e.getKey(), inc.getName(), incrementOf(inc)));
+					timestamps.put("__t_" + inc.getName(), String.valueOf(modified));
+				}
+				t.hmset(e.getKey(), timestamps);
+				t.hincrBy(e.getKey(), "__ver", 1);
+				int ttl = tokenTtl.due(e.getKey());
+				if (ttl > 0) {
+					t.expire(e.getKey(), ttl);
+				}
+			}
+			if (null == t.exec()) {
+				LOGGER.debug("Batch tokens changed meanwhile, attempt {}", attempt + 1);
+				continue;
+			}
+			int v = 0;
+			Pipeline p = j.pipelined();
+			for (Map.Entry<String, List<Integer>> e : byToken.entrySet()) {
+				for (int i : e.getValue()) {
+					result[i] = new Counter().name(increments.get(i).getName()).count(values.get(v++).get())
+							.modified(modified);
+					p.publish(RedisEvents.changesChannel(e.getKey()), RedisEvents.changeMessage(result[i].getName(),
+							result[i].getCount().toString(), String.valueOf(modified)));
+				}
+			}
+			p.sync();
+			return HttpStatus.OK;
+		}
+		LOGGER.warn("Batch gave up after {} attempts, tokens kept changing", BATCH_ATTEMPTS);
+		return HttpStatus.CONFLICT;
+	}
+
+	/**
+	 * @param byToken
+	 * @param increments
+	 * @param modified
+	 * @return the arguments of the batch script for the tokens of byToken, in
+	 *         its order
+	 */
+	List<String> batchArgs(Map<String, List<Integer>> byToken, List<CounterIncrement> increments, long modified) {
+		List<String> args = new ArrayList<>(1 + 2 * byToken.size() + 2 * increments.size());
+		args.add(String.valueOf(modified));
+		for (Map.Entry<String, List<Integer>> e : byToken.entrySet()) {
+			args.add(tokenTtl.arg(e.getKey()));
+			args.add(String.valueOf(e.getValue().size()));
+			for (int i : e.getValue()) {
+				args.add(increments.get(i).getName());
+				args.add(String.valueOf(incrementOf(increments.get(i))));
+			}
+		}
+		return args;
+	}
+
+	/**
+	 * Convert the reply of the batch script
+	 * 
+	 * @param reply
+	 * @param byToken
+	 * @param result
+	 *            receives the new values at the positions of their increments
+	 * @return OK or the status reported by the script
+	 */
+	static HttpStatus fromBatch(List<Object> reply, Map<String, List<Integer>> byToken, Counter[] result) {
+		HttpStatus s = statusOf(reply);
+		if (s != HttpStatus.OK) {
+			LOGGER.debug("Batch answered {}", s);
+			return s;
+		}
+		Counters counters = toCounters(reply);
+		int c = 0;
+		for (List<Integer> positions : byToken.values()) {
+			for (int i : positions) {
+				result[i] = counters.get(c++);
+			}
+		}
+		return HttpStatus.OK;
+	}
+
+	/**
+	 * @param tokens
+	 * @return the pool of the server holding all tokens, null if they are
+	 *         spread over several
+	 */
+	InstrumentedJedisPool poolOf(Collection<String> tokens) {
+		InstrumentedJedisPool pool = null;
+		for (String t : tokens) {
+			InstrumentedJedisPool p = redisPoolProvider.getPool(t);
+			if (null != pool && pool != p) {
+				return null;
+			}
+			pool = p;
+		}
+		return pool;
+	}
+
+	static long incrementOf(CounterIncrement inc) {
+		return null == inc.getIncrement() ? 1l : inc.getIncrement();
+	}
+
+	/**
+	 * All tokens of a batch have to live on the same redis server, their
+	 * counters then change all or none, see {@link #applyBatch}. Batches
+	 * spanning several servers are refused with BAD_REQUEST, as they could
+	 * not be applied atomically and a partly applied batch would be retried
+	 * by clients and counted twice.
+	 */
+	@Override
+	public ResponseEntity<Counters> incrementAll(Map<String, List<Integer>> byToken,
+			List<CounterIncrement> increments) {
+		InstrumentedJedisPool pool = this.poolOf(byToken.keySet());
+		if (null == pool) {
+			LOGGER.debug("Batch spans several redis servers");
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		Counter[] result = new Counter[increments.size()];
+		Jedis j = null;
+		try {
+			j = pool.getResource();
+			HttpStatus s = this.applyBatch(j, byToken, increments, result, System.currentTimeMillis());
+			if (s != HttpStatus.OK) {
+				return new ResponseEntity<>(s);
+			}
+		} finally {
+			if (null != j) {
+				redisPoolProvider.returnResource(j);
+			}
+		}
+		Counters counters = new Counters();
+		Collections.addAll(counters, result);
+		return new ResponseEntity<>(counters, HttpStatus.OK);
+	}
+
+	@Override
+	public long size(Tier tier) {
+		long keys = 0;
+		for (InstrumentedJedisPool pool : redisPoolProvider.getRing(tier).getPools()) {
+			try (Jedis j = pool.getResource()) {
+				keys += j.dbSize();
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	public void scan(Tier tier, Consumer<String> keys) {
+		ScanParams params = new ScanParams().count(1000);
+		for (InstrumentedJedisPool pool : redisPoolProvider.getRing(tier).getPools()) {
+			try (Jedis j = pool.getResource()) {
+				String cursor = ScanParams.SCAN_POINTER_START;
+				do {
+					ScanResult<String> page = j.scan(cursor, params);
+					page.getResult().forEach(keys);
+					cursor = page.getStringCursor();
+				} while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+			}
+		}
+	}
+
+}
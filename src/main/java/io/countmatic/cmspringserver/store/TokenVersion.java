@@ -0,0 +1,66 @@
+package io.countmatic.cmspringserver.store;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Versions of tokens as ETags. Each change of the counters of a rw token bumps
+ * its version, its ro tokens share it. The ETags are weak, as the same
+ * version is served in several formats.
+ */
+public final class TokenVersion {
+
+	private TokenVersion() {
+	}
+
+	/**
+	 * @param version
+	 * @return the ETag
+	 */
+	public static String etag(String version) {
+		return "W/\"" + version + "\"";
+	}
+
+	/**
+	 * @param ifNoneMatch
+	 *            value of an If-None-Match header, may be null
+	 * @return the version of the single ETag in it, null if there is none or
+	 *         several. Those are left to the usual conditional request handling.
+	 */
+	public static String parse(String ifNoneMatch) {
+		if (null == ifNoneMatch) {
+			return null;
+		}
+		String tag = ifNoneMatch.trim();
+		if (tag.startsWith("W/")) {
+			tag = tag.substring(2);
+		}
+		if (tag.length() < 2 || tag.charAt(0) != '"' || tag.indexOf('"', 1) != tag.length() - 1) {
+			return null;
+		}
+		return tag.substring(1, tag.length() - 1);
+	}
+
+	/**
+	 * @param body
+	 * @param version
+	 * @return OK with the body and the version as ETag
+	 */
+	static <T> ResponseEntity<T> ok(T body, String version) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag(etag(version));
+		return new ResponseEntity<>(body, headers, HttpStatus.OK);
+	}
+
+	/**
+	 * @param version
+	 * @return NOT_MODIFIED with the version as ETag
+	 */
+	static <T> ResponseEntity<T> notModified(String version) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag(etag(version));
+		return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+	}
+
+}
@@ -0,0 +1,61 @@
+package io.countmatic.cmspringserver.token;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import io.countmatic.cmspringserver.redis.Tier;
+
+/**
+ * 128 random bits in base62 and the postfix, 25 or 26 characters. Each thread
+ * draws from a SecureRandom of its own, seeded once from the system's, so
+ * concurrent requests don't contend for a shared one.
+ */
+public class Base62TokenGenerator implements TokenGenerator {
+
+	private static final char[] ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+			.toCharArray();
+
+	// 62^11 > 2^64
+	static final int CHARS_PER_LONG = 11;
+
+	private static final SecureRandom SEEDS = new SecureRandom();
+
+	private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> {
+		byte[] seed = new byte[32];
+		SEEDS.nextBytes(seed);
+		try {
+			SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+			// seeded before first use, so it's not seeded from the system again
+			random.setSeed(seed);
+			return random;
+		} catch (NoSuchAlgorithmException e) {
+			return new SecureRandom(seed);
+		}
+	});
+
+	@Override
+	public String newToken(Tier tier, boolean readonly) {
+		SecureRandom random = RANDOM.get();
+		String postfix = tier.postfix(readonly);
+		char[] token = new char[2 * CHARS_PER_LONG + postfix.length()];
+		encode(random.nextLong(), token, 0);
+		encode(random.nextLong(), token, CHARS_PER_LONG);
+		postfix.getChars(0, postfix.length(), token, 2 * CHARS_PER_LONG);
+		return new String(token);
+	}
+
+	/**
+	 * Write a long as unsigned base62 number of CHARS_PER_LONG digits
+	 *
+	 * @param value
+	 * @param to
+	 * @param offset
+	 */
+	static void encode(long value, char[] to, int offset) {
+		for (int i = offset + CHARS_PER_LONG - 1; i >= offset; i--) {
+			to[i] = ALPHABET[(int) Long.remainderUnsigned(value, ALPHABET.length)];
+			value = Long.divideUnsigned(value, ALPHABET.length);
+		}
+	}
+
+}
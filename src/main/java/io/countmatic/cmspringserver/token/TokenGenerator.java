@@ -0,0 +1,22 @@
+package io.countmatic.cmspringserver.token;
+
+import io.countmatic.cmspringserver.redis.Tier;
+
+/**
+ * Creates the tokens, which are the redis keys of the counters. Tokens have to
+ * end with the postfix of their tier and access, see {@link Tier}, and are
+ * placed on the shards by their first characters, so those have to be random.
+ * <p>
+ * Pick an implementation by countmatic.tokens.generator or provide a bean of
+ * your own. Tokens of all generators are accepted at any time.
+ */
+public interface TokenGenerator {
+
+	/**
+	 * @param tier
+	 * @param readonly
+	 * @return a new unique token
+	 */
+	String newToken(Tier tier, boolean readonly);
+
+}
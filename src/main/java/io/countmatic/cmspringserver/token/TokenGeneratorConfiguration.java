@@ -0,0 +1,28 @@
+package io.countmatic.cmspringserver.token;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Provides the token generator chosen by countmatic.tokens.generator, unless
+ * there's another TokenGenerator bean
+ */
+@Configuration
+public class TokenGeneratorConfiguration {
+
+	@Bean
+	@ConditionalOnMissingBean(TokenGenerator.class)
+	public TokenGenerator tokenGenerator(@Value("${countmatic.tokens.generator:base62}") String generator) {
+		switch (generator.trim().toLowerCase()) {
+		case "base62":
+			return new Base62TokenGenerator();
+		case "uuid":
+			return new UuidTokenGenerator();
+		default:
+			throw new RuntimeException("Please set countmatic.tokens.generator to base62 or uuid");
+		}
+	}
+
+}
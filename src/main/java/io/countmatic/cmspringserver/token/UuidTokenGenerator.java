@@ -0,0 +1,18 @@
+package io.countmatic.cmspringserver.token;
+
+import java.util.UUID;
+
+import io.countmatic.cmspringserver.redis.Tier;
+
+/**
+ * The original tokens, a random UUID and the postfix, 39 or 40 characters. All
+ * threads share the SecureRandom of UUID.
+ */
+public class UuidTokenGenerator implements TokenGenerator {
+
+	@Override
+	public String newToken(Tier tier, boolean readonly) {
+		return UUID.randomUUID() + tier.postfix(readonly);
+	}
+
+}
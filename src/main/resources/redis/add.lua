@@ -0,0 +1,21 @@
+-- Add a counter to a rw token in one round trip.
+--
+-- KEYS[1] token
+-- ARGV[1] name of the counter
+-- ARGV[2] initial value
+-- ARGV[3] modification time in millis
+-- ARGV[4] ttl of the token in seconds, 0 to leave it alone
+--
+-- Returns { status } on errors, { 200, name, value, modified } otherwise
+local access, _, compact = token_meta(KEYS[1])
+if not access then
+	return { 404 }
+elseif access ~= 'rw' then
+	return { 403 }
+end
+
+set_counter(KEYS[1], ARGV[1], ARGV[2], ARGV[3], compact)
+bump(KEYS[1])
+touch(KEYS[1], ARGV[4])
+notify(KEYS[1], ARGV[1], ARGV[2], ARGV[3])
+return { 200, ARGV[1], ARGV[2], ARGV[3] }
@@ -0,0 +1,49 @@
+-- Increment counters of one or several rw tokens of one server in one round
+-- trip. Either all tokens and counters exist and get incremented or none.
+--
+-- KEYS[1..n] tokens
+-- ARGV[1] modification time in millis
+-- then per token, in the order of KEYS:
+--   ttl of the token in seconds, 0 to leave it alone
+--   number of increments m
+--   m pairs of counter name and increment
+--
+-- Returns { status } on errors,
+-- { 200, name, value, modified, name, value, modified, ... } otherwise, in the
+-- order of KEYS and their pairs
+local tokens = {}
+local a = 2
+for k = 1, #KEYS do
+	local access, _, compact, history = token_meta(KEYS[k])
+	if not access then
+		return { 404 }
+	elseif access ~= 'rw' then
+		return { 403 }
+	end
+	local m = tonumber(ARGV[a + 1])
+	tokens[k] = { ttl = ARGV[a], first = a + 2, last = a + 2 * m, compact = compact, history = history }
+	for i = a + 2, a + 2 * m, 2 do
+		if redis.call('HEXISTS', KEYS[k], ARGV[i]) == 0 then
+			return { 404 }
+		end
+	end
+	a = a + 2 + 2 * m
+end
+
+local result = { 200 }
+for k = 1, #KEYS do
+	local key, t = KEYS[k], tokens[k]
+	bump(key)
+	for i = t.first, t.last, 2 do
+		local value = incr_counter(key, ARGV[i], ARGV[i + 1], ARGV[1], t.compact)
+		if t.history then
+			record_history(key, ARGV[i], ARGV[i + 1], ARGV[1], t.ttl)
+		end
+		result[#result + 1] = ARGV[i]
+		result[#result + 1] = value
+		result[#result + 1] = ARGV[1]
+		notify(key, ARGV[i], value, ARGV[1])
+	end
+	touch(key, t.ttl)
+end
+return result
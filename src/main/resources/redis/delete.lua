@@ -0,0 +1,40 @@
+-- Delete a counter or a complete rw token in one round trip.
+--
+-- KEYS[1] token
+-- ARGV[1] name of the counter, empty to delete the token
+-- ARGV[2] ttl of the token in seconds, 0 to leave it alone
+--
+-- Returns { status } on errors or token deletion,
+-- { 200, name, value, modified } of the deleted counter otherwise
+local access, _, compact, history = token_meta(KEYS[1])
+if not access then
+	return { 404 }
+elseif access ~= 'rw' then
+	return { 403 }
+end
+
+if ARGV[1] == '' then
+	if history then
+		for _, field in ipairs(redis.call('HKEYS', KEYS[1])) do
+			if string.sub(field, 1, 2) ~= '__' then
+				delete_history(KEYS[1], field)
+			end
+		end
+	end
+	redis.call('DEL', KEYS[1])
+	notify(KEYS[1])
+	return { 200 }
+end
+
+local value, modified = get_counter(KEYS[1], ARGV[1], compact)
+if not value then
+	return { 404 }
+end
+del_counter(KEYS[1], ARGV[1], compact)
+bump(KEYS[1])
+if history then
+	delete_history(KEYS[1], ARGV[1])
+end
+touch(KEYS[1], ARGV[2])
+notify(KEYS[1], ARGV[1], '', '')
+return { 200, ARGV[1], value, modified }
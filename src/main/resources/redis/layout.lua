@@ -0,0 +1,218 @@
+-- Counter storage layouts, prepended to every counter script.
+--
+-- Legacy hashes hold the value under the counters name and its modification
+-- time under '__t_' .. name. Compact hashes are marked by __v = 2 and hold
+-- 'value:modified' under the counters name. The access fields __access and
+-- __token are the same in both, as is __ver, which counts the changes of a
+-- token for conditional reads.
+--
+-- Tokens with __h = 1 record the increments of their counters in buckets
+-- per minute, hour and day, kept in a hash per counter and resolution under
+-- token .. ':h:' .. resolution .. ':' .. name. These keys start like the
+-- token, so they live on its server.
+
+-- replicate the writes rather than the script, HSCAN is not deterministic
+redis.replicate_commands()
+
+local MAX_EXACT = 2 ^ 52
+
+-- access level, rw token of a ro token, layout, history mode and version of
+-- a token
+local function token_meta(key)
+	local meta = redis.call('HMGET', key, '__access', '__token', '__v', '__h', '__ver')
+	return meta[1], meta[2], meta[3] == '2', meta[4] == '1', meta[5] or '0'
+end
+
+-- count a change of the counters of a token, see read.lua
+local function bump(key)
+	redis.call('HINCRBY', key, '__ver', 1)
+end
+
+-- refresh the TTL of a key, a ttl of 0 leaves it alone as the token was
+-- refreshed recently, see TokenTtl
+local function touch(key, ttl)
+	if tonumber(ttl) > 0 then
+		redis.call('EXPIRE', key, ttl)
+	end
+end
+
+local function split_counter(stored)
+	local sep = string.find(stored, ':', 1, true)
+	return string.sub(stored, 1, sep - 1), string.sub(stored, sep + 1)
+end
+
+-- value and modification time of a counter, nil if there is no such counter
+local function get_counter(key, name, compact)
+	if compact then
+		local stored = redis.call('HGET', key, name)
+		if not stored then
+			return nil
+		end
+		return split_counter(stored)
+	end
+	local value = redis.call('HGET', key, name)
+	if not value then
+		return nil
+	end
+	return value, redis.call('HGET', key, '__t_' .. name) or '0'
+end
+
+local function set_counter(key, name, value, modified, compact)
+	if compact then
+		redis.call('HSET', key, name, value .. ':' .. modified)
+	else
+		redis.call('HMSET', key, name, value, '__t_' .. name, modified)
+	end
+end
+
+-- add to an existing counter, returns the new value as string
+local function incr_counter(key, name, increment, modified, compact)
+	if not compact then
+		redis.call('HINCRBY', key, name, increment)
+		redis.call('HSET', key, '__t_' .. name, modified)
+		-- read back as string, lua numbers are doubles and lose precision
+		return redis.call('HGET', key, name)
+	end
+	local value = split_counter(redis.call('HGET', key, name))
+	local a, b = tonumber(value), tonumber(increment)
+	if math.abs(a) < MAX_EXACT and math.abs(b) < MAX_EXACT then
+		value = string.format('%.0f', a + b)
+	else
+		-- beyond exact doubles, let redis do the 64 bit math
+		redis.call('HSET', key, '__n', value)
+		redis.call('HINCRBY', key, '__n', increment)
+		value = redis.call('HGET', key, '__n')
+		redis.call('HDEL', key, '__n')
+	end
+	redis.call('HSET', key, name, value .. ':' .. modified)
+	return value
+end
+
+local function del_counter(key, name, compact)
+	if compact then
+		redis.call('HDEL', key, name)
+	else
+		redis.call('HDEL', key, name, '__t_' .. name)
+	end
+end
+
+-- name of the only counter of a token, nil if there are none or several.
+-- Scans in small pages and stops at the second counter.
+local function only_counter(key)
+	local name
+	local cursor = '0'
+	repeat
+		local page = redis.call('HSCAN', key, cursor, 'COUNT', 10)
+		cursor = page[1]
+		for i = 1, #page[2], 2 do
+			local field = page[2][i]
+			-- HSCAN may return a field twice
+			if string.sub(field, 1, 2) ~= '__' and field ~= name then
+				if name then
+					return nil
+				end
+				name = field
+			end
+		end
+	until cursor == '0'
+	return name
+end
+
+-- name, value, modified triples of all counters appended to result
+local function all_counters(key, compact, result)
+	local fields = redis.call('HGETALL', key)
+	if compact then
+		for i = 1, #fields, 2 do
+			if string.sub(fields[i], 1, 2) ~= '__' then
+				local value, modified = split_counter(fields[i + 1])
+				result[#result + 1] = fields[i]
+				result[#result + 1] = value
+				result[#result + 1] = modified
+			end
+		end
+		return result
+	end
+	local modified = {}
+	for i = 1, #fields, 2 do
+		if string.sub(fields[i], 1, 4) == '__t_' then
+			modified[string.sub(fields[i], 5)] = fields[i + 1]
+		end
+	end
+	for i = 1, #fields, 2 do
+		if string.sub(fields[i], 1, 2) ~= '__' then
+			result[#result + 1] = fields[i]
+			result[#result + 1] = fields[i + 1]
+			result[#result + 1] = modified[fields[i]] or '0'
+		end
+	end
+	return result
+end
+
+-- name, value, modified triples of one HSCAN page of counters appended to
+-- result, returns the cursor of the next page
+local function scan_counters(key, compact, cursor, count, result)
+	local page = redis.call('HSCAN', key, cursor, 'COUNT', count)
+	local fields = page[2]
+	for i = 1, #fields, 2 do
+		if string.sub(fields[i], 1, 2) ~= '__' then
+			result[#result + 1] = fields[i]
+			if compact then
+				local value, modified = split_counter(fields[i + 1])
+				result[#result + 1] = value
+				result[#result + 1] = modified
+			else
+				result[#result + 1] = fields[i + 1]
+				result[#result + 1] = redis.call('HGET', key, '__t_' .. fields[i]) or '0'
+			end
+		end
+	end
+	return page[1]
+end
+
+-- publish a change to the subscribers of the token, see RedisEvents. The
+-- message is 'value:modified:name', value and modified are empty for a
+-- deleted counter, the message is empty for a deleted token.
+local function notify(key, name, value, modified)
+	local message = ''
+	if name then
+		message = value .. ':' .. modified .. ':' .. name
+	end
+	redis.call('PUBLISH', 'countmatic:changes:' .. key, message)
+end
+
+-- resolution, bucket size in millis and number of buckets kept
+local HISTORY = { { 'm', 60000, 1440 }, { 'h', 3600000, 720 }, { 'd', 86400000, 366 } }
+
+-- add an increment to the history buckets of a counter
+local function record_history(key, name, increment, modified, ttl)
+	local now = tonumber(modified)
+	for _, r in ipairs(HISTORY) do
+		local hkey = key .. ':h:' .. r[1] .. ':' .. name
+		local bucket = math.floor(now / r[2])
+		redis.call('HINCRBY', hkey, string.format('%d', bucket), increment)
+		if tonumber(ttl) > 0 then
+			redis.call('EXPIRE', hkey, ttl)
+		elseif redis.call('TTL', hkey) < 0 then
+			-- new bucket hash while the token's TTL is not due, live as long
+			local remaining = redis.call('TTL', key)
+			if remaining > 0 then
+				redis.call('EXPIRE', hkey, remaining)
+			end
+		end
+		-- trim once a tenth more buckets than kept piled up, not on every write
+		if redis.call('HLEN', hkey) > r[3] * 1.1 then
+			for _, field in ipairs(redis.call('HKEYS', hkey)) do
+				if tonumber(field) <= bucket - r[3] then
+					redis.call('HDEL', hkey, field)
+				end
+			end
+		end
+	end
+end
+
+local function delete_history(key, name)
+	for _, r in ipairs(HISTORY) do
+		redis.call('DEL', key .. ':h:' .. r[1] .. ':' .. name)
+	end
+end
+
@@ -0,0 +1,29 @@
+-- Convert a rw token to another storage layout in place, so its TTL is kept.
+-- Runs atomically, concurrent counter scripts see either layout complete.
+--
+-- KEYS[1] token
+-- ARGV[1] target layout, 1 for legacy or 2 for compact
+--
+-- Returns { 1 } if converted, { 0 } for other keys, ro tokens or tokens
+-- already in the target layout
+if redis.call('TYPE', KEYS[1]).ok ~= 'hash' then
+	return { 0 }
+end
+local access, _, compact = token_meta(KEYS[1])
+if access ~= 'rw' or compact == (ARGV[1] == '2') then
+	return { 0 }
+end
+
+local counters = all_counters(KEYS[1], compact, {})
+for i = 1, #counters, 3 do
+	if not compact then
+		redis.call('HDEL', KEYS[1], '__t_' .. counters[i])
+	end
+	set_counter(KEYS[1], counters[i], counters[i + 1], counters[i + 2], not compact)
+end
+if compact then
+	redis.call('HDEL', KEYS[1], '__v')
+else
+	redis.call('HSET', KEYS[1], '__v', '2')
+end
+return { 1 }
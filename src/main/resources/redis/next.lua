@@ -0,0 +1,36 @@
+-- Increment (or decrement) a counter of a rw token in one round trip.
+-- Used by next and previous, the latter passing a negative increment.
+--
+-- KEYS[1] token
+-- ARGV[1] name of the counter, empty for single counter tokens
+-- ARGV[2] increment
+-- ARGV[3] modification time in millis
+-- ARGV[4] ttl of the token in seconds, 0 to leave it alone
+--
+-- Returns { status } on errors, { 200, name, value, modified } otherwise
+local access, _, compact, history = token_meta(KEYS[1])
+if not access then
+	return { 404 }
+elseif access ~= 'rw' then
+	return { 403 }
+end
+
+local name = ARGV[1]
+if name == '' then
+	-- no name given, so there has to be exactly one counter
+	name = only_counter(KEYS[1])
+	if not name then
+		return { 400 }
+	end
+elseif redis.call('HEXISTS', KEYS[1], name) == 0 then
+	return { 404 }
+end
+
+local value = incr_counter(KEYS[1], name, ARGV[2], ARGV[3], compact)
+bump(KEYS[1])
+if history then
+	record_history(KEYS[1], name, ARGV[2], ARGV[3], ARGV[4])
+end
+touch(KEYS[1], ARGV[4])
+notify(KEYS[1], name, value, ARGV[3])
+return { 200, name, value, ARGV[3] }
@@ -0,0 +1,32 @@
+-- Measure the memory used by a rw token in its layout and in the other one.
+-- A converted copy is built under token .. ':probe', which is on the same
+-- server as it starts like the token, measured and deleted again.
+--
+-- KEYS[1] token
+--
+-- Returns { 404 } for other keys, ro or unknown tokens, { 200, compact (0 or 1),
+-- counters, bytes, encoding, bytes in other layout, encoding in other layout }
+-- otherwise
+if redis.call('TYPE', KEYS[1]).ok ~= 'hash' then
+	return { 404 }
+end
+local probe = KEYS[1] .. ':probe'
+local access, _, compact = token_meta(KEYS[1])
+if access ~= 'rw' then
+	return { 404 }
+end
+
+local counters = all_counters(KEYS[1], compact, {})
+redis.call('DEL', probe)
+redis.call('HSET', probe, '__access', 'rw')
+if not compact then
+	redis.call('HSET', probe, '__v', '2')
+end
+for i = 1, #counters, 3 do
+	set_counter(probe, counters[i], counters[i + 1], counters[i + 2], not compact)
+end
+local result = { 200, compact and 1 or 0, #counters / 3,
+	redis.call('MEMORY', 'USAGE', KEYS[1]), redis.call('OBJECT', 'ENCODING', KEYS[1]),
+	redis.call('MEMORY', 'USAGE', probe), redis.call('OBJECT', 'ENCODING', probe) }
+redis.call('DEL', probe)
+return result
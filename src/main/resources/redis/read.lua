@@ -0,0 +1,47 @@
+-- Read one or all counters of a rw or ro token in one round trip.
+-- A ro token is resolved to its rw token within the script, so that key
+-- is not declared in KEYS and has to live on the same redis server.
+--
+-- KEYS[1] token
+-- ARGV[1] name of the counter, empty for all counters
+-- ARGV[2] ttl of the token in seconds, 0 to leave it alone, e.g. on replicas
+-- ARGV[3] version of the token known to the client, empty for none
+--
+-- Returns { status } on errors, { 304, version } if the version is still
+-- current, { 200, version, name, value, modified, name, value, modified, ... }
+-- otherwise
+local key = KEYS[1]
+local ttl = tonumber(ARGV[2])
+local access, rw_token, compact, _, version = token_meta(key)
+if not access then
+	return { 404 }
+elseif access ~= 'rw' then
+	touch(key, ttl)
+	key = rw_token
+	if not key then
+		return { 404 }
+	end
+	access, rw_token, compact, _, version = token_meta(key)
+	if access ~= 'rw' then
+		return { 404 }
+	end
+end
+
+if version == ARGV[3] then
+	-- nothing changed since the client read it, skip fetching the counters
+	touch(key, ttl)
+	return { 304, version }
+end
+
+local result = { 200, version }
+if ARGV[1] ~= '' then
+	local value, modified = get_counter(key, ARGV[1], compact)
+	if not value then
+		return { 404 }
+	end
+	result = { 200, version, ARGV[1], value, modified }
+else
+	all_counters(key, compact, result)
+end
+touch(key, ttl)
+return result
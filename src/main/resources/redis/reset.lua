@@ -0,0 +1,32 @@
+-- Set a counter of a rw token to a new value in one round trip.
+--
+-- KEYS[1] token
+-- ARGV[1] name of the counter, empty for single counter tokens
+-- ARGV[2] new value
+-- ARGV[3] modification time in millis
+-- ARGV[4] ttl of the token in seconds, 0 to leave it alone
+--
+-- Returns { status } on errors, { 200, name, value, modified } otherwise
+local access, _, compact = token_meta(KEYS[1])
+if not access then
+	return { 404 }
+elseif access ~= 'rw' then
+	return { 403 }
+end
+
+local name = ARGV[1]
+if name == '' then
+	-- no name given, so there has to be exactly one counter
+	name = only_counter(KEYS[1])
+	if not name then
+		return { 400 }
+	end
+elseif redis.call('HEXISTS', KEYS[1], name) == 0 then
+	return { 404 }
+end
+
+set_counter(KEYS[1], name, ARGV[2], ARGV[3], compact)
+bump(KEYS[1])
+touch(KEYS[1], ARGV[4])
+notify(KEYS[1], name, ARGV[2], ARGV[3])
+return { 200, name, ARGV[2], ARGV[3] }
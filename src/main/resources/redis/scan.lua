@@ -0,0 +1,33 @@
+-- Read one page of the counters of a rw or ro token by HSCAN, so large
+-- tokens can be read without building the whole hash at once. Like HSCAN,
+-- a counter may show up on two pages.
+--
+-- KEYS[1] token
+-- ARGV[1] cursor, 0 for the first page
+-- ARGV[2] number of fields to scan, a hint as for HSCAN
+-- ARGV[3] ttl of the token in seconds, refreshed on the first page
+--
+-- Returns { status } on errors,
+-- { 200, next cursor, name, value, modified, name, value, modified, ... }
+-- otherwise, the cursor is 0 on the last page
+local key = KEYS[1]
+local ttl = ARGV[1] == '0' and tonumber(ARGV[3]) or 0
+local access, rw_token, compact = token_meta(key)
+if not access then
+	return { 404 }
+elseif access ~= 'rw' then
+	touch(key, ttl)
+	key = rw_token
+	if not key then
+		return { 404 }
+	end
+	access, rw_token, compact = token_meta(key)
+	if access ~= 'rw' then
+		return { 404 }
+	end
+end
+
+local result = { 200, '0' }
+result[2] = scan_counters(key, compact, ARGV[1], ARGV[2], result)
+touch(key, ttl)
+return result
@@ -0,0 +1,15 @@
+package io.countmatic.cmspringserver;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Run the async controller tests with the in-process store, served by the
+ * executor
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "countmatic.store=embedded")
+public class AsyncCounterControllerEmbeddedTest extends AsyncCounterControllerTest {
+
+}
@@ -0,0 +1,14 @@
+package io.countmatic.cmspringserver;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Run the async controller tests without the scripts, served by the executor
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "countmatic.scripting=false")
+public class AsyncCounterControllerPlainTest extends AsyncCounterControllerTest {
+
+}
@@ -0,0 +1,51 @@
+package io.countmatic.cmspringserver;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import io.countmatic.api_v2.spring.model.Counter;
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.controller.AsyncCounterController;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class AsyncCounterControllerTest {
+
+	@Autowired
+	private AsyncCounterController acc;
+
+	@Test
+	public void testNextNumber() throws Exception {
+		Token t = acc.getNewCounter("UnitTest", null).get().getBody();
+		ResponseEntity<Counter> cresp = acc.nextNumber(t.getToken(), "UnitTest", null).get();
+		assertTrue("Response not OK on next", cresp.getStatusCode() == HttpStatus.OK);
+		ResponseEntity<Counters> rresp = acc.getCurrentReading(t.getToken(), null, null).get();
+		assertTrue("could not read", rresp.getStatusCode() == HttpStatus.OK);
+		assertTrue("Counter not 1", rresp.getBody().get(0).getCount() == 1l);
+		assertTrue("Wrong found",
+				acc.nextNumber("whatever", null, null).get().getStatusCode() == HttpStatus.NOT_FOUND);
+	}
+
+	@Test
+	public void testConditionalReading() throws Exception {
+		Token t = acc.getNewCounter("UnitTest", null).get().getBody();
+		String etag = acc.getCurrentReading(t.getToken(), null, null).get().getHeaders().getETag();
+		assertTrue("No ETag", null != etag);
+		ResponseEntity<Counters> rresp = acc.getCurrentReading(t.getToken(), null, etag).get();
+		assertTrue("Modified without change", rresp.getStatusCode() == HttpStatus.NOT_MODIFIED);
+		assertTrue("Body without change", null == rresp.getBody());
+		acc.nextNumber(t.getToken(), "UnitTest", null).get();
+		rresp = acc.getCurrentReading(t.getToken(), null, etag).get();
+		assertTrue("Not modified after next", rresp.getStatusCode() == HttpStatus.OK);
+		assertTrue("Counter not 1", rresp.getBody().get(0).getCount() == 1l);
+	}
+
+}
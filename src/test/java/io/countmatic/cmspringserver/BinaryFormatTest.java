@@ -0,0 +1,80 @@
+package io.countmatic.cmspringserver;
+
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.controller.BinaryFormatConfiguration;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+
+/**
+ * Content negotiation of the binary formats, on the embedded store
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "countmatic.store=embedded")
+@AutoConfigureMockMvc
+public class BinaryFormatTest {
+
+	private static final ObjectMapper CBOR = new ObjectMapper(new CBORFactory());
+	private static final ObjectMapper SMILE = new ObjectMapper(new SmileFactory());
+
+	@Autowired
+	private MockMvc mvc;
+
+	@Test
+	public void testBinaryFormats() throws Exception {
+		byte[] body = mvc
+				.perform(get("/counter/new").param("name", "UnitTest").accept(BinaryFormatConfiguration.CBOR_VALUE))
+				.andExpect(status().isOk()).andExpect(content().contentType(BinaryFormatConfiguration.CBOR_VALUE))
+				.andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT)).andReturn().getResponse().getContentAsByteArray();
+		String token = CBOR.readValue(body, Token.class).getToken();
+
+		body = mvc.perform(get("/counter/current").param("token", token).accept(BinaryFormatConfiguration.SMILE_VALUE))
+				.andExpect(status().isOk()).andExpect(content().contentType(BinaryFormatConfiguration.SMILE_VALUE))
+				.andReturn().getResponse().getContentAsByteArray();
+		Counters counters = SMILE.readValue(body, Counters.class);
+		assertTrue("Not the counter", "UnitTest".equals(counters.get(0).getName()));
+
+		// a batch sent and answered in CBOR
+		body = mvc
+				.perform(post("/counter/batch").param("token", token)
+						.contentType(BinaryFormatConfiguration.CBOR_VALUE)
+						.content(CBOR.writeValueAsBytes(
+								Arrays.asList(new CounterIncrement().name("UnitTest").increment(5l))))
+						.accept(BinaryFormatConfiguration.CBOR_VALUE))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsByteArray();
+		counters = CBOR.readValue(body, Counters.class);
+		assertTrue("Counter not 5", counters.get(0).getCount() == 5l);
+
+		// JSON stays the default
+		mvc.perform(get("/counter/current").param("token", token)).andExpect(status().isOk())
+				.andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+				.andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT));
+
+		// errors carry it as well
+		mvc.perform(get("/counter/current").param("token", "unknown")).andExpect(status().isNotFound())
+				.andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT));
+	}
+
+}
@@ -0,0 +1,15 @@
+package io.countmatic.cmspringserver;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Run the buffer tests with plain redis commands instead of scripts
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = { "countmatic.buffer.mode=async", "countmatic.buffer.flushMillis=60000",
+		"countmatic.scripting=false" })
+public class CounterControllerAsyncBufferedPlainTest extends CounterControllerAsyncBufferedTest {
+
+}
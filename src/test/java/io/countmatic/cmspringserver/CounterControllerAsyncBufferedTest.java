@@ -0,0 +1,62 @@
+package io.countmatic.cmspringserver;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.cmspringserver.controller.CounterController;
+import io.countmatic.cmspringserver.redis.IncrementBuffer;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Increments buffered in ASYNC mode, flushed rarely, must not outlive a
+ * change of their counter nor bring it back
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = { "countmatic.buffer.mode=async", "countmatic.buffer.flushMillis=60000" })
+public class CounterControllerAsyncBufferedTest {
+
+	@Autowired
+	private CounterController cc;
+
+	@Autowired
+	private IncrementBuffer incrementBuffer;
+
+	@Autowired
+	private RedisPoolProvider redisPoolProvider;
+
+	@Test
+	public void testAddOverBufferedIncrements() {
+		String token = cc.getNewCounter("UnitTest", null).getBody().getToken();
+		for (int i = 0; i < 3; i++) {
+			assertTrue("Next failed", cc.nextNumber(token, "UnitTest", null).getStatusCode() == HttpStatus.OK);
+		}
+		assertTrue("Add failed", cc.addCounter(token, "UnitTest", 10l).getStatusCode() == HttpStatus.OK);
+		Counters counters = cc.getCurrentReading(token, "UnitTest").getBody();
+		assertTrue("Buffered increments applied after add", counters.get(0).getCount() == 10l);
+	}
+
+	@Test
+	public void testFlushAfterDelete() {
+		String token = cc.getNewCounter("UnitTest", null).getBody().getToken();
+		for (int i = 0; i < 3; i++) {
+			assertTrue("Next failed", cc.nextNumber(token, "UnitTest", null).getStatusCode() == HttpStatus.OK);
+		}
+		// gone behind the buffers back
+		try (Jedis j = redisPoolProvider.getResource(token)) {
+			j.del(token);
+		}
+		incrementBuffer.flushToken(token);
+		try (Jedis j = redisPoolProvider.getResource(token)) {
+			assertTrue("Token brought back by the flush", !j.exists(token));
+		}
+	}
+
+}
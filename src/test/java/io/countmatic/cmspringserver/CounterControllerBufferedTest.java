@@ -0,0 +1,15 @@
+package io.countmatic.cmspringserver;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Run the controller tests with increments going through the write-behind
+ * buffer. Exact mode, as the tests read right after incrementing.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = { "countmatic.buffer.mode=exact", "countmatic.buffer.flushMillis=5" })
+public class CounterControllerBufferedTest extends CounterControllerTest {
+
+}
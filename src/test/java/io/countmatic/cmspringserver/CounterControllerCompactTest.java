@@ -0,0 +1,14 @@
+package io.countmatic.cmspringserver;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Run the controller tests with new tokens stored in the compact layout
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = { "countmatic.layout=compact" })
+public class CounterControllerCompactTest extends CounterControllerTest {
+
+}
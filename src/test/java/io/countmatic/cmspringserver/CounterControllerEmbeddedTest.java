@@ -0,0 +1,14 @@
+package io.countmatic.cmspringserver;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Run the controller tests with the in-process store instead of redis
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "countmatic.store=embedded")
+public class CounterControllerEmbeddedTest extends CounterControllerTest {
+
+}
@@ -0,0 +1,60 @@
+package io.countmatic.cmspringserver;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.redis.RedisPoolProvider;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Run the controller tests with pipelined redis commands instead of scripts.
+ * TTLs are refreshed on every call, so the refresh can be checked.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = { "countmatic.scripting=false", "countmatic.pipelining=true",
+		"countmatic.ttl.refreshAfterSeconds=0" })
+public class CounterControllerPipelinedTest extends CounterControllerTest {
+
+	@Autowired
+	private RedisPoolProvider redisPoolProvider;
+
+	private long shortenTtl(String token) {
+		Jedis j = redisPoolProvider.getResource(token);
+		try {
+			j.expire(token, 100);
+			return j.ttl(token);
+		} finally {
+			redisPoolProvider.returnResource(j);
+		}
+	}
+
+	private long ttl(String token) {
+		Jedis j = redisPoolProvider.getResource(token);
+		try {
+			return j.ttl(token);
+		} finally {
+			redisPoolProvider.returnResource(j);
+		}
+	}
+
+	@Test
+	public void testTtlRefreshed() {
+		Token t = cc.getNewCounter("UnitTest", null).getBody();
+		assertTrue("TTL not shortened", this.shortenTtl(t.getToken()) <= 100);
+		cc.resetCounter(t.getToken(), "UnitTest", 5l);
+		assertTrue("TTL not refreshed by reset", this.ttl(t.getToken()) > 100);
+		this.shortenTtl(t.getToken());
+		cc.addCounter(t.getToken(), "AnotherUnitTest", 0l);
+		assertTrue("TTL not refreshed by add", this.ttl(t.getToken()) > 100);
+		this.shortenTtl(t.getToken());
+		cc.nextNumber(t.getToken(), "UnitTest", null);
+		assertTrue("TTL not refreshed by next", this.ttl(t.getToken()) > 100);
+	}
+
+}
@@ -0,0 +1,14 @@
+package io.countmatic.cmspringserver;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Run the controller tests with plain redis commands instead of scripts
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "countmatic.scripting=false")
+public class CounterControllerPlainTest extends CounterControllerTest {
+
+}
@@ -2,18 +2,32 @@ package io.countmatic.cmspringserver;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.countmatic.api_v2.spring.model.Counter;
 import io.countmatic.api_v2.spring.model.Counters;
 import io.countmatic.api_v2.spring.model.Token;
 import io.countmatic.cmspringserver.controller.CounterController;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.model.CounterPage;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -22,7 +36,7 @@ public class CounterControllerTest {
 	// TODO: Add tests for offsets, increment and decrements
 
 	@Autowired
-	private CounterController cc;
+	protected CounterController cc;
 
 	@Test
 	public void testNotFound() {
@@ -203,4 +217,101 @@ public class CounterControllerTest {
 		assertTrue("Counter not 1", cresp.getBody().getCount() == 2l);
 	}
 
+	@Test
+	public void testNextNumbers() {
+		Token t1 = cc.getNewCounter("UnitTest", null).getBody();
+		cc.addCounter(t1.getToken(), "AnotherUnitTest", 10l);
+		Token t2 = cc.getNewCounter("UnitTest", null).getBody();
+		ResponseEntity<Counters> resp = cc.nextNumbers(t1.getToken(),
+				Arrays.asList(new CounterIncrement().name("UnitTest"), new CounterIncrement().name("AnotherUnitTest").increment(-3l),
+						new CounterIncrement().token(t2.getToken()).name("UnitTest").increment(5l)));
+		assertTrue("Batch not OK", resp.getStatusCode() == HttpStatus.OK);
+		Counters cs = resp.getBody();
+		assertTrue("Not three counters in resp", cs.size() == 3);
+		assertTrue("Counter not 1", cs.get(0).getCount() == 1l);
+		assertTrue("Counter not 7", cs.get(1).getCount() == 7l);
+		assertTrue("Counter not 5", cs.get(2).getCount() == 5l);
+		// unknown names change nothing
+		resp = cc.nextNumbers(t1.getToken(),
+				Arrays.asList(new CounterIncrement().name("UnitTest"), new CounterIncrement().name("Unknown")));
+		assertTrue("Wrong found", resp.getStatusCode() == HttpStatus.NOT_FOUND);
+		Counters r = cc.getCurrentReading(t1.getToken(), "UnitTest").getBody();
+		assertTrue("Counter not 1", r.get(0).getCount() == 1l);
+	}
+
+	@Test
+	public void testEphemeralCounter() {
+		ResponseEntity<Token> tresp = cc.getNewEphemeralCounter("UnitTest", null);
+		assertTrue("Response not OK on new", tresp.getStatusCode() == HttpStatus.OK);
+		Token t = tresp.getBody();
+		assertTrue("Token doesnt endswith vrw", t.getToken().endsWith("-vrw"));
+		ResponseEntity<Counter> cresp = cc.nextNumber(t.getToken(), "UnitTest", null);
+		assertTrue("Counter not 1", cresp.getBody().getCount() == 1l);
+		tresp = cc.getReadOnlyToken(t.getToken());
+		assertTrue("RO token doesnt endswith vro", tresp.getBody().getToken().endsWith("-vro"));
+		Counters r = cc.getCurrentReading(tresp.getBody().getToken(), null).getBody();
+		assertTrue("Counter not 1", r.get(0).getCount() == 1l);
+	}
+
+	@Test
+	public void testGetCurrentReadingPage() throws Exception {
+		Token t = cc.getNewCounter("UnitTest", null).getBody();
+		for (int i = 0; i < 30; i++) {
+			cc.addCounter(t.getToken(), "UnitTest" + i, (long) i);
+		}
+		Set<String> names = new HashSet<>();
+		String cursor = "0";
+		do {
+			ResponseEntity<CounterPage> resp = cc.getCurrentReadingPage(t.getToken(), cursor, 10);
+			assertTrue("Page not OK", resp.getStatusCode() == HttpStatus.OK);
+			for (Counter c : resp.getBody().getCounters()) {
+				names.add(c.getName());
+			}
+			cursor = resp.getBody().getCursor();
+		} while (!"0".equals(cursor));
+		assertTrue("Not 31 counters paged", names.size() == 31);
+		assertTrue("Wrong found",
+				cc.getCurrentReadingPage("whatever", "0", 10).getStatusCode() == HttpStatus.NOT_FOUND);
+
+		ResponseEntity<StreamingResponseBody> sresp = cc.streamCurrentReading(t.getToken());
+		assertTrue("Stream not OK", sresp.getStatusCode() == HttpStatus.OK);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sresp.getBody().writeTo(out);
+		Counter[] streamed = new ObjectMapper().readValue(out.toByteArray(), Counter[].class);
+		assertTrue("Not 31 counters streamed", streamed.length == 31);
+	}
+
+	private ResponseEntity<Counters> readIfNoneMatch(String token, String etag) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+		try {
+			return cc.getCurrentReading(token, null);
+		} finally {
+			RequestContextHolder.resetRequestAttributes();
+		}
+	}
+
+	@Test
+	public void testConditionalReading() {
+		Token t = cc.getNewCounter("UnitTest", null).getBody();
+		String etag = cc.getCurrentReading(t.getToken(), null).getHeaders().getETag();
+		assertTrue("No ETag", null != etag);
+		ResponseEntity<Counters> resp = this.readIfNoneMatch(t.getToken(), etag);
+		assertTrue("Modified without change", resp.getStatusCode() == HttpStatus.NOT_MODIFIED);
+		assertTrue("Body without change", null == resp.getBody());
+		Token ro = cc.getReadOnlyToken(t.getToken()).getBody();
+		assertTrue("ro token modified without change",
+				this.readIfNoneMatch(ro.getToken(), etag).getStatusCode() == HttpStatus.NOT_MODIFIED);
+		cc.nextNumber(t.getToken(), null, null);
+		resp = this.readIfNoneMatch(t.getToken(), etag);
+		assertTrue("Not modified after next", resp.getStatusCode() == HttpStatus.OK);
+		assertTrue("Counter not 1", resp.getBody().get(0).getCount() == 1l);
+		assertTrue("ETag not changed", !etag.equals(resp.getHeaders().getETag()));
+		etag = resp.getHeaders().getETag();
+		cc.addCounter(t.getToken(), "AnotherUnitTest", 0l);
+		assertTrue("Not modified after add",
+				this.readIfNoneMatch(t.getToken(), etag).getStatusCode() == HttpStatus.OK);
+	}
+
 }
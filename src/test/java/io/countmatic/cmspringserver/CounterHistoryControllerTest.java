@@ -0,0 +1,48 @@
+package io.countmatic.cmspringserver;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.controller.CounterController;
+import io.countmatic.cmspringserver.controller.CounterHistoryController;
+import io.countmatic.cmspringserver.model.HistoryPoint;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class CounterHistoryControllerTest {
+
+	@Autowired
+	private CounterController cc;
+
+	@Autowired
+	private CounterHistoryController chc;
+
+	@Test
+	public void testGetHistory() {
+		Token t = cc.getNewCounter("UnitTest", null).getBody();
+		assertTrue("Could not enable", chc.enableHistory(t.getToken(), true).getStatusCode() == HttpStatus.OK);
+		long now = System.currentTimeMillis();
+		cc.nextNumber(t.getToken(), "UnitTest", 2l);
+		cc.nextNumber(t.getToken(), "UnitTest", 3l);
+		Token ro = cc.getReadOnlyToken(t.getToken()).getBody();
+		ResponseEntity<List<HistoryPoint>> resp = chc.getHistory(ro.getToken(), "UnitTest", "day", now, now);
+		assertTrue("History not OK", resp.getStatusCode() == HttpStatus.OK);
+		assertTrue("Not one point", resp.getBody().size() == 1);
+		assertTrue("Sum not 5", resp.getBody().get(0).getCount() == 5l);
+		assertTrue("Wrong found", chc.getHistory(t.getToken(), "Unknown", "day", null, null)
+				.getStatusCode() == HttpStatus.NOT_FOUND);
+		assertTrue("Wrong resolution",
+				chc.getHistory(t.getToken(), "UnitTest", "week", null, null).getStatusCode() == HttpStatus.BAD_REQUEST);
+	}
+
+}
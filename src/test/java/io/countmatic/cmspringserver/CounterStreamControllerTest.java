@@ -0,0 +1,103 @@
+package io.countmatic.cmspringserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import io.countmatic.api_v2.spring.model.Token;
+import io.countmatic.cmspringserver.controller.CounterController;
+import io.countmatic.cmspringserver.controller.CounterStreamController;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "countmatic.stream.intervalMillis=500")
+@AutoConfigureMockMvc
+public class CounterStreamControllerTest {
+
+	@Autowired
+	private CounterController cc;
+
+	@Autowired
+	private CounterStreamController csc;
+
+	@Autowired
+	private MockMvc mvc;
+
+	@Test
+	public void testStreamChanges() {
+		Token t = cc.getNewCounter("UnitTest", null).getBody();
+		Token ro = cc.getReadOnlyToken(t.getToken()).getBody();
+		ResponseEntity<SseEmitter> resp = csc.streamChanges(ro.getToken());
+		assertTrue("Response not OK on stream", resp.getStatusCode() == HttpStatus.OK);
+		resp.getBody().complete();
+		assertTrue("Wrong found", csc.streamChanges("whatever").getStatusCode() == HttpStatus.NOT_FOUND);
+	}
+
+	@Test
+	public void testStreamEvents() throws Exception {
+		String token = cc.getNewCounter("UnitTest", null).getBody().getToken();
+		String ro = cc.getReadOnlyToken(token).getBody().getToken();
+		MockHttpServletResponse stream = mvc.perform(get("/counter/stream").param("token", ro))
+				.andExpect(request().asyncStarted()).andReturn().getResponse();
+		awaitEvents(stream, "counters", 1);
+		assertTrue("No current counters", stream.getContentAsString().contains("\"count\":0"));
+
+		// delivered
+		cc.nextNumber(token, "UnitTest", null);
+		awaitEvents(stream, "counters", 2);
+		assertTrue("Change not delivered", stream.getContentAsString().contains("\"count\":1"));
+
+		// coalesced, the event just sent starts the interval
+		for (int i = 0; i < 3; i++) {
+			cc.nextNumber(token, "UnitTest", null);
+		}
+		awaitEvents(stream, "counters", 3);
+		String content = stream.getContentAsString();
+		assertTrue("Last change not delivered", content.contains("\"count\":4"));
+		assertFalse("Changes not coalesced", content.contains("\"count\":2") || content.contains("\"count\":3"));
+
+		// a counter added and deleted within the interval is removed only
+		cc.addCounter(token, "Other", 5l);
+		cc.deleteCounter(token, "Other");
+		awaitEvents(stream, "removed", 1);
+		content = stream.getContentAsString();
+		assertTrue("Removal not delivered", content.contains("\"name\":\"Other\""));
+		assertFalse("Removed counter delivered", content.contains("\"count\":5"));
+		assertEquals("Removal sent as change", 3, count(content, "event:counters"));
+
+		cc.deleteCounter(token, null);
+		awaitEvents(stream, "closed", 1);
+	}
+
+	private static int count(String content, String text) {
+		int n = 0;
+		for (int i = content.indexOf(text); i >= 0; i = content.indexOf(text, i + 1)) {
+			n++;
+		}
+		return n;
+	}
+
+	// events are sent every intervalMillis, give them a few
+	private static void awaitEvents(MockHttpServletResponse stream, String event, int events) throws Exception {
+		long until = System.currentTimeMillis() + 5000;
+		while (count(stream.getContentAsString(), "event:" + event) < events) {
+			assertTrue("No " + event + " event", System.currentTimeMillis() < until);
+			Thread.sleep(20);
+		}
+		assertEquals("Too many " + event + " events", events, count(stream.getContentAsString(), "event:" + event));
+	}
+
+}
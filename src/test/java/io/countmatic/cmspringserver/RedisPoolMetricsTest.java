@@ -0,0 +1,41 @@
+package io.countmatic.cmspringserver;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import io.countmatic.cmspringserver.controller.CounterController;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class RedisPoolMetricsTest {
+
+	@Autowired
+	private CounterController cc;
+
+	@Autowired
+	private MeterRegistry registry;
+
+	@Test
+	public void testCommandsCounted() {
+		FunctionCounter commands = registry.find("countmatic.redis.commands").tag("pool", "persistent")
+				.functionCounter();
+		FunctionCounter time = registry.find("countmatic.redis.time").tag("pool", "persistent").functionCounter();
+		assertTrue("No command counter", null != commands && null != time);
+		double before = commands.count();
+		double timeBefore = time.count();
+		String token = cc.getNewCounter("UnitTest", null).getBody().getToken();
+		assertTrue("Wrong status", cc.nextNumber(token, null, null).getStatusCode() == HttpStatus.OK);
+		assertTrue("Commands not counted", commands.count() >= before + 2);
+		assertTrue("Time not counted", time.count() > timeBefore);
+		cc.deleteCounter(token, null);
+	}
+
+}
@@ -0,0 +1,37 @@
+package io.countmatic.cmspringserver;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import io.countmatic.cmspringserver.redis.RedisScripts;
+import redis.clients.util.SafeEncoder;
+
+public class RedisScriptsTest {
+
+	@Test
+	public void testNumber() {
+		for (long n : new long[] { 0, 1, -1, 42, 1234567890123l, Long.MAX_VALUE, Long.MIN_VALUE }) {
+			assertEquals(n, RedisScripts.number(SafeEncoder.encode(String.valueOf(n))));
+			assertEquals(n, RedisScripts.number(String.valueOf(n)));
+		}
+		assertEquals(7, RedisScripts.number(Long.valueOf(7)));
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testNotANumber() {
+		RedisScripts.number(SafeEncoder.encode("12a"));
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testMinusOnly() {
+		RedisScripts.number(SafeEncoder.encode("-"));
+	}
+
+	@Test
+	public void testText() {
+		assertEquals("n\u00e4me", RedisScripts.text(SafeEncoder.encode("n\u00e4me")));
+		assertEquals("name", RedisScripts.text("name"));
+	}
+
+}
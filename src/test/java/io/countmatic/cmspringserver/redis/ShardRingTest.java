@@ -0,0 +1,65 @@
+package io.countmatic.cmspringserver.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Test;
+
+import io.countmatic.cmspringserver.token.Base62TokenGenerator;
+import io.countmatic.cmspringserver.token.TokenGenerator;
+
+public class ShardRingTest {
+
+	private final TokenGenerator tokens = new Base62TokenGenerator();
+
+	// pools connect on first use only
+	private static List<InstrumentedJedisPool> pools(int n) {
+		List<InstrumentedJedisPool> pools = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			pools.add(new InstrumentedJedisPool("redis-" + i, new GenericObjectPoolConfig(), "redis-" + i, 6379, 100,
+					100, null, 0));
+		}
+		return pools;
+	}
+
+	@Test
+	public void testCoLocate() {
+		List<InstrumentedJedisPool> pools = pools(4);
+		ShardRing ring = new ShardRing(pools);
+		// before the last server was added
+		ShardRing before = new ShardRing(pools.subList(0, 3));
+		for (Tier tier : Tier.values()) {
+			for (int i = 0; i < 1000; i++) {
+				String rw = tokens.newToken(tier, false);
+				String ro = ShardRing.coLocate(rw, tokens.newToken(tier, true));
+				assertEquals("Wrong tier " + ro, tier, Tier.of(ro));
+				assertEquals("Not co-located " + ro, ring.get(rw), ring.get(ro));
+				assertEquals("Not co-located before " + ro, before.get(rw), before.get(ro));
+				assertEquals("History elsewhere " + rw, ring.get(rw), ring.get(rw + ":h:m:name"));
+				String position = ro.substring(0, ShardRing.POSITION_LENGTH);
+				for (int c = 0; c + 8 <= 22; c++) {
+					assertFalse("Copied from the rw token " + ro, position.contains(rw.substring(c, c + 8)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSpread() {
+		List<InstrumentedJedisPool> pools = pools(4);
+		ShardRing ring = new ShardRing(pools);
+		int[] placed = new int[pools.size()];
+		for (int i = 0; i < 10000; i++) {
+			placed[pools.indexOf(ring.get(tokens.newToken(Tier.PERSISTENT, false)))]++;
+		}
+		for (int p : placed) {
+			assertTrue("Uneven spread " + p, p > 1500 && p < 3500);
+		}
+	}
+
+}
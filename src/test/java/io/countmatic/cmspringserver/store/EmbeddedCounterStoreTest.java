@@ -0,0 +1,203 @@
+package io.countmatic.cmspringserver.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import io.countmatic.api_v2.spring.model.Counters;
+import io.countmatic.cmspringserver.model.CounterIncrement;
+import io.countmatic.cmspringserver.redis.TokenTtl;
+
+public class EmbeddedCounterStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private EmbeddedCounterStore store;
+
+	private EmbeddedCounterStore open(Path path) throws IOException {
+		if (null != store) {
+			store.preDestroy();
+		}
+		TokenTtl ttl = new TokenTtl();
+		ttl.postConstruct();
+		store = new EmbeddedCounterStore();
+		store.tokenTtl = ttl;
+		store.path = path.toString();
+		store.logSize = 4096;
+		store.syncMillis = 1000;
+		store.compactMillis = 60000;
+		store.postConstruct();
+		return store;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (null != store) {
+			store.preDestroy();
+		}
+	}
+
+	@Test
+	public void testTable() {
+		CounterTable t = new CounterTable();
+		Map<String, Integer> expected = new HashMap<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			String name = "c" + random.nextInt(500);
+			if (random.nextInt(3) == 0) {
+				Integer p = expected.remove(name);
+				assertEquals("Wrong position removed", null == p ? -1 : (int) p, t.remove(name));
+			} else if (expected.containsKey(name)) {
+				// positions don't move
+				assertEquals("Position moved", (int) expected.get(name), t.put(name, i, i));
+			} else {
+				expected.put(name, t.put(name, i, i));
+			}
+			assertEquals("Wrong size", expected.size(), t.size());
+		}
+		for (Map.Entry<String, Integer> e : expected.entrySet()) {
+			assertEquals("Lost " + e.getKey(), (int) e.getValue(), t.find(e.getKey()));
+			assertEquals(e.getKey(), t.name(e.getValue()));
+		}
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("counters.log");
+		EmbeddedCounterStore s = open(path);
+		s.create("t-rw", "a", 1);
+		s.add("t-rw", "b", 10);
+		s.increment("t-rw", "a", 5);
+		s.incrementAll(Collections.singletonMap("t-rw", Arrays.asList(0, 1)),
+				Arrays.asList(new CounterIncrement().name("a"), new CounterIncrement().name("b").increment(-3l)));
+		s.createReadOnly("t-rw", "t-ro");
+		s.add("t-rw", "gone", 0);
+		s.delete("t-rw", "gone");
+		s.create("e-vrw", "a", 1);
+		s.create("d-rw", "a", 1);
+		s.delete("d-rw", null);
+
+		s = open(path);
+		Counters counters = s.read("t-ro", null, null).getBody();
+		assertEquals("Not two counters", 2, counters.size());
+		assertEquals(7l, (long) s.read("t-rw", "a", null).getBody().get(0).getCount());
+		assertEquals(7l, (long) s.read("t-rw", "b", null).getBody().get(0).getCount());
+		assertEquals("ro token writes", HttpStatus.FORBIDDEN, s.increment("t-ro", "a", 1).getStatusCode());
+		assertEquals("Ephemeral token kept", HttpStatus.NOT_FOUND, s.read("e-vrw", null, null).getStatusCode());
+		assertEquals("Deleted token back", HttpStatus.NOT_FOUND, s.read("d-rw", null, null).getStatusCode());
+		assertEquals("Deleted counter back", HttpStatus.NOT_FOUND, s.read("t-rw", "gone", null).getStatusCode());
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("counters.log");
+		EmbeddedCounterStore s = open(path);
+		s.create("t-rw", "a", 0);
+		for (int i = 0; i < 10000; i++) {
+			s.increment("t-rw", null, 1);
+		}
+		File file = path.toFile();
+		long before = file.length();
+		s.compact();
+		assertTrue("Log not compacted", file.length() < before);
+		s = open(path);
+		assertEquals(10000l, (long) s.read("t-rw", "a", null).getBody().get(0).getCount());
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("counters.log");
+		EmbeddedCounterStore s = open(path);
+		s.create("t-rw", "a", 0);
+		s.compact();
+		s.increment("t-rw", "a", 1);
+		s.increment("t-rw", "a", 1);
+		s.preDestroy();
+		store = null;
+		// the same records in a log of their own for their sizes
+		CounterLog sizes = new CounterLog(folder.newFile().toPath(), 4096);
+		sizes.token("t-rw", null, 0);
+		sizes.set("t-rw", "a", 0, 0);
+		sizes.set("t-rw", "a", 1, 0);
+		int last = sizes.position();
+		sizes.close();
+		// flip a byte within the body of the last increment
+		try (RandomAccessFile f = new RandomAccessFile(path.toFile(), "rw")) {
+			f.seek(last + 10);
+			int b = f.read();
+			f.seek(last + 10);
+			f.write(~b);
+		}
+		s = open(path);
+		assertEquals("Torn record replayed", 1l, (long) s.read("t-rw", "a", null).getBody().get(0).getCount());
+	}
+
+	@Test
+	public void testIncrementAllOrNothing() throws IOException {
+		EmbeddedCounterStore s = open(folder.getRoot().toPath().resolve("counters.log"));
+		s.create("a-rw", "a", 0);
+		s.create("b-rw", "b", 0);
+		Map<String, List<Integer>> byToken = new LinkedHashMap<>();
+		byToken.put("a-rw", Arrays.asList(0));
+		byToken.put("b-rw", Arrays.asList(1));
+		assertEquals(HttpStatus.NOT_FOUND, s.incrementAll(byToken,
+				Arrays.asList(new CounterIncrement().name("a"), new CounterIncrement().name("unknown")))
+				.getStatusCode());
+		assertEquals("Partly applied", 0l, (long) s.read("a-rw", "a", null).getBody().get(0).getCount());
+		assertEquals(HttpStatus.OK, s.incrementAll(byToken,
+				Arrays.asList(new CounterIncrement().name("a"), new CounterIncrement().name("b"))).getStatusCode());
+		assertEquals(1l, (long) s.read("b-rw", "b", null).getBody().get(0).getCount());
+	}
+
+	@Test
+	public void testVersion() throws IOException {
+		EmbeddedCounterStore s = open(folder.getRoot().toPath().resolve("counters.log"));
+		s.create("t-rw", "a", 0);
+		s.createReadOnly("t-rw", "t-ro");
+		String etag = s.read("t-rw", null, null).getHeaders().getETag();
+		String version = TokenVersion.parse(etag);
+		assertEquals(HttpStatus.NOT_MODIFIED, s.read("t-rw", null, version).getStatusCode());
+		assertEquals(HttpStatus.NOT_MODIFIED, s.read("t-ro", "a", version).getStatusCode());
+		s.increment("t-rw", "a", 1);
+		ResponseEntity<Counters> changed = s.read("t-ro", null, version);
+		assertEquals(HttpStatus.OK, changed.getStatusCode());
+		assertTrue("Same ETag after a change", !etag.equals(changed.getHeaders().getETag()));
+		version = TokenVersion.parse(changed.getHeaders().getETag());
+		s.delete("t-rw", "a");
+		assertEquals(HttpStatus.OK, s.read("t-rw", null, version).getStatusCode());
+	}
+
+	@Test
+	public void testExpired() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("counters.log");
+		CounterLog log = new CounterLog(path, 4096);
+		log.token("x-rw", null, System.currentTimeMillis() - 1);
+		log.set("x-rw", "a", 1, 0);
+		log.token("y-rw", null, Long.MAX_VALUE);
+		log.set("y-rw", "a", 1, 0);
+		log.close();
+		EmbeddedCounterStore s = open(path);
+		assertEquals("Expired token kept", HttpStatus.NOT_FOUND, s.read("x-rw", null, null).getStatusCode());
+		assertEquals(HttpStatus.OK, s.read("y-rw", null, null).getStatusCode());
+	}
+
+}
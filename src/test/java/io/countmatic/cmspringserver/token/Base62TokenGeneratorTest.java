@@ -0,0 +1,68 @@
+package io.countmatic.cmspringserver.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import io.countmatic.cmspringserver.redis.ShardRing;
+import io.countmatic.cmspringserver.redis.Tier;
+
+public class Base62TokenGeneratorTest {
+
+	private final TokenGenerator tokens = new Base62TokenGenerator();
+
+	@Test
+	public void testFormat() {
+		for (Tier tier : Tier.values()) {
+			for (boolean readonly : new boolean[] { false, true }) {
+				String token = tokens.newToken(tier, readonly);
+				assertTrue("Wrong postfix " + token, token.endsWith(tier.postfix(readonly)));
+				assertEquals("Wrong tier " + token, tier, Tier.of(token));
+				assertEquals("Wrong length " + token, 22 + tier.postfix(readonly).length(), token.length());
+				assertTrue("Wrong chars " + token, token.substring(0, 22).matches("[0-9A-Za-z]{22}"));
+			}
+		}
+	}
+
+	@Test
+	public void testEncode() {
+		char[] c = new char[Base62TokenGenerator.CHARS_PER_LONG];
+		Base62TokenGenerator.encode(0, c, 0);
+		assertEquals("00000000000", new String(c));
+		Base62TokenGenerator.encode(61, c, 0);
+		assertEquals("0000000000z", new String(c));
+		Base62TokenGenerator.encode(62, c, 0);
+		assertEquals("00000000010", new String(c));
+		// unsigned, 2^64 - 1
+		Base62TokenGenerator.encode(-1, c, 0);
+		assertEquals("LygHa16AHYF", new String(c));
+	}
+
+	@Test
+	public void testUniqueAcrossThreads() throws InterruptedException {
+		Set<String> seen = ConcurrentHashMap.newKeySet();
+		Set<String> shardKeys = ConcurrentHashMap.newKeySet();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					String token = tokens.newToken(Tier.PERSISTENT, false);
+					seen.add(token);
+					shardKeys.add(ShardRing.shardKey(token));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals("Duplicate tokens", 80000, seen.size());
+		// placed by the whole token, collisions are unlikely
+		assertTrue("Shard keys not random", shardKeys.size() > 79990);
+	}
+
+}
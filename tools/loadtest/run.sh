@@ -0,0 +1,27 @@
+#!/bin/sh
+# Run a load test against a fresh server and redis on this machine.
+#   ./run.sh "<server properties>" <load test options>
+# e.g. compare the blocking and the pipelined mode on the same workload:
+#   ./run.sh "--countmatic.scripting=false" --mix=hot
+#   ./run.sh "--countmatic.scripting=false --countmatic.pipelining=true" --mix=hot
+# or the async endpoints with --url=http://localhost:8080/v2/async
+set -e
+cd "$(dirname "$0")"
+REDIS_PORT=${REDIS_PORT:-6390}
+SERVER_JAR=${SERVER_JAR:-../../target/cmspringserver-2.0.0.jar}
+SERVER_PROPERTIES=$1
+shift
+
+[ -f target/cm-loadtest.jar ] || mvn -B -q package
+redis-server --port "$REDIS_PORT" --bind 127.0.0.1 --save "" --appendonly no >target/redis.log 2>&1 &
+REDIS_PID=$!
+java -jar "$SERVER_JAR" --countmatic.persistentServer=127.0.0.1:"$REDIS_PORT" \
+	--countmatic.volatileServer=127.0.0.1:"$REDIS_PORT" $SERVER_PROPERTIES >target/server.log 2>&1 &
+SERVER_PID=$!
+trap 'kill $SERVER_PID $REDIS_PID' EXIT
+
+until curl -s -o /dev/null http://localhost:8080/v2/stats/pools; do
+	kill -0 $SERVER_PID || exit 1
+	sleep 1
+done
+java -jar target/cm-loadtest.jar "$@"
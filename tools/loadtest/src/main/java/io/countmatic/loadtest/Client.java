@@ -0,0 +1,94 @@
+package io.countmatic.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Minimal HTTP client on HttpURLConnection, which keeps connections alive as
+ * long as the bodies are read completely
+ */
+public class Client {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final String baseUrl;
+
+	/**
+	 * @param baseUrl
+	 *            e.g. http://localhost:8080/v2 or http://localhost:8080/v2/async
+	 */
+	public Client(String baseUrl) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+	}
+
+	/**
+	 * Send a request and drain its response
+	 *
+	 * @param request
+	 * @return the HTTP status
+	 * @throws IOException
+	 */
+	public int send(Request request) throws IOException {
+		HttpURLConnection c = open(request);
+		int status = c.getResponseCode();
+		drain(status < 400 ? c.getInputStream() : c.getErrorStream());
+		return status;
+	}
+
+	/**
+	 * Send a request used to set up the workload
+	 *
+	 * @param request
+	 * @return the parsed JSON response
+	 * @throws IOException
+	 *             unless the server answered OK
+	 */
+	public JsonNode fetch(Request request) throws IOException {
+		HttpURLConnection c = open(request);
+		int status = c.getResponseCode();
+		if (status != HttpURLConnection.HTTP_OK) {
+			drain(c.getErrorStream());
+			throw new IOException(request.getPath() + " answered " + status);
+		}
+		try (InputStream in = c.getInputStream()) {
+			return MAPPER.readTree(in);
+		}
+	}
+
+	private HttpURLConnection open(Request request) throws IOException {
+		HttpURLConnection c = (HttpURLConnection) new URL(baseUrl + request.getPath()).openConnection();
+		c.setConnectTimeout(5000);
+		c.setReadTimeout(30000);
+		if (null != request.getBody()) {
+			byte[] body = request.getBody().getBytes(StandardCharsets.UTF_8);
+			c.setRequestMethod("POST");
+			c.setDoOutput(true);
+			c.setRequestProperty("Content-Type", "application/json");
+			c.setFixedLengthStreamingMode(body.length);
+			try (OutputStream out = c.getOutputStream()) {
+				out.write(body);
+			}
+		}
+		return c;
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		if (null == in) {
+			return;
+		}
+		try (InputStream i = in) {
+			byte[] buffer = new byte[8192];
+			while (i.read(buffer) >= 0) {
+				// discard
+			}
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package io.countmatic.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The tokens a workload runs on, created through the API before the run
+ */
+public class Fixture {
+
+	private final List<String> tokens = new ArrayList<>();
+	private final List<String> roTokens = new ArrayList<>();
+	private final int counters;
+
+	private Fixture(int counters) {
+		this.counters = counters;
+	}
+
+	/**
+	 * @param client
+	 * @param tokens
+	 *            number of rw tokens
+	 * @param counters
+	 *            counters per token
+	 * @return tokens with counters c0 .. c(counters-1) and a ro token each
+	 * @throws IOException
+	 */
+	public static Fixture create(Client client, int tokens, int counters) throws IOException {
+		Fixture f = new Fixture(counters);
+		for (int t = 0; t < tokens; t++) {
+			String token = client.fetch(Request.get("setup", "/counter/new?name=c0")).get("token").asText();
+			for (int c = 1; c < counters; c++) {
+				client.fetch(Request.get("setup", "/counter/add?token=" + token + "&name=c" + c));
+			}
+			f.tokens.add(token);
+			f.roTokens.add(client.fetch(Request.get("setup", "/counter/readonlytoken?token=" + token)).get("token")
+					.asText());
+		}
+		return f;
+	}
+
+	public String token(int i) {
+		return tokens.get(i % tokens.size());
+	}
+
+	public String randomToken() {
+		return tokens.get(ThreadLocalRandom.current().nextInt(tokens.size()));
+	}
+
+	public String randomRoToken() {
+		return roTokens.get(ThreadLocalRandom.current().nextInt(roTokens.size()));
+	}
+
+	public String randomCounter() {
+		return "c" + ThreadLocalRandom.current().nextInt(counters);
+	}
+
+}
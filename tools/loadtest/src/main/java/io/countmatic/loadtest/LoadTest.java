@@ -0,0 +1,176 @@
+package io.countmatic.loadtest;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Drives a running countmatic server through its HTTP API and reports
+ * throughput and latency percentiles per operation.
+ * <p>
+ * Without a rate the workers send back to back (closed loop). With a rate each
+ * worker follows a fixed schedule and latencies are taken from the scheduled
+ * start, so a stalled server shows in the percentiles instead of just slowing
+ * down the load.
+ * <p>
+ * Options as --name=value: url, mix (dashboard, hot, batch, create), threads,
+ * seconds, warmup, rate (requests per second, 0 for closed loop), tokens,
+ * counters and hgrm (file receiving the percentile distribution of all
+ * requests).
+ */
+public class LoadTest {
+
+	// latencies in microseconds up to a minute
+	private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+	private final Client client;
+	private final Mix mix;
+	private final int threads;
+	private final double rate;
+	private final ConcurrentMap<String, Recorder> recorders = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+	private volatile boolean running;
+
+	public LoadTest(Client client, Mix mix, int threads, double rate) {
+		this.client = client;
+		this.mix = mix;
+		this.threads = threads;
+		this.rate = rate;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> o = new HashMap<>();
+		o.put("url", "http://localhost:8080/v2");
+		o.put("mix", "dashboard");
+		o.put("threads", "16");
+		o.put("seconds", "30");
+		o.put("warmup", "5");
+		o.put("rate", "0");
+		o.put("tokens", "100");
+		o.put("counters", "10");
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0 || (!o.containsKey(arg.substring(2, eq)) && !arg.startsWith("--hgrm="))) {
+				System.err.println("Unknown option " + arg + ", known are " + o.keySet() + " and hgrm");
+				System.exit(2);
+			}
+			o.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+
+		Client client = new Client(o.get("url"));
+		Mix mix = Mix.valueOf(o.get("mix").toUpperCase());
+		System.out.println("Creating " + o.get("tokens") + " tokens with " + o.get("counters") + " counters");
+		Fixture fixture = Fixture.create(client, Integer.parseInt(o.get("tokens")),
+				Integer.parseInt(o.get("counters")));
+
+		LoadTest test = new LoadTest(client, mix, Integer.parseInt(o.get("threads")),
+				Double.parseDouble(o.get("rate")));
+		System.out.println("Warming up for " + o.get("warmup") + "s");
+		test.run(fixture, Integer.parseInt(o.get("warmup")));
+		System.out.println("Running " + mix + " on " + o.get("url") + " with " + o.get("threads") + " threads for "
+				+ o.get("seconds") + "s" + (test.rate > 0 ? " at " + o.get("rate") + " req/s" : ""));
+		int seconds = Integer.parseInt(o.get("seconds"));
+		Histogram total = test.run(fixture, seconds);
+		if (o.containsKey("hgrm")) {
+			try (PrintStream out = new PrintStream(new FileOutputStream(o.get("hgrm")))) {
+				total.outputPercentileDistribution(out, 1000.0);
+			}
+		}
+	}
+
+	/**
+	 * Run the workload and print its report
+	 *
+	 * @param fixture
+	 * @param seconds
+	 * @return the latencies of all requests in microseconds
+	 * @throws InterruptedException
+	 */
+	public Histogram run(Fixture fixture, int seconds) throws InterruptedException {
+		recorders.clear();
+		errors.clear();
+		running = true;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> this.work(fixture), "cm-loadtest-" + i);
+			workers[i].start();
+		}
+		long start = System.nanoTime();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		running = false;
+		for (Thread t : workers) {
+			t.join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		return report(elapsed);
+	}
+
+	private void work(Fixture fixture) {
+		// per worker schedule when running at a rate
+		long interval = rate > 0 ? (long) (1e9 * threads / rate) : 0;
+		long next = System.nanoTime();
+		while (running) {
+			if (interval > 0) {
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			} else {
+				next = System.nanoTime();
+			}
+			Request r = mix.next(fixture);
+			boolean ok;
+			try {
+				ok = client.send(r) < 400;
+			} catch (IOException e) {
+				ok = false;
+			}
+			long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - next);
+			recorders.computeIfAbsent(r.getOperation(), op -> new Recorder(HIGHEST_MICROS, 3))
+					.recordValue(Math.min(micros, HIGHEST_MICROS));
+			if (!ok) {
+				errors.computeIfAbsent(r.getOperation(), op -> new LongAdder()).increment();
+			}
+			next += interval;
+		}
+	}
+
+	private Histogram report(double elapsed) {
+		Histogram total = new Histogram(HIGHEST_MICROS, 3);
+		long totalErrors = 0;
+		System.out.println(String.format("%-8s %10s %8s %10s %9s %9s %9s %9s", "op", "count", "errors", "req/s",
+				"p50 ms", "p99 ms", "p999 ms", "max ms"));
+		for (Map.Entry<String, Recorder> e : new TreeMap<>(recorders).entrySet()) {
+			Histogram h = e.getValue().getIntervalHistogram();
+			LongAdder err = errors.get(e.getKey());
+			long n = null == err ? 0 : err.sum();
+			print(e.getKey(), h, n, elapsed);
+			total.add(h);
+			totalErrors += n;
+		}
+		print("total", total, totalErrors, elapsed);
+		return total;
+	}
+
+	private static void print(String operation, Histogram h, long errors, double elapsed) {
+		System.out.println(String.format("%-8s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f", operation,
+				h.getTotalCount(), errors, h.getTotalCount() / elapsed, h.getValueAtPercentile(50) / 1000.0,
+				h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+				h.getMaxValue() / 1000.0));
+	}
+
+}
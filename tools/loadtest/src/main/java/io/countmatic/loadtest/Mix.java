@@ -0,0 +1,68 @@
+package io.countmatic.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The request mixes of the load test
+ */
+public enum Mix {
+
+	/**
+	 * Dashboards polling all counters of their ro tokens, one in ten requests
+	 * increments a random counter
+	 */
+	DASHBOARD {
+		@Override
+		public Request next(Fixture f) {
+			if (ThreadLocalRandom.current().nextInt(10) > 0) {
+				return Request.get("read", "/counter/current?token=" + f.randomRoToken());
+			}
+			return Request.get("next", "/counter/next?token=" + f.randomToken() + "&name=" + f.randomCounter());
+		}
+	},
+
+	/**
+	 * Increments concentrated on the counters of the first token
+	 */
+	HOT {
+		@Override
+		public Request next(Fixture f) {
+			return Request.get("next", "/counter/next?token=" + f.token(0) + "&name=" + f.randomCounter());
+		}
+	},
+
+	/**
+	 * Increments of random counters in batches of ten
+	 */
+	BATCH {
+		@Override
+		public Request next(Fixture f) {
+			StringBuilder body = new StringBuilder("[");
+			for (int i = 0; i < 10; i++) {
+				body.append(i == 0 ? "" : ",").append("{\"token\":\"").append(f.randomToken())
+						.append("\",\"name\":\"").append(f.randomCounter()).append("\",\"increment\":1}");
+			}
+			return Request.post("batch", "/counter/batch", body.append(']').toString());
+		}
+	},
+
+	/**
+	 * Creation of new tokens, mixed with reads of existing ones
+	 */
+	CREATE {
+		@Override
+		public Request next(Fixture f) {
+			if (ThreadLocalRandom.current().nextBoolean()) {
+				return Request.get("new", "/counter/new?name=c0");
+			}
+			return Request.get("read", "/counter/current?token=" + f.randomToken());
+		}
+	};
+
+	/**
+	 * @param f
+	 * @return the next request to send
+	 */
+	public abstract Request next(Fixture f);
+
+}
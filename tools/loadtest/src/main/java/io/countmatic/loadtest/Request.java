@@ -0,0 +1,41 @@
+package io.countmatic.loadtest;
+
+/**
+ * One request of a workload, GET unless it has a body
+ */
+public class Request {
+
+	private final String operation;
+	private final String path;
+	private final String body;
+
+	private Request(String operation, String path, String body) {
+		this.operation = operation;
+		this.path = path;
+		this.body = body;
+	}
+
+	public static Request get(String operation, String path) {
+		return new Request(operation, path, null);
+	}
+
+	public static Request post(String operation, String path, String body) {
+		return new Request(operation, path, body);
+	}
+
+	/**
+	 * @return the name the latencies are reported under
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+}